@@ -6,6 +6,7 @@ import uk.co.darkerwaters.heartrateanalyser.ble.HeartRateDataStore;
 import android.app.Activity;
 import android.app.Fragment;
 import android.bluetooth.BluetoothDevice;
+import android.util.Log;
 
 public abstract class FragmentBase extends Fragment implements HeartRateListener {
 
@@ -14,10 +15,13 @@ public abstract class FragmentBase extends Fragment implements HeartRateListener
 	protected BluetoothDevice device = null;
 	protected ConnectionState connectionState = ConnectionState.disconnected;
 	protected HeartRateDataStore heartData = null;
+	/** passes the data to the display at most once per frame, null when not attached */
+	private volatile FrameDisplayDispatcher displayDispatcher = null;
 	
 	@Override
 	public void onAttach(Activity activity) {
 		this.mainActivity = (MainActivity) activity;
+		this.displayDispatcher = new FrameDisplayDispatcher(this);
 		this.mainActivity.setupFragment(this);
 		super.onAttach(activity);
 	}
@@ -32,22 +36,39 @@ public abstract class FragmentBase extends Fragment implements HeartRateListener
     @Override
     public void onPause() {
         super.onPause();
-        
+        FrameDisplayDispatcher dispatcher = this.displayDispatcher;
+        if (null != dispatcher) {
+        	Log.d(MainActivity.TAG, getClass().getSimpleName() + " updated the display " + dispatcher.getNoDispatched()
+        			+ " times for " + dispatcher.getNoPosted() + " notifications, ratio " + dispatcher.getCoalescingRatio());
+        }
     }
 
 	@Override
-	public void displayData(final String deviceName, final BluetoothDevice device, final ConnectionState connectionState, final HeartRateDataStore data) {
-		// this probably makes our menu invalid - showing connectivity in the menu
-		if (null != this.mainActivity) {
-			// have the main activity, update the menu and our display data
-			this.mainActivity.invalidateOptionsMenu();
-			this.mainActivity.runOnUiThread(new Runnable() {
-				@Override
-				public void run() {
-					updateDisplayData(deviceName, device, connectionState, data);
-				}
-			});
+	public void onDetach() {
+		FrameDisplayDispatcher dispatcher = this.displayDispatcher;
+		this.displayDispatcher = null;
+		if (null != dispatcher) {
+			// nothing more to show, stop any update waiting to run
+			dispatcher.cancel();
 		}
+		super.onDetach();
+	}
+
+	@Override
+	public void displayData(String deviceName, BluetoothDevice device, ConnectionState connectionState, HeartRateDataStore data) {
+		FrameDisplayDispatcher dispatcher = this.displayDispatcher;
+		if (null != dispatcher) {
+			// have a dispatcher, this will show the latest of the data on the next frame
+			dispatcher.post(deviceName, device, connectionState, data);
+		}
+	}
+
+	/**
+	 * @return the number of notifications merged into each update of the display, 1 if none were merged
+	 */
+	public double getDisplayCoalescingRatio() {
+		FrameDisplayDispatcher dispatcher = this.displayDispatcher;
+		return null == dispatcher ? 1.0 : dispatcher.getCoalescingRatio();
 	}
 
 	protected void updateDisplayData(String deviceName, BluetoothDevice device, ConnectionState connectionState, HeartRateDataStore data) {
@@ -85,10 +106,7 @@ public abstract class FragmentBase extends Fragment implements HeartRateListener
 	public int getHeartRate() {
 		int heartRate = -1;
 		if (null != this.heartData) {
-			Integer lastData = this.heartData.getLastData();
-			if (null != lastData) {
-				heartRate = lastData.intValue();
-			}
+			heartRate = this.heartData.getLastData(-1);
 		}
 		return heartRate;
 	}
@@ -1,34 +1,52 @@
 package uk.co.darkerwaters.heartrateanalyser;
 
 
+import java.io.File;
 import java.util.Date;
+import java.util.concurrent.Future;
 
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionHistory;
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionService.ConnectionState;
 import uk.co.darkerwaters.heartrateanalyser.ble.HeartRateDataStore;
+import uk.co.darkerwaters.heartrateanalyser.ble.HeartRateExporter;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.Toast;
 
 /**
  * A fragment containing a the history views.
  */
 public class FragmentHistory extends FragmentBase {
+	/** the directory of the app's external files the exports are put in, to be readable by the app sent them */
+	private static final String K_EXPORTDIR = "exports";
+	/** the type of the exported files */
+	private static final String K_EXPORTTYPE = "text/csv";
 	
 	private PieChartLegendView legendView;
 	private PieChartView pieChartView;
 	private Button resetButton;
 	
 	private BleConnectionHistory<Integer> data = null;
+	
+	private long dataVersion = -1;
+	
+	/** the export of the day running, null if there has not been one */
+	private Future<Boolean> export = null;
 
 	public FragmentHistory() {
 	}
@@ -99,12 +117,14 @@ public class FragmentHistory extends FragmentBase {
 			// clear any current data
 			this.pieChartView.clearData();
 			if (null != this.data) {
-				// get the colours from the data to show them
+				// get the colours from the data to show them, and all the frequencies at once so they match
 				int[] colours = new int[this.data.getNoBins()];
+				int[] frequencies = new int[colours.length];
+				this.dataVersion = this.data.copyBinFrequencies(frequencies);
 		    	for (int i = 0; i < colours.length; ++i) {
 		    		// add the data to the pie chart view
 		    		String binTitle = this.data.getBinName(i);
-		    		this.pieChartView.addData(binTitle, this.data.getBinFrequency(i));
+		    		this.pieChartView.addData(binTitle, frequencies[i]);
 		    		// also set the colour
 		    		colours[i] = this.data.getBinColour(i);
 		    	}
@@ -138,6 +158,87 @@ public class FragmentHistory extends FragmentBase {
 		updateDisplayData(this.deviceName, this.device, this.connectionState, this.heartData);
 	}
 	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		boolean result = false;
+		switch (item.getItemId()) {
+			case R.id.action_export:
+				exportHistoryData();
+				result = true;
+				break;
+		}
+		return result;
+	}
+
+	@Override
+	public void onDestroy() {
+		if (null != this.export) {
+			// nothing to send it from any more, stop the export, this deletes the file
+			this.export.cancel(true);
+			this.export = null;
+		}
+		super.onDestroy();
+	}
+
+	private void exportHistoryData() {
+		final Activity activity = this.mainActivity;
+		if (null == activity) {
+			// not attached, nothing to show the export from
+			return;
+		}
+		if (null == this.heartData) {
+			Toast.makeText(activity, R.string.export_no_data, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		if (null != this.export && false == this.export.isDone()) {
+			// already exporting, this will be sent when done
+			return;
+		}
+		// put the file where the app it is sent to can read it
+		File directory = activity.getExternalFilesDir(K_EXPORTDIR);
+		if (null == directory) {
+			Log.e(MainActivity.TAG, "Failed to export the history, no external storage to put the file in");
+			Toast.makeText(activity, R.string.export_failed, Toast.LENGTH_SHORT).show();
+			return;
+		}
+		// export the day shown, on the thread of the exporter, which stops when it is done
+		HeartRateExporter exporter = new HeartRateExporter(this.heartData, 1);
+		this.export = exporter.exportDays(new Date(), 1, HeartRateExporter.Format.CSV, directory, new HeartRateExporter.ExportListener() {
+			@Override
+			public void exportProgress(File file, long noSamplesDone, long noSamples) {
+				// quick enough to not show the progress
+			}
+			@Override
+			public void exportComplete(final File file, final boolean isSuccess) {
+				activity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (false == isAdded()) {
+							// gone from the display since, nothing to send it from
+							return;
+						}
+						if (isSuccess) {
+							sendExportedFile(activity, file);
+						}
+						else {
+							Toast.makeText(activity, R.string.export_failed, Toast.LENGTH_SHORT).show();
+						}
+					}
+				});
+			}
+		}).get(0);
+		exporter.shutdown();
+	}
+
+	private static void sendExportedFile(Activity activity, File file) {
+		// let the user pick the app to send the file to
+		Intent sendIntent = new Intent(Intent.ACTION_SEND);
+		sendIntent.setType(K_EXPORTTYPE);
+		sendIntent.putExtra(Intent.EXTRA_SUBJECT, file.getName());
+		sendIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+		activity.startActivity(Intent.createChooser(sendIntent, activity.getString(R.string.export_title)));
+	}
+	
 	@Override
 	protected void updateDisplayData(String deviceName, BluetoothDevice device, ConnectionState connectionState, HeartRateDataStore data) {
 		super.updateDisplayData(deviceName, device, connectionState, data);
@@ -147,7 +248,7 @@ public class FragmentHistory extends FragmentBase {
 			// have heart data from which to set the data, do we have history?
 			history = this.heartData.getHistoryData(new Date());
 		}
-		if (history == this.data) {
+		if (history == this.data && (null == history || history.getBinsVersion() != this.dataVersion)) {
 			// this is an update of our data, update our views to reflect this
 			setData(history);
 		}
@@ -2,7 +2,6 @@ package uk.co.darkerwaters.heartrateanalyser;
 
 
 import java.util.Date;
-import java.util.LinkedList;
 
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionHistory;
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionService.ConnectionState;
@@ -27,6 +26,8 @@ public class FragmentHome extends FragmentBase {
 	private TextView deviceTextView;
 
 	private HeartRateView heartRateView;
+	/** the array the recent values are copied into to show, re-used for every update */
+	private final int[] recentValues = new int[BleConnectionHistory.K_MEMORYSPAN];
 	
 
 	public FragmentHome() {
@@ -74,16 +75,13 @@ public class FragmentHome extends FragmentBase {
 		}
 		if (null != history) {
 			// we can send our history to the live view
-			LinkedList<Integer> recentValues = history.getRecentValues();
+			int noRecentValues = history.copyRecentValues(this.recentValues);
 			Integer lastColor = null;
-			if (null != recentValues && recentValues.size() > 0) {
+			if (noRecentValues > 0) {
 				// get the colour of the most recent reading
-				Integer lastValue = recentValues.getLast();
-				if (null != lastValue) {
-					lastColor = history.getBinColour(history.getBinIndex(lastValue));
-				}
+				lastColor = history.getBinColour(history.getBinIndex(this.recentValues[noRecentValues - 1]));
 			}
-			this.liveView.setData(history.getRecentValues(), lastColor);
+			this.liveView.setData(this.recentValues, noRecentValues, lastColor);
 			// update the stats view
 			this.statsView.historyChanged(history);
 		}
@@ -0,0 +1,166 @@
+package uk.co.darkerwaters.heartrateanalyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionService.ConnectionState;
+import uk.co.darkerwaters.heartrateanalyser.ble.HeartRateDataStore;
+import android.bluetooth.BluetoothDevice;
+import android.view.Choreographer;
+
+/**
+ * passes the data received to a fragment on the UI thread at most once per display frame. Only
+ * the latest data posted for each device is kept, so a burst of notifications results in a single
+ * update of the display per device rather than a backlog of updates the UI thread has to work
+ * through, and the change of state of one device is never lost to the data of another. The menu
+ * is only invalidated when the state of the connection to a device changes.
+ */
+class FrameDisplayDispatcher implements Choreographer.FrameCallback {
+	/** the fragment to update */
+	private final FragmentBase fragment;
+	/** the choreographer of the UI thread, to run on the next frame */
+	private final Choreographer choreographer;
+	/**
+	 * the data posted for a device, re-used for each post so posting creates no garbage
+	 */
+	private static class Update {
+		String deviceName = null;
+		BluetoothDevice device = null;
+		ConnectionState connectionState = null;
+		HeartRateDataStore data = null;
+		/** true if posted and not yet shown */
+		boolean isPending = false;
+
+		void set(String deviceName, BluetoothDevice device, ConnectionState connectionState, HeartRateDataStore data) {
+			this.deviceName = deviceName;
+			this.device = device;
+			this.connectionState = connectionState;
+			this.data = data;
+		}
+	}
+	/** the latest data posted for each device, by address, the last posted last, guarded by synchronizing on this */
+	private final LinkedHashMap<String, Update> updates = new LinkedHashMap<String, Update>();
+	/** true when there is a frame callback waiting to run */
+	private boolean isScheduled = false;
+	/** the updates taken to show on a frame, re-used every frame, only used on the UI thread */
+	private final ArrayList<Update> dispatching = new ArrayList<Update>();
+	/** the state the menu was last shown for each device, only used on the UI thread */
+	private final HashMap<String, ConnectionState> menuStates = new HashMap<String, ConnectionState>();
+	/** the counts of the data posted and the updates that were run */
+	private long noPosted = 0;
+	private long noDispatched = 0;
+
+	/**
+	 * constructor, to be called on the UI thread
+	 * @param fragment is the fragment to update
+	 */
+	FrameDisplayDispatcher(FragmentBase fragment) {
+		this.fragment = fragment;
+		this.choreographer = Choreographer.getInstance();
+	}
+
+	/**
+	 * post the data to be shown on the next frame, replacing any data of the same device not yet
+	 * shown. Can be called from any thread
+	 */
+	void post(String deviceName, BluetoothDevice device, ConnectionState connectionState, HeartRateDataStore data) {
+		String key = getKey(deviceName, device);
+		synchronized (this) {
+			// move the device to the end, so the device posted last is shown last as it always was
+			Update update = this.updates.remove(key);
+			if (null == update) {
+				update = new Update();
+			}
+			this.updates.put(key, update);
+			update.set(deviceName, device, connectionState, data);
+			update.isPending = true;
+			++this.noPosted;
+			if (this.isScheduled) {
+				// there is a frame coming that will show this data already
+				return;
+			}
+			this.isScheduled = true;
+		}
+		this.choreographer.postFrameCallback(this);
+	}
+
+	/**
+	 * stop any update waiting to run, called when the fragment is no longer shown
+	 */
+	void cancel() {
+		this.choreographer.removeFrameCallback(this);
+		synchronized (this) {
+			this.isScheduled = false;
+			for (Update update : this.updates.values()) {
+				update.set(null, null, null, null);
+				update.isPending = false;
+			}
+		}
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		int noUpdates = 0;
+		synchronized (this) {
+			// take the latest data of each device, anything posted from now on needs another frame
+			for (Update update : this.updates.values()) {
+				if (update.isPending) {
+					if (noUpdates == this.dispatching.size()) {
+						this.dispatching.add(new Update());
+					}
+					this.dispatching.get(noUpdates++).set(update.deviceName, update.device, update.connectionState, update.data);
+					update.isPending = false;
+				}
+			}
+			this.isScheduled = false;
+			++this.noDispatched;
+		}
+		boolean isMenuChanged = false;
+		for (int i = 0; i < noUpdates; ++i) {
+			Update update = this.dispatching.get(i);
+			String key = getKey(update.deviceName, update.device);
+			if (update.connectionState != this.menuStates.get(key)) {
+				// the connectivity is shown in the menu, which is now out of date
+				this.menuStates.put(key, update.connectionState);
+				isMenuChanged = true;
+			}
+			this.fragment.updateDisplayData(update.deviceName, update.device, update.connectionState, update.data);
+			// don't keep the data of the device on the UI thread
+			update.set(null, null, null, null);
+		}
+		MainActivity mainActivity = this.fragment.mainActivity;
+		if (null != mainActivity && isMenuChanged) {
+			mainActivity.invalidateOptionsMenu();
+		}
+	}
+
+	/**
+	 * helper to get the key of the device the data is for
+	 * @return the address of the device, the name if there is no device
+	 */
+	private static String getKey(String deviceName, BluetoothDevice device) {
+		return null == device ? deviceName : device.getAddress();
+	}
+
+	/**
+	 * @return the number of times data was posted
+	 */
+	synchronized long getNoPosted() {
+		return this.noPosted;
+	}
+
+	/**
+	 * @return the number of times the display was updated
+	 */
+	synchronized long getNoDispatched() {
+		return this.noDispatched;
+	}
+
+	/**
+	 * @return the number of times data was posted for each update of the display, 1 if none were merged
+	 */
+	synchronized double getCoalescingRatio() {
+		return this.noDispatched == 0 ? 1.0 : this.noPosted / (double) this.noDispatched;
+	}
+}
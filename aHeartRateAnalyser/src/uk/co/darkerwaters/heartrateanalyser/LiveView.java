@@ -1,7 +1,6 @@
 package uk.co.darkerwaters.heartrateanalyser;
 
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Random;
 
 import android.content.Context;
@@ -173,11 +172,11 @@ public class LiveView extends ViewGroup {
 		}
 	}
 
-	public void setData(LinkedList<Integer> data, Integer lastDataColor) {
+	public void setData(int[] data, int noValues, Integer lastDataColor) {
 		// place all the values we want into chart data
-		for (int i = this.chartData.length - 1; i >= 0 && false == data.isEmpty(); --i) {
-			// from the latest to the earliest, remove data from the list to put in the array
-			this.chartData[i] = data.removeLast();
+		for (int i = this.chartData.length - 1, j = noValues - 1; i >= 0 && j >= 0; --i, --j) {
+			// from the latest to the earliest, put the data in the array
+			this.chartData[i] = data[j];
 		}
 		// and set on the view
 		graphView.setChartData(this.chartData);
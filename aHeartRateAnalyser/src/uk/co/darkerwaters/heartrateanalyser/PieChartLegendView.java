@@ -142,16 +142,19 @@ public class PieChartLegendView extends ViewGroup {
 			this.legend.clear();
 			int total = 0;
 	    	int[] colours = new int[data.getNoBins()];
+	    	// take all the frequencies at once, so the percentages add up
+	    	int[] frequencies = new int[colours.length];
+	    	data.copyBinFrequencies(frequencies);
 	    	for (int i = 0; i < colours.length; ++i) {
 		    	// create our legend of data from that set
 		    	this.legend.add(new Pair<String, Integer>(data.getBinName(i), data.getBinColour(i)));
 		    	// add up the total
-		    	total += data.getBinFrequency(i);
+		    	total += frequencies[i];
 	    	}
 	    	// calculate our percentages of data
 	    	this.percentages = new int[colours.length];
 	    	for (int i = 0; i < this.percentages.length; ++i) {
-	    		this.percentages[i] = (int)((float)data.getBinFrequency(i) / total * 100f);
+	    		this.percentages[i] = (int)((float)frequencies[i] / total * 100f);
 	    	}
 		}
 	}
@@ -3,6 +3,7 @@ package uk.co.darkerwaters.heartrateanalyser;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionHistory;
@@ -36,6 +37,8 @@ public class StatsView extends ViewGroup {
 	private final LinkedList<Pair<String, Integer>> legend = new LinkedList<Pair<String, Integer>>();
 
 	private final HashMap<PieChartView, BleConnectionHistory<Integer>> pieViewData = new HashMap<PieChartView, BleConnectionHistory<Integer>>();
+	
+	private final HashMap<PieChartView, Long> pieViewVersions = new HashMap<PieChartView, Long>();
 
 	/**
      * Class constructor taking only a context. Use this constructor to create
@@ -181,14 +184,26 @@ public class StatsView extends ViewGroup {
     }
 
 	public void setData(PieChartView pieView, BleConnectionHistory<Integer> data) {
+		if (null != data) {
+			synchronized (this.pieViewData) {
+				Long shownVersion = this.pieViewVersions.get(pieView);
+				if (this.pieViewData.get(pieView) == data && null != shownVersion && shownVersion == data.getBinsVersion()) {
+					// this is showing the data as it is already
+					return;
+				}
+			}
+		}
 		pieView.clearData();
 		if (null != data) {
 			boolean isCreateLegend = this.legend.isEmpty();
 	    	int[] colours = new int[data.getNoBins()];
+	    	// take all the frequencies at once, so they all match
+	    	int[] frequencies = new int[colours.length];
+	    	long version = data.copyBinFrequencies(frequencies);
 	    	for (int i = 0; i < colours.length; ++i) {
 	    		// add the data to the pie chart view
 	    		String binTitle = data.getBinName(i);
-	    		pieView.addData(binTitle, data.getBinFrequency(i));
+	    		pieView.addData(binTitle, frequencies[i]);
 	    		// also set the colour
 	    		colours[i] = data.getBinColour(i);
 	    		if (isCreateLegend) {
@@ -199,6 +214,7 @@ public class StatsView extends ViewGroup {
 	    	// remember the original data set for each pie view
 	    	synchronized (this.pieViewData) {
 	    		this.pieViewData.put(pieView, data);
+	    		this.pieViewVersions.put(pieView, version);
 			}
 	    	pieView.setTitle(data.getFileDateKey());
 	    	pieView.setColours(colours);
@@ -216,15 +232,21 @@ public class StatsView extends ViewGroup {
 			// this is a change, perform a complete refresh of data
 			BleConnectionHistoryStore<Integer> store = history.getStore();
 			String[] fileDates = store.getHistoricFileDates();
-			int dataIndex = fileDates.length - 1;
+			// read the newest data sets, one for each pie chart, in one go
+			int firstIndex = Math.max(0, fileDates.length - this.pieViews.length);
+			if (fileDates.length == 0) {
+				// the store hasn't found its days yet
+				return;
+			}
+			List<BleConnectionHistory<Integer>> histories = store.getHistoryData(fileDates[firstIndex], fileDates[fileDates.length - 1]);
+			int dataIndex = histories.size() - 1;
 			int pieIndex = this.pieViews.length - 1;
 			while (dataIndex >= 0 && pieIndex >= 0) {
 				// wind back from the last data file, and pie chart, to show the newest data sets
-				BleConnectionHistory<Integer> data = store.getHistoryData(fileDates[dataIndex--]);
-				setData(this.pieViews[pieIndex--], data);
+				setData(this.pieViews[pieIndex--], histories.get(dataIndex--));
 			}
 			// set the latest data to be the last data
-			this.latestData = store.getHistoryData(fileDates[fileDates.length - 1]);
+			this.latestData = histories.get(histories.size() - 1);
 			Log.i(MainActivity.TAG, "Stats looking at " + this.latestData.getFileDateKey());
 		}
 		else {
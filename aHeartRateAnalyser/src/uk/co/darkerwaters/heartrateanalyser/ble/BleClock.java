@@ -0,0 +1,31 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import android.os.SystemClock;
+
+/**
+ * the source of time for the stores, so the data can be driven by a simulated clock rather
+ * than waiting for the real one to move on
+ */
+public interface BleClock {
+	/**
+	 * @return the wall-clock time now, in ms since the epoch
+	 */
+	public long currentTimeMillis();
+	/**
+	 * @return the monotonic time now, in ms
+	 */
+	public long elapsedRealtime();
+	/**
+	 * the real clock of the system, used unless another is set
+	 */
+	public static final BleClock SYSTEM = new BleClock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+		@Override
+		public long elapsedRealtime() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+}
@@ -94,6 +94,10 @@ public class BleConnectionCallback extends BluetoothGattCallback {
 	public void onCharacteristicChanged(BluetoothGatt gatt,BluetoothGattCharacteristic characteristic) {
 		// ensure we are informing about the correct device
 		setDevice(gatt.getDevice());
+		// inform the listener of this new data
+		gattDataAvailable(characteristic);
+	}
+	public void gattDataAvailable(BluetoothGattCharacteristic characteristic) {
 		// inform the listener of this new data
 		this.listener.gattDataAvailable(this.deviceName, this.device, characteristic);
 	}
@@ -1,82 +1,149 @@
 package uk.co.darkerwaters.heartrateanalyser.ble;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 import uk.co.darkerwaters.heartrateanalyser.MainActivity;
 import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionHistoryStore.StorePackager;
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.util.Log;
 
+@SuppressLint("SimpleDateFormat")
 public class BleConnectionHistory<T> implements Comparable<BleConnectionHistory<T>> {
-	/** current file version */
-	private static final int K_VERSION = 1;
+	/** current file version, version 1 was a comma separated text file, version 2 had no sequence */
+	private static final int K_VERSION = 3;
+	private static final int K_VERSIONNOSEQUENCE = 2;
+	/** the marker at the start of a binary file, "HRAF" */
+	private static final int K_FILEMAGIC = 0x48524146;
+	/** the size of the header of a binary file: marker, version, last epoch day of the data, number of bins and sequence */
+	private static final int K_HEADERSIZE = 24;
+	/** the size of the header of a version 2 file, without the sequence */
+	private static final int K_HEADERSIZENOSEQUENCE = 16;
+	/** the size of the checksum at the end of a binary file */
+	private static final int K_CHECKSUMSIZE = 4;
 	/** the size of the recent memory to store */
 	public static int K_MEMORYSPAN = 500;
 	/** the store in which this is kept */
 	private final BleConnectionHistoryStore<T> store;
 	/** the time for which this history is created - start time */
 	private Date dataTime;
+	/** the number of days since the epoch to the data time, in the local time zone */
+	private int dataEpochDay;
 	/** the key for the data time, nearest to interval for which data is stored */
 	private String dataTimeKey;
 	/** member to perform the consolidation binning task for the data */
 	private final StorePackager<T> packager;
+	/** the last day of the data folded into this from histories of earlier periods, MIN_VALUE if none */
+	private volatile int foldedEpochDay = Integer.MIN_VALUE;
 	/** if false all the data matches that in it's file, no need to save */
-	private boolean isDirtyFromFile = false;
-	/** this is a small memory of recent data entries */
-	private final LinkedList<T> recentValues = new LinkedList<T>();
+	private volatile boolean isDirtyFromFile = false;
+	/** the sequence in the journal of the first sample not in the file, -1 if not known */
+	private volatile long fileSequence = -1;
+	/** this is a small memory of recent data entries, as ints from the packager */
+	private final IntRingBuffer recentValues = new IntRingBuffer(K_MEMORYSPAN);
+	/** the frequency of the data in each bin, counted without locking so any number of threads can add to the bins */
+	private final AtomicIntegerArray binFrequencies;
 	/**
-	 * small helper class to hold the bin frequency data
+	 * the number of changes to the bins started and finished, the finished count is the version of
+	 * the bins. Readers copy the bins when all started are finished and none start while copying
 	 */
-	private static class Bin {
-		final String binName;
-		int frequency;
-		Bin(String binName) {
-			this.binName = binName;
-			this.frequency = 0;
-		}
-	}
-	private final Bin[] dataBins;
+	private final AtomicLong noBinChangesStarted = new AtomicLong(0);
+	private final AtomicLong noBinChangesFinished = new AtomicLong(0);
+	/** the number of times a reader tries to copy the bins without a lock before it stops changes to copy them */
+	private static final int K_MAXSNAPSHOTTRIES = 16;
+	/** held by a reader that could not copy the bins while they were changing, changes wait for it */
+	private final Object binLock = new Object();
+	/** true while a reader holds binLock to copy the bins, no change starts while it is */
+	private volatile boolean isBinsLocked = false;
 	
 	public BleConnectionHistory(Date dataTime, Context context, BleConnectionHistoryStore<T> store) {
+		this(dataTime, BleConnectionHistoryStore.formatDayKey(EpochDays.getEpochDay(dataTime.getTime())), context, store);
+	}
+
+	/**
+	 * constructor for the history of a period keyed other than by its day, as the rolled up histories are
+	 * @param dataTime is the start time of the period
+	 * @param dataTimeKey is the key of the period, the key of the data in the storage of the store
+	 * @param context is the context of the store, the data is loaded from the storage of the store
+	 * @param store is the store the history is kept in
+	 */
+	protected BleConnectionHistory(Date dataTime, String dataTimeKey, Context context, BleConnectionHistoryStore<T> store) {
 		this.store = store;
 		this.packager = store.getPackager();
 		this.dataTime = dataTime;
-		this.dataTimeKey = BleConnectionHistoryStore.consolidationFormat.format(this.dataTime);
-		this.dataBins = new Bin[packager.getNoBins()];
-		if (false == loadConsolidatedData(context)) {
-			// there is no data to load, initialise the bins to be empty
-			synchronized (this.dataBins) {
-				for (int i = 0; i < this.dataBins.length; ++i) {
-					// create the initial bin file
-					this.dataBins[i] = new Bin(packager.getBinName(i));
-				}
+		this.dataEpochDay = EpochDays.getEpochDay(dataTime.getTime());
+		this.dataTimeKey = dataTimeKey;
+		this.binFrequencies = new AtomicIntegerArray(packager.getNoBins());
+		if (false == loadConsolidatedData()) {
+			// there is no data to load, initialise the bins to be empty, in case some were loaded
+			for (int i = 0; i < this.binFrequencies.length(); ++i) {
+				this.binFrequencies.set(i, 0);
 			}
-			this.isDirtyFromFile = true;
+			setDirty();
 		}
 	}
 	
 	public void addDataFrom(BleConnectionHistory<T> data) {
-		// add the data from the passed history to our data
-		synchronized (this.dataBins) {
-			for (int i = 0; i < this.dataBins.length && i < data.dataBins.length; ++i) {
-				this.dataBins[i].frequency += data.dataBins[i].frequency;
-			}
+		// add the data from the passed history to our data, all of it as it was at once
+		int[] frequencies = new int[data.getNoBins()];
+		data.copyBinFrequencies(frequencies);
+		addFrequencies(frequencies);
+	}
+
+	/**
+	 * add frequencies to the bins, all at once, as when adding the data of a file to this
+	 * @param frequencies is the frequency to add to each bin, any past the bins of this are ignored
+	 */
+	void addFrequencies(int[] frequencies) {
+		startBinChange();
+		for (int i = 0; i < this.binFrequencies.length() && i < frequencies.length; ++i) {
+			this.binFrequencies.addAndGet(i, frequencies[i]);
 		}
+		finishBinChange();
+	}
+
+	/**
+	 * fold the data from the history of an earlier period into this history of a longer period,
+	 * unless it is already. Periods are folded in in order, so the last day folded in is enough
+	 * to know this, and is saved in the file so a roll up interrupted after saving this is not
+	 * folded in twice
+	 * @param data is the history to fold in
+	 * @return true if folded in, false if the data was already in this
+	 */
+	boolean foldIn(BleConnectionHistory<T> data) {
+		int lastEpochDay = data.getLastEpochDay();
+		if (lastEpochDay <= this.foldedEpochDay) {
+			// already in here
+			return false;
+		}
+		addDataFrom(data);
+		this.foldedEpochDay = lastEpochDay;
+		setDirty();
+		return true;
+	}
+
+	/**
+	 * @return the number of days since the epoch to the last day of the data in this history
+	 */
+	int getLastEpochDay() {
+		return Math.max(this.dataEpochDay, this.foldedEpochDay);
 	}
 
 	public void clearAllHistoricData() {
-		// clear all the binned historic data from this store
-		synchronized (this.dataBins) {
-			for (Bin bin : this.dataBins) {
-				bin.frequency = 0;
-			}
+		// clear all the binned historic data from this store, data added meanwhile is kept or cleared
+		startBinChange();
+		for (int i = 0; i < this.binFrequencies.length(); ++i) {
+			this.binFrequencies.set(i, 0);
 		}
-		this.isDirtyFromFile = true;
+		finishBinChange();
+		setDirty();
 	}
 	
 	@Override
@@ -96,87 +163,232 @@ public class BleConnectionHistory<T> implements Comparable<BleConnectionHistory<
 		return this.isDirtyFromFile;
 	}
 
+	/**
+	 * mark this as having data not in the file, telling the store the first time. Called by
+	 * the store when the data taken to save failed to be saved
+	 */
+	void setDirty() {
+		if (false == this.isDirtyFromFile) {
+			this.isDirtyFromFile = true;
+			this.store.historyDirtied(this);
+		}
+	}
+
+	/**
+	 * @return the start time of the data in this history
+	 */
+	public Date getDataTime() {
+		return this.dataTime;
+	}
+
+	/**
+	 * @return the number of days since the epoch to the start time of the data, in the local time zone
+	 */
+	public int getDataEpochDay() {
+		return this.dataEpochDay;
+	}
+
 	public String getFileDateKey() {
 		return this.dataTimeKey;
 	}
 
 	public String getFilename() {
-		return this.packager.getFilePrefix() + BleConnectionHistoryStore.filePrefixSep + this.dataTimeKey;
+		return this.store.getFilePrefix() + BleConnectionHistoryStore.filePrefixSep + this.dataTimeKey;
 	}
 	
 	public int addData(T data, int frequency) {
-		// add this data to the recent memory
-		synchronized (this.recentValues) {
-			this.recentValues.addLast(data);
-			while (this.recentValues.size() > K_MEMORYSPAN) {
-				this.recentValues.removeFirst();
-			}
-		}
+		return addBinnedData(this.packager.dataToInt(data), this.packager.getBinIndex(data), frequency);
+	}
+
+	/**
+	 * add the data, already converted to an int and binned, to the recent memory and the bins. Only
+	 * the one thread storing data is to add data this way, the recent memory has a single writer
+	 * @param value is the value of the data as an int
+	 * @param binIndex is the index of the bin the data is in
+	 * @param frequency is the number of times to count the data
+	 * @return the new frequency of the bin, -1 if the bin index is not valid
+	 */
+	protected int addBinnedData(int value, int binIndex, int frequency) {
+		// add this data to the recent memory, this replaces the oldest once full
+		this.recentValues.add(value);
+		return addToBins(binIndex, frequency);
+	}
+
+	/**
+	 * count data in its bin without adding it to the recent memory, any number of threads can add
+	 * to the bins at once this way
+	 * @param binIndex is the index of the bin the data is in
+	 * @param frequency is the number of times to count the data
+	 * @return the new frequency of the bin, -1 if the bin index is not valid
+	 */
+	int addToBins(int binIndex, int frequency) {
 		int newValue = -1;
-		int binIndex = this.packager.getBinIndex(data);
-		synchronized (this.dataBins) {
-			if (binIndex >= 0 && binIndex < this.dataBins.length) {
-				// this is valid, add this data
-				this.dataBins[binIndex].frequency += frequency;
-				newValue = this.dataBins[binIndex].frequency;
-			}
+		if (binIndex >= 0 && binIndex < this.binFrequencies.length()) {
+			// this is valid, add this data
+			startBinChange();
+			newValue = this.binFrequencies.addAndGet(binIndex, frequency);
+			finishBinChange();
 		}
-		this.isDirtyFromFile = true;
+		setDirty();
 		return newValue;
 	}
-	
-	public static Date getDateOfFile(StorePackager<?> packager, File file) {
-		Date fileDate = null;
-		if (file.exists() && file.isFile()) {
-			String[] split = file.getName().split(BleConnectionHistoryStore.filePrefixSep);
-			if (null == split || split.length != 2) {
-				Log.e(MainActivity.TAG, "File does not have a date " + file.getName());
-			}
-			else if (split[0].equals(packager.getFilePrefix())) {
-				// this is a consolidated file, should we still have this?
-				try {
-					fileDate = BleConnectionHistoryStore.consolidationFormat.parse(split[1]);
-				}
-				catch (Exception e) {
-					// fine, just not a valid file is all...
-				}
+
+	/**
+	 * helper to start a change to the bins, waiting first for any reader copying them under binLock
+	 */
+	private void startBinChange() {
+		this.noBinChangesStarted.incrementAndGet();
+		if (this.isBinsLocked) {
+			// a reader is copying the bins, back this change out and wait for the reader to finish
+			this.noBinChangesFinished.incrementAndGet();
+			synchronized (this.binLock) {
+				this.noBinChangesStarted.incrementAndGet();
 			}
 		}
-		return fileDate;
+	}
+
+	/**
+	 * helper to finish a change to the bins started with startBinChange
+	 */
+	private void finishBinChange() {
+		this.noBinChangesFinished.incrementAndGet();
 	}
 	
-	private boolean loadConsolidatedData(Context context) {
-		// what would the filename for this time be?...
-		String filename = getFilename();
-		FileInputStream inputStream;
-		char[] inputBuffer= new char[2048];
-		boolean success = false;
+	private boolean loadConsolidatedData() {
+		// read the data for this time from the storage of the store
+		ByteBuffer buffer = this.store.readHistoryContents(this.dataTimeKey);
+		if (null == buffer) {
+			// fine, not saved yet is all...
+			return false;
+		}
+		return setDataFromFile(buffer);
+	}
+
+	/**
+	 * initialise the bins from the contents of a file, binary or old text (version 1)
+	 * @param buffer is the buffer containing the file, from the position to the limit
+	 * @return true if the contents were valid and loaded
+	 */
+	boolean setDataFromFile(ByteBuffer buffer) {
+		FileData data = readFileData(buffer, getFilename());
+		if (null == data) {
+			// not valid, start again
+			return false;
+		}
+		if (data.epochDay < this.dataEpochDay || (data.isOldFormat && data.epochDay != this.dataEpochDay)) {
+			// the name is the key of the data, so keep the data but warn about this
+			Log.w(MainActivity.TAG, "File is for day " + data.epochDay + " not " + this.dataEpochDay + " " + getFilename());
+		}
+		else if (false == data.isOldFormat) {
+			// a rolled up history has data up to this day folded into it
+			this.foldedEpochDay = data.epochDay;
+		}
+		this.fileSequence = data.sequence;
+		startBinChange();
+		for (int i = 0; i < this.binFrequencies.length(); ++i) {
+			// set each bin, any missing from the file are just empty
+			this.binFrequencies.set(i, i < data.frequencies.length ? data.frequencies[i] : 0);
+		}
+		finishBinChange();
+		if (data.isOldFormat && this.dataTimeKey.equals(BleConnectionHistoryStore.formatDayKey(this.dataEpochDay))) {
+			// this is the old text file of the day, write it in the new format on the next save
+			setDirty();
+		}
+		return true;
+	}
+
+	/**
+	 * the data read from the contents of a file, without loading it into a history
+	 */
+	static class FileData {
+		/** the last day of the data in the file, in days since the epoch */
+		final int epochDay;
+		/** the frequency of the data in each bin, as many bins as are in the file */
+		final int[] frequencies;
+		/** true if the file is an old text (version 1) file */
+		final boolean isOldFormat;
+		/** the sequence in the journal of the first sample not in the file, -1 if not known */
+		final long sequence;
+
+		FileData(int epochDay, int[] frequencies, boolean isOldFormat, long sequence) {
+			this.epochDay = epochDay;
+			this.frequencies = frequencies;
+			this.isOldFormat = isOldFormat;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * read the data from the contents of a file, binary or old text (version 1), without
+	 * creating a history, as when reading the fragments of a day to compact them into the day
+	 * @param buffer is the buffer containing the file, from the position to the limit
+	 * @param filename is the name of the file, to log
+	 * @return the data in the file, null if the contents are not valid
+	 */
+	static FileData readFileData(ByteBuffer buffer, String filename) {
 		try {
-			// open a stream to this file
-			inputStream = context.openFileInput(filename);
-			InputStreamReader inReader= new InputStreamReader(inputStream);
-			// read in the data in nice blocks
-			int charRead;
-			StringBuilder builder = new StringBuilder();
-			while ((charRead=inReader.read(inputBuffer)) > 0) {
-				// while data is loaded, add to the builder
-				String readstring=String.copyValueOf(inputBuffer,0,charRead);
-				builder.append(readstring); 
+			if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == K_FILEMAGIC) {
+				// this is a binary file
+				return readFileBytes(buffer, filename);
+			}
+			else {
+				// this is an old text file
+				return readFileContents(new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()), filename);
 			}
-			inReader.close();
-			inputStream.close();
-			// create the data
-			success = setDataFromFileContents(builder.toString());
 		}
 		catch (Exception e) {
-			// fine, file not there is all...
+			Log.e(MainActivity.TAG, "Failed to read the file " + filename, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * helper to read the data from the contents of a binary (version 2 or 3) file
+	 * @param buffer is the buffer containing the file, from the position to the limit
+	 * @param filename is the name of the file, to log
+	 * @return the data in the file, null if the contents are not valid
+	 */
+	private static FileData readFileBytes(ByteBuffer buffer, String filename) {
+		int start = buffer.position();
+		int length = buffer.remaining();
+		if (length < K_HEADERSIZENOSEQUENCE + K_CHECKSUMSIZE) {
+			Log.e(MainActivity.TAG, "File is too short to be valid " + filename);
+			return null;
+		}
+		int magic = buffer.getInt();
+		int version = buffer.getInt();
+		int epochDay = buffer.getInt();
+		int noBins = buffer.getInt();
+		if (magic != K_FILEMAGIC || (version != K_VERSION && version != K_VERSIONNOSEQUENCE)) {
+			Log.e(MainActivity.TAG, "unknown version number " + version);
+			return null;
+		}
+		int headerSize = version == K_VERSION ? K_HEADERSIZE : K_HEADERSIZENOSEQUENCE;
+		if (noBins < 0 || length != headerSize + noBins * 4 + K_CHECKSUMSIZE) {
+			Log.e(MainActivity.TAG, "File has the wrong size for " + noBins + " bins " + filename);
+			return null;
 		}
-		return success;
+		int checksum = buffer.getInt(start + length - K_CHECKSUMSIZE);
+		if (checksum != calculateChecksum(buffer, start, length - K_CHECKSUMSIZE)) {
+			Log.e(MainActivity.TAG, "File failed the checksum " + filename);
+			return null;
+		}
+		long sequence = version == K_VERSION ? buffer.getLong() : -1;
+		int[] frequencies = new int[noBins];
+		for (int i = 0; i < noBins; ++i) {
+			frequencies[i] = buffer.getInt();
+		}
+		buffer.position(start + length);
+		return new FileData(epochDay, frequencies, false, sequence);
 	}
 	
-	private boolean setDataFromFileContents(String fileString) {
-		// initialise the bins from the passed file string
-		boolean isSuccess = false;
+	/**
+	 * helper to read the data from the contents of an old text (version 1) file
+	 * @param fileString is the contents of the file
+	 * @param filename is the name of the file, to log
+	 * @return the data in the file, null if the contents are not valid
+	 */
+	private static FileData readFileContents(String fileString, String filename) {
 		int stringIndex = -1;
 		try {
 			String[] strings = fileString.split(",");
@@ -185,80 +397,190 @@ public class BleConnectionHistory<T> implements Comparable<BleConnectionHistory<
 			switch (version) {
 			case 1 :
 				// VERSION 1
-				this.dataTime = BleConnectionHistoryStore.consolidationFormat.parse(strings[++stringIndex]);
-				this.dataTimeKey = BleConnectionHistoryStore.consolidationFormat.format(this.dataTime);
-				// the rest of the data is data in pairs, offset and data
+				int epochDay = EpochDays.getEpochDay(new SimpleDateFormat(BleConnectionHistoryStore.K_DAYKEYFORMAT).parse(strings[++stringIndex]).getTime());
+				// the rest of the data is data in pairs, name and data
+				int[] frequencies = new int[(strings.length - stringIndex - 1) / 2];
 				int binIndex = 0;
-				synchronized (this.dataBins) {
-					for (int i = ++stringIndex; i < strings.length && binIndex < this.dataBins.length; i += 2) {
-						// create the data item and add to the list
-						Bin dataBin = new Bin(strings[i]);
-						dataBin.frequency = Integer.parseInt(strings[i + 1]);
-						this.dataBins[binIndex++] = dataBin;
-					}
+				for (int i = ++stringIndex; i + 1 < strings.length; i += 2) {
+					frequencies[binIndex++] = Integer.parseInt(strings[i + 1]);
 				}
-				isSuccess = true;
-				break;
+				return new FileData(epochDay, frequencies, true, -1);
 			default:
-				Log.e(MainActivity.TAG, "unknown version number " + strings[0]);
+				Log.e(MainActivity.TAG, "unknown version number " + strings[0] + " " + filename);
 				break;
 			}
 		} catch (Exception e) {
-			Log.e(MainActivity.TAG, "Failed to get some data from the file at string " + stringIndex, e);
+			Log.e(MainActivity.TAG, "Failed to get some data from the file " + filename + " at string " + stringIndex, e);
 		}
-		return isSuccess;
+		return null;
 	}
 	
-	private String toFileString() {
-		StringBuilder builder = new StringBuilder();
-		builder.append(K_VERSION);
-		builder.append(',');
-		builder.append(BleConnectionHistoryStore.consolidationFormat.format(this.dataTime));
-		builder.append(',');
-		synchronized (this.dataBins) {
-			for (Bin bin : this.dataBins) {
-				builder.append(bin.binName);
-				builder.append(",");
-				builder.append(bin.frequency);
-				builder.append(",");
+	/**
+	 * @return the contents of the binary file for this data, from position zero to the limit
+	 */
+	ByteBuffer toFileBytes() {
+		return toFileBytesWith(Collections.<int[]>emptyList());
+	}
+
+	/**
+	 * get the contents of the file this would have with other data added, as when compacting
+	 * the fragments of a day into it, without changing this
+	 * @param others are the frequencies of the bins of the data to add
+	 * @return the contents of the binary file, from position zero to the limit
+	 */
+	ByteBuffer toFileBytesWith(List<int[]> others) {
+		int[] frequencies = new int[getNoBins()];
+		copyBinFrequencies(frequencies);
+		for (int[] otherFrequencies : others) {
+			for (int i = 0; i < frequencies.length && i < otherFrequencies.length; ++i) {
+				frequencies[i] += otherFrequencies[i];
 			}
 		}
-		return builder.toString();
+		ByteBuffer buffer = ByteBuffer.allocate(K_HEADERSIZE + frequencies.length * 4 + K_CHECKSUMSIZE);
+		buffer.putInt(K_FILEMAGIC);
+		buffer.putInt(K_VERSION);
+		buffer.putInt(getLastEpochDay());
+		buffer.putInt(frequencies.length);
+		buffer.putLong(this.fileSequence);
+		for (int frequency : frequencies) {
+			buffer.putInt(frequency);
+		}
+		buffer.putInt(calculateChecksum(buffer, 0, buffer.position()));
+		buffer.flip();
+		return buffer;
 	}
 
-	public boolean saveDataToFile(Context context) {
-		boolean isSaved = false;
-		FileOutputStream outputStream;
-		try { 
-			outputStream = context.openFileOutput(getFilename(), Context.MODE_PRIVATE);
-			outputStream.write(toFileString().getBytes());
-			outputStream.close();
-			this.isDirtyFromFile = false;
-			isSaved = true;
-			Log.d(MainActivity.TAG, "Saved the file " + getFilename());
-		} catch (Exception e) {
-			Log.e(MainActivity.TAG, "Failed to store the file", e);
+	/**
+	 * helper to calculate the checksum of the contents of a file
+	 * @param buffer is the buffer containing the file
+	 * @param offset is the index of the first byte to include
+	 * @param length is the number of bytes to include
+	 * @return the CRC32 of the bytes
+	 */
+	private static int calculateChecksum(ByteBuffer buffer, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * save the data to the storage of the store, the data is left dirty if this fails
+	 * @return true if saved
+	 */
+	public boolean saveData() {
+		ByteBuffer contents = takeFileBytes(-1);
+		if (false == this.store.getStorage().writeBatch(Collections.singletonList(this.dataTimeKey), Collections.singletonList(contents))) {
+			setDirty();
+			return false;
 		}
-		return isSaved;
+		return true;
 	}
-	
-	@SuppressWarnings("unchecked")
-	public LinkedList<T> getRecentValues() {
-		synchronized (this.recentValues) {
-			return (LinkedList<T>) this.recentValues.clone();
+
+	/**
+	 * take the contents of the file to save, the data is saved as it is now. The data is
+	 * clean once this is taken, so if the save fails call setDirty to save it again
+	 * @param dataSequence is the sequence in the journal of the first sample not stored yet, -1 if not known
+	 * @return the contents of the file, to write to the storage
+	 */
+	ByteBuffer takeFileBytes(long dataSequence) {
+		// clear the dirty flag before taking the data, so anything added while saving is saved next time
+		this.isDirtyFromFile = false;
+		if (dataSequence >= 0) {
+			// every sample journaled before this is in the bins, so in the file, none after is
+			this.fileSequence = dataSequence;
 		}
+		return toFileBytes();
+	}
+
+	/**
+	 * @return the sequence in the journal of the first sample not in the file, -1 if not known
+	 */
+	long getFileSequence() {
+		return this.fileSequence;
+	}
+
+	/**
+	 * copy the recent values into the array, oldest first, without locking out the data being added
+	 * @param destination is the array to copy into, K_MEMORYSPAN long to get them all
+	 * @return the number of values copied
+	 */
+	public int copyRecentValues(int[] destination) {
+		return this.recentValues.copyRecent(destination);
+	}
+
+	/**
+	 * @return a version that changes every time data is added, to tell if the recent values changed
+	 */
+	public long getRecentValuesVersion() {
+		return this.recentValues.getVersion();
 	}
 
 	public int getNoBins() {
-		synchronized (this.dataBins) {
-			return this.dataBins.length;
-		}
+		return this.binFrequencies.length();
 	}
 	
 	public int getBinFrequency(int binIndex) {
-		synchronized (this.dataBins) {
-			return this.dataBins[binIndex].frequency;
+		return this.binFrequencies.get(binIndex);
+	}
+
+	/**
+	 * copy the frequencies of all the bins into the array, all as they were at the same moment,
+	 * without holding up the data being added. If the bins keep changing for K_MAXSNAPSHOTTRIES
+	 * tries the changes are held up for a moment, while the bins are copied, so this always ends
+	 * @param destination is the array to copy into, getNoBins() long to get them all
+	 * @return the version of the bins copied, as returned from getBinsVersion
+	 */
+	public long copyBinFrequencies(int[] destination) {
+		for (int i = 0; i < K_MAXSNAPSHOTTRIES; ++i) {
+			long version = tryCopyBinFrequencies(destination);
+			if (version >= 0) {
+				return version;
+			}
+			// a change is being made, let it finish
+			Thread.yield();
+		}
+		synchronized (this.binLock) {
+			// stop changes starting, each change already started can only finish or back out once
+			this.isBinsLocked = true;
+			try {
+				while (true) {
+					long version = tryCopyBinFrequencies(destination);
+					if (version >= 0) {
+						return version;
+					}
+					Thread.yield();
+				}
+			}
+			finally {
+				this.isBinsLocked = false;
+			}
+		}
+	}
+
+	/**
+	 * helper to copy the frequencies of the bins if nothing changes them while copying
+	 * @param destination is the array to copy into
+	 * @return the version of the bins copied, -1 if they were changing
+	 */
+	private long tryCopyBinFrequencies(int[] destination) {
+		long version = this.noBinChangesFinished.get();
+		if (this.noBinChangesStarted.get() == version) {
+			// nothing is being changed, copy them and check nothing started changing as we did
+			for (int i = 0; i < destination.length && i < this.binFrequencies.length(); ++i) {
+				destination[i] = this.binFrequencies.get(i);
+			}
+			if (this.noBinChangesStarted.get() == version) {
+				return version;
+			}
 		}
+		return -1;
+	}
+
+	/**
+	 * @return a version that changes every time a bin changes, to tell without locking if the bins changed
+	 */
+	public long getBinsVersion() {
+		return this.noBinChangesFinished.get();
 	}
 	
 	public String getBinName(int binIndex) {
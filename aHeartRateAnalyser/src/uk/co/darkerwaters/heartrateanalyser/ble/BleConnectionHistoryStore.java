@@ -1,12 +1,30 @@
 package uk.co.darkerwaters.heartrateanalyser.ble;
 
-import java.io.File;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import uk.co.darkerwaters.heartrateanalyser.MainActivity;
 import android.annotation.SuppressLint;
@@ -21,39 +39,96 @@ public abstract class BleConnectionHistoryStore<T> {
 	 * an interface to allow the derived classes to create the store of the proper type
 	 */
 	public interface Provider<T> {
-		BleConnectionHistoryStore<T> createNewStore(Context context);
+		/**
+		 * create a new store
+		 * @param context is the context for access to files
+		 * @param storeKey is the key to keep the data separate from other stores, typically the device address, can be null
+		 * @return the new store
+		 */
+		BleConnectionHistoryStore<T> createNewStore(Context context, String storeKey);
 	}
 	/*********PRODUCTION SETTINGS ********/
-	/** this is the key on which to consolidate, one file per day */
-	public static SimpleDateFormat consolidationFormat = new SimpleDateFormat("yyyy-MM-dd");
+	/** this is the format of the key on which to consolidate, one file per day, the days are found as days since the epoch */
+	public static final String K_DAYKEYFORMAT = "yyyy-MM-dd";
 	/** this is the movement for the time history, to align with the consolidation period */
 	public static final int K_TIMEHISTORYMOVEMENT = Calendar.DATE;
 	/** the number of historic files to keep, just keep the last 30 days */
 	public static final int K_MAXHISTORICFILES = 30;
-	/*********TESTING SETTINGS ********/
-	/** this is the key on which to consolidate, one file per minute */
-//	public static SimpleDateFormat consolidationFormat = new SimpleDateFormat("yyyy-MM-dd-hhmm");
-	/** this is the movement for the time history, to align with the consolidation period */
-//	public static final int K_TIMEHISTORYMOVEMENT = Calendar.MINUTE;
-	/** the number of historic files to keep, just keep the last 10 minutes */
-//	public static final int K_MAXHISTORICFILES = 10;
+	/** the number of histories to keep loaded, as many as are shown at once, the rest are loaded from their files when asked for */
+	public static final int K_MAXLOADEDHISTORIES = K_MAXHISTORICFILES;
+	/** the number of expired histories to roll up each time the store is saved */
+	private static final int K_MAXROLLUPSTEPS = 8;
+	/** the start of the keys of the weekly and monthly histories, and the format of their start date */
+	public static final String K_WEEKKEYPREFIX = "week-";
+	public static final String K_MONTHKEYPREFIX = "month-";
+	private static final String K_WEEKKEYFORMAT = "yyyy-MM-dd";
+	private static final String K_MONTHKEYFORMAT = "yyyy-MM";
+	/** the start of the key of the record of a compaction, kept until the compaction is done */
+	private static final String K_COMPACTKEYPREFIX = "compact-";
+	/** the marker at the start of the record of a compaction, "HRAC" */
+	private static final int K_COMPACTMAGIC = 0x48524143;
+	/** the number of fragmented days to compact each time the store is saved */
+	private static final int K_MAXCOMPACTSTEPS = 4;
+	/** the character set of the keys in the record of a compaction */
+	private static final Charset K_KEYCHARSET = Charset.forName("UTF-8");
 	/** the interval at which we will save files for the heck of it */
 	private static final long K_SAVEINTERVAL = 300000; /** five minutes */
 	/** the separator to use in the filename */
 	public static final String filePrefixSep = "--";
+	/** the separator between the packager prefix and the store key in the filename */
+	private static final String storeKeySep = "-";
 	/** this is the context that created this store, for access to android things, like files */
 	private final Context context;
-	/** this is the current history store in use now */
-	private BleConnectionHistory<T> currentHistory;
+	/** the key to keep this data separate from other stores, null for the data from before there were keys */
+	private final String storeKey;
+	/** the prefix for all the files this store creates */
+	private final String filePrefix;
+	/** the kind of storage the histories of this store, and those it takes, are kept in */
+	private final HistoryStorage.Backend storageBackend;
+	/** where the histories of this store are kept */
+	private final HistoryStorage storage;
+	/** this is the current history store in use now, read when deciding what to unload */
+	private volatile BleConnectionHistory<T> currentHistory;
+	/** the times the current history covers, to find it without formatting the time of every value */
+	private long currentHistoryStart = 0;
+	private long currentHistoryEnd = 0;
 	/** the last seen item of data */
 	private T lastData = null;
+	/** held while storing data with its sequence and while taking the data to save, so the two match */
+	private final Object dataLock = new Object();
 	/** the last time we saved a file for the heck of it - incase there is a crash */
-	private long lastSavePerformed;
+	private volatile long lastSavePerformed;
+	/** the time a new store waits for a store closing over the same files to finish */
+	private static final long K_CLOSETIMEOUT = 10000;
+	/** the stores that are closing, by their file prefix, so a new store over the same files can wait for them */
+	private static final ConcurrentHashMap<String, BleConnectionHistoryStore<?>> closingStores = new ConcurrentHashMap<String, BleConnectionHistoryStore<?>>();
+	/** held while a keyed store takes the histories kept before stores were keyed, so only one takes them */
+	private static final Object adoptLock = new Object();
+	/** the end of the key of a day taken from the store with no key when this store has the day too, compacted into the day */
+	private static final String K_ADOPTEDKEYSUFFIX = "-adopted";
+	/** the thread that saves the data to the files */
+	private final ScheduledExecutorService persistExecutor;
+	/** the task that saves the data, run on the persist thread */
+	private final Runnable flushTask;
+	/** true when a save has been asked for that has not started yet */
+	private final AtomicBoolean isFlushRequested = new AtomicBoolean(false);
+	/** the histories that have data not in their files */
+	private final Set<BleConnectionHistory<T>> dirtyHistories = Collections.newSetFromMap(new ConcurrentHashMap<BleConnectionHistory<T>, Boolean>());
+	/** the metrics of the saves, only written on the persist thread */
+	private volatile long noFlushes = 0;
+	private volatile long lastFlushNanos = 0;
+	private volatile long maxFlushNanos = 0;
+	private volatile long totalFlushNanos = 0;
+	private volatile long bytesWritten = 0;
+	private volatile long noFilesWritten = 0;
+	/** the clock that gives the time of the data stored */
+	private volatile BleClock clock = BleClock.SYSTEM;
 	/**
 	 * an interface to a class that will package data in this store into a series of data bins
 	 */
 	public interface StorePackager<T> {
 		public T dataFromString(String data);
+		public int dataToInt(T data);
 		public int getNoBins();
 		public int getBinIndex(T data);
 		public String getBinName(int binIndex);
@@ -62,22 +137,133 @@ public abstract class BleConnectionHistoryStore<T> {
 	}
 	/** member to perform the consolidation binning task for the data */
 	private final StorePackager<T> packager;
-	/** the list of historic collections we are to keep / show */
-	private final ArrayList<BleConnectionHistory<T>> historicStore;
+	/** the days there is history for, key to start time, found from the names of the files and sorted oldest first */
+	private final TreeMap<String, Date> historicDays;
+	/** true once the files have been listed to find the historic days, guarded by historicDays */
+	private boolean isHistoricDaysIndexed = false;
+	/** counted down once the persist thread has found the histories there are */
+	private final CountDownLatch openedLatch = new CountDownLatch(1);
+	/** the weekly and monthly histories rolled up from the days, key to start time, guarded by historicDays */
+	private final TreeMap<String, Date> historicWeeks;
+	private final TreeMap<String, Date> historicMonths;
+	/** the policy of how long the history is kept for */
+	private volatile RetentionPolicy retentionPolicy = RetentionPolicy.createDefault();
+	/** the number of histories rolled up as they expired */
+	private volatile long noRolledUp = 0;
+	/** the histories loaded, least recently used first, guarded by historicDays */
+	private final LinkedHashMap<String, BleConnectionHistory<T>> loadedHistories;
+	/** the number of times a history was loaded from its file */
+	private volatile long noHistoriesLoaded = 0;
+	/** the contents of histories read together, taken by each history as it is created, guarded by historicDays */
+	private final HashMap<String, ByteBuffer> preloadedContents = new HashMap<String, ByteBuffer>();
+	/** the days and the histories loaded as they were last changed, copied each change so read without a lock, null until indexed */
+	private volatile HistoryIndex<T> publishedIndex = null;
+	/**
+	 * the days there is history for and the histories loaded, never changed once published
+	 */
+	private static class HistoryIndex<T> {
+		/** the days, key to start time, oldest first */
+		final TreeMap<String, Date> days;
+		/** the histories loaded, by the key of their day */
+		final TreeMap<String, BleConnectionHistory<T>> loaded;
+
+		HistoryIndex(Map<String, Date> days, Map<String, BleConnectionHistory<T>> loaded) {
+			this.days = new TreeMap<String, Date>(days);
+			this.loaded = new TreeMap<String, BleConnectionHistory<T>>(loaded);
+		}
+	}
+	/** the keys of the histories of a day that are not its key, from older versions, by the key of the day, guarded by historicDays */
+	private final TreeMap<String, List<String>> fragmentedDays = new TreeMap<String, List<String>>();
+	/** the history of the day being compacted, never unloaded while it is, guarded by historicDays */
+	private BleConnectionHistory<T> compactingHistory = null;
+	/** the metrics of compacting the fragmented days */
+	private volatile long noFilesCompacted = 0;
+	private volatile long bytesReclaimed = 0;
 	/**
 	 * constructor
 	 * @param context
 	 * @param packager
 	 */
 	public BleConnectionHistoryStore(Context context, StorePackager<T> packager) {
+		this(context, packager, null);
+	}
+	/**
+	 * constructor
+	 * @param context
+	 * @param packager
+	 * @param storeKey is the key to keep this data separate from other stores, typically the device address, can be null
+	 */
+	public BleConnectionHistoryStore(Context context, StorePackager<T> packager, String storeKey) {
+		this(context, packager, storeKey, FileHistoryStorage.K_BACKEND);
+	}
+	/**
+	 * constructor
+	 * @param context
+	 * @param packager
+	 * @param storeKey is the key to keep this data separate from other stores, typically the device address, can be null
+	 * @param storageBackend is the kind of storage to keep the histories in
+	 */
+	public BleConnectionHistoryStore(Context context, StorePackager<T> packager, String storeKey, HistoryStorage.Backend storageBackend) {
 		// set the members
 		this.context = context;
 		this.packager = packager;
+		this.storeKey = storeKey;
+		this.filePrefix = createFilePrefix(packager, storeKey);
+		this.storageBackend = storageBackend;
+		this.storage = storageBackend.create(context, this.filePrefix);
 		this.currentHistory = null;
-		this.historicStore = new ArrayList<BleConnectionHistory<T>>(K_MAXHISTORICFILES);
-		// try to load all the files from the device at this point
-		loadHistories();
-		this.lastSavePerformed = System.currentTimeMillis();
+		this.historicDays = new TreeMap<String, Date>();
+		this.historicWeeks = new TreeMap<String, Date>();
+		this.historicMonths = new TreeMap<String, Date>();
+		this.loadedHistories = new LinkedHashMap<String, BleConnectionHistory<T>>(K_MAXLOADEDHISTORIES * 2, 0.75f, true);
+		// create the thread that saves the data, so storing data is never held up by the files
+		final String threadName = "HistoryPersist " + this.filePrefix;
+		this.persistExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.flushTask = new Runnable() {
+			@Override
+			public void run() {
+				// clear the request first, anything requested while we save needs another save
+				isFlushRequested.set(false);
+				saveStoreContents(true);
+			}
+		};
+		// find the histories there are on the persist thread, before it saves anything, the data is loaded when asked for
+		this.persistExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					awaitPreviousStoreClosed();
+					indexHistoricDays();
+				}
+				finally {
+					openedLatch.countDown();
+				}
+			}
+		});
+		this.lastSavePerformed = this.clock.currentTimeMillis();
+		// and save every now and again for the heck of it, incase there is a crash
+		this.persistExecutor.scheduleWithFixedDelay(this.flushTask, K_SAVEINTERVAL, K_SAVEINTERVAL, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * @return the clock that gives the time of the data stored
+	 */
+	public BleClock getClock() {
+		return this.clock;
+	}
+	/**
+	 * set the clock to use for the time of the data stored, to replay data from a simulated clock
+	 * @param clock is the clock to use
+	 */
+	public void setClock(BleClock clock) {
+		this.clock = clock;
+		this.lastSavePerformed = clock.currentTimeMillis();
 	}
 	/**
 	 * @return the store packager implementation
@@ -85,6 +271,46 @@ public abstract class BleConnectionHistoryStore<T> {
 	public StorePackager<T> getPackager() {
 		return this.packager;
 	}
+	/**
+	 * @return the key that keeps this data separate from other stores, null if not keyed
+	 */
+	public String getStoreKey() {
+		return this.storeKey;
+	}
+	/**
+	 * @return the prefix of all the files this store creates
+	 */
+	public String getFilePrefix() {
+		return this.filePrefix;
+	}
+	/**
+	 * helper to create the file prefix for a store, keys are stripped of anything not letters or digits
+	 * @param packager is the packager of the data
+	 * @param storeKey is the key of the store, can be null
+	 * @return the file prefix to use
+	 */
+	private static String createFilePrefix(StorePackager<?> packager, String storeKey) {
+		if (null == storeKey || storeKey.isEmpty()) {
+			// not keyed, just use the packager's prefix as we always did
+			return packager.getFilePrefix();
+		}
+		else {
+			// device addresses have colons in, just keep the letters and numbers
+			return packager.getFilePrefix() + storeKeySep + storeKey.replaceAll("[^A-Za-z0-9]", "");
+		}
+	}
+	/**
+	 * @return where the histories of this store are kept
+	 */
+	public HistoryStorage getStorage() {
+		return this.storage;
+	}
+	/**
+	 * @return the kind of storage the histories of this store are kept in
+	 */
+	public HistoryStorage.Backend getStorageBackend() {
+		return this.storageBackend;
+	}
 	/**
 	 * @return the last seen value - null if nothing
 	 */
@@ -98,164 +324,1130 @@ public abstract class BleConnectionHistoryStore<T> {
 	private Date getOldestPermissableDate() {
 		// get now as a calendar
 		Calendar now = Calendar.getInstance();
+		now.setTimeInMillis(this.clock.currentTimeMillis());
 		// move the "now" time back the number of movements into the past
-		now.add(K_TIMEHISTORYMOVEMENT, -1 * K_MAXHISTORICFILES);
+		now.add(K_TIMEHISTORYMOVEMENT, -1 * this.retentionPolicy.getNoDays());
 		// this is the oldest permissable date we want to keep
 		return now.getTime();
 	}
 	/**
-	 * helper to load the history files on creation of this store
+	 * helper to find the days, weeks and months there is history for from the keys in the storage,
+	 * without reading them. Those that have expired are rolled up on the persist thread. This is
+	 * only done the first time it is called, which opens the storage, by the persist thread as the
+	 * store opens or the thread storing data if that gets there first. Until then there are none to read
 	 */
-	private void loadHistories(){
-		File filesDir = this.context.getFilesDir();
-		if (null == filesDir) {
-			// no files dir, probably in edit demo mode, fine
-			return;
+	private void indexHistoricDays() {
+		synchronized (this.historicDays) {
+			if (this.isHistoricDaysIndexed) {
+				// already done
+				return;
+			}
+			this.isHistoricDaysIndexed = true;
+			if (false == this.storage.open()) {
+				// no storage, probably in edit demo mode, fine
+				publishIndex();
+				return;
+			}
+			// before there were keys all the data was in the store with no key, take it so it isn't hidden
+			adoptUnkeyedHistories();
+			SimpleDateFormat weekFormat = new SimpleDateFormat(K_WEEKKEYFORMAT);
+			SimpleDateFormat monthFormat = new SimpleDateFormat(K_MONTHKEYFORMAT);
+			// the keys of days from older versions are parsed as loosely as they always were, to compact them
+			SimpleDateFormat dayFormat = new SimpleDateFormat(K_DAYKEYFORMAT);
+			List<String> compactionKeys = new ArrayList<String>();
+			for (String key : this.storage.listKeys()) {
+				// for each history, index it as the period it is of
+				try {
+					if (key.startsWith(K_COMPACTKEYPREFIX)) {
+						// this is a compaction that was interrupted, finish it once we know the fragments there are
+						compactionKeys.add(key);
+					}
+					else if (key.startsWith(K_WEEKKEYPREFIX)) {
+						// this is a week rolled up from the days
+						this.historicWeeks.put(key, weekFormat.parse(key.substring(K_WEEKKEYPREFIX.length())));
+					}
+					else if (key.startsWith(K_MONTHKEYPREFIX)) {
+						// this is a month rolled up from the weeks
+						this.historicMonths.put(key, monthFormat.parse(key.substring(K_MONTHKEYPREFIX.length())));
+					}
+					else {
+						// OK then, this is a day we have, it is loaded when it is asked for
+						int epochDay = EpochDays.getEpochDay(dayFormat.parse(key).getTime());
+						String dayKey = formatDayKey(epochDay);
+						this.historicDays.put(dayKey, new Date(EpochDays.getDayStartTime(epochDay)));
+						if (false == dayKey.equals(key)) {
+							// this is more data for the day under another key, compact it into the day
+							List<String> fragments = this.fragmentedDays.get(dayKey);
+							if (null == fragments) {
+								fragments = new ArrayList<String>();
+								this.fragmentedDays.put(dayKey, fragments);
+							}
+							fragments.add(key);
+						}
+					}
+				}
+				catch (ParseException e) {
+					// fine, just not a valid key is all...
+				}
+			}
+			for (String key : compactionKeys) {
+				// before anything reads the days
+				resumeCompaction(key);
+			}
+			publishIndex();
+		}
+	}
+
+	/**
+	 * compact the days that have their data in more than one history into one history each,
+	 * writing the day with all the data and deleting the rest. This does a few each time it is
+	 * called, asking for another save if there are more to do. Only to be run on the persist thread
+	 */
+	private void compactHistories() {
+		List<String> dayKeys;
+		synchronized (this.historicDays) {
+			dayKeys = new ArrayList<String>(this.fragmentedDays.keySet());
+		}
+		int noCompacted = 0;
+		for (String dayKey : dayKeys) {
+			if (noCompacted >= K_MAXCOMPACTSTEPS) {
+				// there are more to do, do them on the next save rather than all in one go
+				requestFlush();
+				return;
+			}
+			if (compactDay(dayKey)) {
+				++noCompacted;
+			}
+		}
+	}
+
+	/**
+	 * helper to compact the fragments of a day into its history. What is done is recorded first
+	 * so it can be finished by resumeCompaction if interrupted, the record has the contents of
+	 * the day with all the data, so the history of the day must not have data not in its file.
+	 * Only to be run on the persist thread, historicDays is not held while reading and writing
+	 * @param dayKey is the key of the day
+	 * @return true if compacted, false to try again later
+	 */
+	private boolean compactDay(String dayKey) {
+		List<String> sources;
+		Date date;
+		BleConnectionHistory<T> history;
+		synchronized (this.historicDays) {
+			List<String> fragmentKeys = this.fragmentedDays.get(dayKey);
+			date = this.historicDays.get(dayKey);
+			if (null == fragmentKeys || null == date) {
+				// compacted, or rolled up, already
+				return false;
+			}
+			history = this.loadedHistories.get(dayKey);
+			if (null == history) {
+				// load it as it will be if asked for, so there is only ever the one
+				history = createHistory(date, this.context);
+				addLoadedHistory(history);
+				++this.noHistoriesLoaded;
+			}
+			if (history == this.currentHistory || history.isDirtyFromFile()) {
+				// this has data not in its file, compact it once that is saved
+				return false;
+			}
+			// keep this loaded until done, another loaded from the file now might miss the fragments
+			sources = new ArrayList<String>(fragmentKeys);
+			this.compactingHistory = history;
 		}
-		Date oldest = getOldestPermissableDate();
-		// now go through all the files and load up the data
-		for (File file : filesDir.listFiles()) {
-			// for each file, load it if the date is to be summarized
-			Date fileDate = BleConnectionHistory.getDateOfFile(this.packager, file);
-			if (null == fileDate) {
-				// this is not a valid file, ignore it
-			}
-			else if (fileDate.before(oldest)) {
-				// this is out-of-date, remove this file
-				if (false == file.delete()) {
-					Log.e(MainActivity.TAG, "Failed to delete the out-of-date consolidated file: " + file.getName());
+		try {
+			// the reading and writing is done without the lock, only this thread changes the files of the day
+			List<int[]> fragments = new ArrayList<int[]>(sources.size());
+			for (Iterator<String> i = sources.iterator(); i.hasNext(); ) {
+				// read just the data of each, a history of a fragment would be saved over the day
+				String source = i.next();
+				ByteBuffer fragment = this.storage.read(source);
+				BleConnectionHistory.FileData data = null == fragment ? null : BleConnectionHistory.readFileData(fragment, source);
+				if (null == data) {
+					// keep the file rather than lose what can't be read, but don't try it again on every save
+					Log.e(MainActivity.TAG, "Failed to read the fragment " + source + " of " + dayKey);
+					i.remove();
+					forgetFragment(dayKey, source);
 				}
 				else {
-					Log.i(MainActivity.TAG, "Deleted the out-of-date consolidated file: " + file.getName());
+					fragments.add(data.frequencies);
 				}
-				// and just move on to the next file
 			}
-			else {
-				// OK then, this is a file we want, load it up
-				BleConnectionHistory<T> history = new BleConnectionHistory<T>(fileDate, this.context, this);
-				BleConnectionHistory<T> existingData = getHistoryData(history.getFileDateKey());
-				if (null == existingData) {
-					// and add to our list
-					synchronized (this.historicStore) {
-						this.historicStore.add(history);
+			if (sources.isEmpty()) {
+				// nothing to compact into the day
+				return false;
+			}
+			// merge the fragments into the contents of the day, and record this before doing it
+			ByteBuffer contents = history.toFileBytesWith(fragments);
+			String recordKey = K_COMPACTKEYPREFIX + dayKey;
+			if (false == this.storage.writeBatch(Collections.singletonList(recordKey), Collections.singletonList(createCompactionRecord(sources, contents)))) {
+				Log.e(MainActivity.TAG, "Failed to record the compaction of " + dayKey);
+				return false;
+			}
+			if (false == this.storage.writeBatch(Collections.singletonList(dayKey), Collections.singletonList(contents))) {
+				// nothing is changed, the record finishes this if it is not deleted
+				Log.e(MainActivity.TAG, "Failed to write the compacted history " + dayKey);
+				this.storage.delete(recordKey);
+				return false;
+			}
+			// the file of the day has all the data now, as must the history, anything added since is still to save
+			for (int[] fragment : fragments) {
+				history.addFrequencies(fragment);
+			}
+			deleteCompactedSources(dayKey, sources, recordKey);
+			return true;
+		}
+		finally {
+			synchronized (this.historicDays) {
+				this.compactingHistory = null;
+			}
+		}
+	}
+
+	/**
+	 * helper to finish a compaction that was interrupted, from its record. Must be called synchronized on historicDays
+	 * @param recordKey is the key of the record of the compaction
+	 */
+	private void resumeCompaction(String recordKey) {
+		String dayKey = recordKey.substring(K_COMPACTKEYPREFIX.length());
+		ByteBuffer record = this.storage.read(recordKey);
+		List<String> sources = new ArrayList<String>();
+		ByteBuffer contents = null;
+		if (null != record) {
+			try {
+				if (record.getInt() == K_COMPACTMAGIC) {
+					int noSources = record.getInt();
+					for (int i = 0; i < noSources; ++i) {
+						byte[] source = new byte[record.getShort()];
+						record.get(source);
+						sources.add(new String(source, K_KEYCHARSET));
 					}
-					Log.i(MainActivity.TAG, "Loaded file: " + file.getName());
-				}
-				else {
-					// merge this data
-					existingData.addDataFrom(history);
-					Log.i(MainActivity.TAG, "Merged file: " + file.getName());
+					contents = record.slice();
 				}
 			}
+			catch (BufferUnderflowException e) {
+				// not a whole record
+				contents = null;
+			}
+		}
+		if (null == contents) {
+			// the record was never written, so nothing else was, the fragments are compacted again
+			Log.w(MainActivity.TAG, "Discarding the invalid compaction record " + recordKey);
+			this.storage.delete(recordKey);
+			return;
+		}
+		List<String> fragments = this.fragmentedDays.get(dayKey);
+		List<String> remaining = new ArrayList<String>();
+		for (String source : sources) {
+			if (null != fragments && fragments.contains(source)) {
+				remaining.add(source);
+			}
+		}
+		if (remaining.isEmpty()) {
+			// the day was written before any were deleted, and might have more data since, just forget the record
+			this.storage.delete(recordKey);
+			return;
+		}
+		// the contents are the day and the fragments as they were, and still are, so write them
+		if (false == this.storage.writeBatch(Collections.singletonList(dayKey), Collections.singletonList(contents))) {
+			// leave it all to try again next time
+			Log.e(MainActivity.TAG, "Failed to write the compacted history " + dayKey);
+			return;
+		}
+		Log.i(MainActivity.TAG, "Resuming the compaction of " + dayKey);
+		deleteCompactedSources(dayKey, remaining, recordKey);
+	}
+
+	/**
+	 * helper to delete the fragments of a day once they are in the history of the day, then the
+	 * record of doing so. Only to be run on the persist thread, or while indexing, historicDays
+	 * is only held to forget each fragment deleted
+	 * @param dayKey is the key of the day
+	 * @param sources are the keys of the fragments
+	 * @param recordKey is the key of the record of the compaction
+	 */
+	private void deleteCompactedSources(String dayKey, List<String> sources, String recordKey) {
+		long noBytes = 0;
+		int noDeleted = 0;
+		boolean isAllDeleted = true;
+		for (String source : new ArrayList<String>(sources)) {
+			ByteBuffer contents = this.storage.read(source);
+			if (this.storage.delete(source)) {
+				noBytes += null == contents ? 0 : contents.remaining();
+				++noDeleted;
+				forgetFragment(dayKey, source);
+			}
+			else {
+				Log.e(MainActivity.TAG, "Failed to delete the compacted history " + source);
+				isAllDeleted = false;
+			}
+		}
+		// the record is only wanted while there are fragments that might not be in the day
+		if (isAllDeleted && false == this.storage.delete(recordKey)) {
+			Log.w(MainActivity.TAG, "Failed to delete the compaction record " + recordKey);
+		}
+		this.noFilesCompacted += noDeleted;
+		this.bytesReclaimed += noBytes;
+		Log.i(MainActivity.TAG, "Compacted " + noDeleted + " histories, " + noBytes + " bytes, into " + dayKey);
+	}
+
+	/**
+	 * helper to stop compacting a fragment into its day, once deleted or if it can't be read
+	 * @param dayKey is the key of the day
+	 * @param source is the key of the fragment
+	 */
+	private void forgetFragment(String dayKey, String source) {
+		synchronized (this.historicDays) {
+			List<String> fragments = this.fragmentedDays.get(dayKey);
+			if (null != fragments && fragments.remove(source) && fragments.isEmpty()) {
+				this.fragmentedDays.remove(dayKey);
+			}
+		}
+	}
+
+	/**
+	 * helper to create the record of a compaction, the marker, the keys of the fragments and the
+	 * contents of the day with them all in
+	 * @param sources are the keys of the fragments
+	 * @param contents are the contents of the day, from the position to the limit
+	 * @return the record, from position zero to the limit
+	 */
+	private static ByteBuffer createCompactionRecord(List<String> sources, ByteBuffer contents) {
+		List<byte[]> keys = new ArrayList<byte[]>(sources.size());
+		int size = 8 + contents.remaining();
+		for (String source : sources) {
+			byte[] key = source.getBytes(K_KEYCHARSET);
+			keys.add(key);
+			size += 2 + key.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.putInt(K_COMPACTMAGIC);
+		record.putInt(keys.size());
+		for (byte[] key : keys) {
+			record.putShort((short) key.length);
+			record.put(key);
+		}
+		record.put(contents.duplicate());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * @return the number of histories of days compacted into the history of their day and deleted
+	 */
+	public long getNoFilesCompacted() {
+		return this.noFilesCompacted;
+	}
+
+	/**
+	 * @return the number of bytes of the histories compacted and deleted
+	 */
+	public long getBytesReclaimed() {
+		return this.bytesReclaimed;
+	}
+
+	/**
+	 * @return the number of days that have histories still to compact
+	 */
+	public int getNoFragmentedDays() {
+		synchronized (this.historicDays) {
+			return this.fragmentedDays.size();
+		}
+	}
+
+	/**
+	 * @return the policy of how long the history is kept for
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return this.retentionPolicy;
+	}
+
+	/**
+	 * set the policy of how long the history is kept for, the history is rolled up to this on the persist thread
+	 * @param policy is the policy to use
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		if (null == policy) {
+			throw new IllegalArgumentException("The retention policy cannot be null");
+		}
+		this.retentionPolicy = policy;
+		requestFlush();
+	}
+
+	/**
+	 * @return the keys of the weekly histories rolled up from the days, oldest first
+	 */
+	public String[] getHistoricWeekKeys() {
+		synchronized (this.historicDays) {
+			return this.historicWeeks.keySet().toArray(new String[this.historicWeeks.size()]);
+		}
+	}
+
+	/**
+	 * @return the keys of the monthly histories rolled up from the weeks, oldest first
+	 */
+	public String[] getHistoricMonthKeys() {
+		synchronized (this.historicDays) {
+			return this.historicMonths.keySet().toArray(new String[this.historicMonths.size()]);
+		}
+	}
+
+	/**
+	 * get a weekly or monthly history, loaded from its file each time as these are rarely looked at
+	 * @param key is the key of the history, from getHistoricWeekKeys or getHistoricMonthKeys
+	 * @return the history, null if there is not one
+	 */
+	public BleConnectionHistory<T> getRolledUpHistory(String key) {
+		Date start;
+		synchronized (this.historicDays) {
+			start = key.startsWith(K_WEEKKEYPREFIX) ? this.historicWeeks.get(key) : this.historicMonths.get(key);
+		}
+		return null == start ? null : new BleConnectionHistory<T>(start, key, this.context, this);
+	}
+
+	/**
+	 * @return the number of histories rolled up into longer periods, or deleted, as they expired
+	 */
+	public long getNoRolledUp() {
+		return this.noRolledUp;
+	}
+
+	/**
+	 * helper to get the start of the period a time is in
+	 * @param time is the time
+	 * @param period is Calendar.WEEK_OF_YEAR or Calendar.MONTH
+	 * @return the start of the period, weeks start on a Monday
+	 */
+	private static Date getPeriodStart(Date time, int period) {
+		Calendar start = Calendar.getInstance();
+		start.setTime(time);
+		start.set(Calendar.HOUR_OF_DAY, 0);
+		start.set(Calendar.MINUTE, 0);
+		start.set(Calendar.SECOND, 0);
+		start.set(Calendar.MILLISECOND, 0);
+		if (period == Calendar.MONTH) {
+			start.set(Calendar.DAY_OF_MONTH, 1);
+		}
+		else {
+			while (start.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY) {
+				start.add(Calendar.DATE, -1);
+			}
+		}
+		return start.getTime();
+	}
+
+	/**
+	 * helper to get the key of the weekly or monthly history of a period
+	 * @param start is the start of the period
+	 * @param period is Calendar.WEEK_OF_YEAR or Calendar.MONTH
+	 * @return the key of the history
+	 */
+	private static String getPeriodKey(Date start, int period) {
+		if (period == Calendar.MONTH) {
+			return K_MONTHKEYPREFIX + new SimpleDateFormat(K_MONTHKEYFORMAT).format(start);
+		}
+		else {
+			return K_WEEKKEYPREFIX + new SimpleDateFormat(K_WEEKKEYFORMAT).format(start);
 		}
-		synchronized (this.historicStore) {
-			// we want the list to be sorted so we can just pop the oldest each time
-			Collections.sort(this.historicStore);
+	}
+
+	/**
+	 * roll up the expired histories into the histories of longer periods, as the retention policy
+	 * says. This does a few, oldest first, each time it is called so it never holds up the saving
+	 * of the data, asking for another save if there are more to do. Only to be run on the persist thread
+	 */
+	private void rollUpHistories() {
+		RetentionPolicy policy = this.retentionPolicy;
+		// work out the oldest of each period to keep, each tier is kept after the last
+		Date oldestDay = getOldestPermissableDate();
+		Calendar oldest = Calendar.getInstance();
+		oldest.setTime(oldestDay);
+		oldest.add(Calendar.WEEK_OF_YEAR, -1 * policy.getNoWeeks());
+		Date oldestWeek = oldest.getTime();
+		oldest.add(Calendar.MONTH, -1 * Math.max(0, policy.getNoMonths()));
+		Date oldestMonth = policy.isKeepingMonthsForever() ? null : oldest.getTime();
+		// days go into weeks, or months if not keeping weeks, and weeks go into months
+		int dayTarget = policy.isKeepingWeeks() ? Calendar.WEEK_OF_YEAR : (policy.isKeepingMonths() ? Calendar.MONTH : -1);
+		int weekTarget = policy.isKeepingMonths() ? Calendar.MONTH : -1;
+		for (int step = 0; step < K_MAXROLLUPSTEPS; ++step) {
+			boolean isRolledUp = rollUpOldest(this.historicDays, oldestDay, dayTarget)
+					|| rollUpOldest(this.historicWeeks, oldestWeek, weekTarget)
+					|| (null != oldestMonth && rollUpOldest(this.historicMonths, oldestMonth, -1));
+			if (false == isRolledUp) {
+				// nothing more has expired
+				return;
+			}
 		}
+		// there might be more to do, do them on the next save rather than all in one go
+		requestFlush();
+	}
+
+	/**
+	 * helper to roll up the oldest history of a period, if expired, into the history of a longer period
+	 * @param periods are the histories of the period, guarded by historicDays
+	 * @param oldest is the oldest start of a period to keep
+	 * @param target is the longer period to roll up into, Calendar.WEEK_OF_YEAR, Calendar.MONTH or -1 to just delete it
+	 * @return true if a history was rolled up
+	 */
+	private boolean rollUpOldest(TreeMap<String, Date> periods, Date oldest, int target) {
+		String key;
+		Date start;
+		BleConnectionHistory<T> history;
+		synchronized (this.historicDays) {
+			Map.Entry<String, Date> first = periods.isEmpty() ? null : periods.firstEntry();
+			if (null == first || false == first.getValue().before(oldest)) {
+				// there is nothing here that has expired
+				return false;
+			}
+			if (periods == this.historicDays && this.fragmentedDays.containsKey(first.getKey())) {
+				// roll it up once all its data is in the one history
+				return false;
+			}
+			key = first.getKey();
+			start = first.getValue();
+			history = periods == this.historicDays ? this.loadedHistories.get(key) : null;
+		}
+		if (null == history) {
+			// not loaded, load it from the file
+			history = periods == this.historicDays ? createHistory(start, this.context) : new BleConnectionHistory<T>(start, key, this.context, this);
+		}
+		String targetKey = null;
+		Date targetStart = null;
+		if (target != -1) {
+			// fold this into the history of the longer period, and save that before deleting this
+			targetStart = getPeriodStart(start, target);
+			targetKey = getPeriodKey(targetStart, target);
+			BleConnectionHistory<T> targetHistory = new BleConnectionHistory<T>(targetStart, targetKey, this.context, this);
+			if (targetHistory.foldIn(history) && false == targetHistory.saveData()) {
+				Log.e(MainActivity.TAG, "Failed to save the rolled up history " + targetHistory.getFilename());
+				return false;
+			}
+		}
+		// the data is safely in the longer period, delete this one
+		if (false == this.storage.delete(key)) {
+			Log.e(MainActivity.TAG, "Failed to delete the rolled up history " + history.getFilename());
+			return false;
+		}
+		synchronized (this.historicDays) {
+			periods.remove(key);
+			this.loadedHistories.remove(key);
+			if (target == Calendar.WEEK_OF_YEAR) {
+				this.historicWeeks.put(targetKey, targetStart);
+			}
+			else if (target == Calendar.MONTH) {
+				this.historicMonths.put(targetKey, targetStart);
+			}
+			publishIndex();
+		}
+		++this.noRolledUp;
+		Log.i(MainActivity.TAG, "Rolled up " + history.getFilename() + (null == targetKey ? "" : " into " + targetKey));
+		return true;
+	}
+
+	/**
+	 * helper to remember a history as loaded, unloading the least recently used ones that are
+	 * saved if there are now too many. Must be called synchronized on historicDays
+	 * @param history is the history now loaded
+	 */
+	private void addLoadedHistory(BleConnectionHistory<T> history) {
+		this.loadedHistories.put(history.getFileDateKey(), history);
+		Iterator<BleConnectionHistory<T>> iterator = this.loadedHistories.values().iterator();
+		while (this.loadedHistories.size() > K_MAXLOADEDHISTORIES && iterator.hasNext()) {
+			BleConnectionHistory<T> loaded = iterator.next();
+			if (loaded != history && loaded != this.currentHistory && loaded != this.compactingHistory && false == loaded.isDirtyFromFile()) {
+				// this is all in the file, and not being stored in, so can be loaded again if wanted
+				iterator.remove();
+			}
+		}
+		publishIndex();
+	}
+
+	/**
+	 * helper to publish a copy of the days and the histories loaded, for them to be read without
+	 * holding historicDays. Must be called synchronized on historicDays after changing either
+	 */
+	private void publishIndex() {
+		this.publishedIndex = new HistoryIndex<T>(this.historicDays, this.loadedHistories);
 	}
 	
 	public BleConnectionHistory<T> getHistoryData(Date date) {
-		String fileDateKey = consolidationFormat.format(new Date());
+		String fileDateKey = formatDayKey(EpochDays.getEpochDay(date.getTime()));
 		return getHistoryData(fileDateKey);
 	}
 	
+	/**
+	 * get the history of a day, loading it if there is one not loaded. Those loaded are found without
+	 * taking any lock, so finding one does not count as using it when deciding which to unload
+	 * @param fileDateKey is the key of the day
+	 * @return the history, null if there is none for the day
+	 */
 	public BleConnectionHistory<T> getHistoryData(String fileDateKey) {
+		HistoryIndex<T> index = this.publishedIndex;
+		if (null != index && (index.loaded.containsKey(fileDateKey) || false == index.days.containsKey(fileDateKey))) {
+			// loaded, or there is no such day, so there is nothing to load
+			return index.loaded.get(fileDateKey);
+		}
 		BleConnectionHistory<T> toReturn = null;
-		synchronized (this.historicStore) {
-			for (BleConnectionHistory<T> history : this.historicStore) {
-				if (history.getFileDateKey().equals(fileDateKey)) {
-					toReturn = history;
+		synchronized (this.historicDays) {
+			// the days are only found by the persist thread, or the thread storing data, never the reader
+			toReturn = this.loadedHistories.get(fileDateKey);
+			Date fileDate = null == toReturn ? this.historicDays.get(fileDateKey) : null;
+			if (null != fileDate) {
+				// there is a file for this day that is not loaded, load it now
+				toReturn = createHistory(fileDate, this.context);
+				addLoadedHistory(toReturn);
+				++this.noHistoriesLoaded;
+			}
+		}
+		return toReturn;
+	}
+	
+	/**
+	 * get the histories of the days in the range, reading all those not loaded from the storage together
+	 * @param fromKey is the key of the first day
+	 * @param toKey is the key of the last day
+	 * @return the histories there are in the range, oldest first
+	 */
+	public List<BleConnectionHistory<T>> getHistoryData(String fromKey, String toKey) {
+		List<BleConnectionHistory<T>> histories = new ArrayList<BleConnectionHistory<T>>();
+		HistoryIndex<T> index = this.publishedIndex;
+		if (null != index) {
+			for (String key : index.days.subMap(fromKey, true, toKey, true).keySet()) {
+				BleConnectionHistory<T> history = index.loaded.get(key);
+				if (null == history) {
+					// this needs loading, do them all below
+					histories.clear();
 					break;
 				}
+				histories.add(history);
+			}
+			if (false == histories.isEmpty()) {
+				// all loaded already
+				return histories;
 			}
 		}
-		if (null == toReturn) {
-			Log.i(MainActivity.TAG, "No history found for " + fileDateKey);
+		synchronized (this.historicDays) {
+			Map<String, Date> days = this.historicDays.subMap(fromKey, true, toKey, true);
+			boolean isAnyToLoad = false;
+			for (String key : days.keySet()) {
+				isAnyToLoad |= false == this.loadedHistories.containsKey(key);
+			}
+			if (isAnyToLoad) {
+				// read them all in one go, each history takes its contents as it is created
+				this.storage.readRange(fromKey, toKey, new HistoryStorage.RecordHandler() {
+					@Override
+					public void handleRecord(String key, ByteBuffer contents) {
+						preloadedContents.put(key, contents);
+					}
+				});
+			}
+			try {
+				for (Map.Entry<String, Date> day : days.entrySet()) {
+					BleConnectionHistory<T> history = this.loadedHistories.get(day.getKey());
+					if (null == history) {
+						// not loaded, create it from the contents just read
+						history = createHistory(day.getValue(), this.context);
+						addLoadedHistory(history);
+						++this.noHistoriesLoaded;
+					}
+					histories.add(history);
+				}
+			}
+			finally {
+				// anything not taken is not wanted
+				this.preloadedContents.clear();
+			}
 		}
-		return toReturn;
+		return histories;
+	}
+
+	/**
+	 * read the contents of a history from the storage, called by the history as it is created
+	 * @param key is the key of the history
+	 * @return the contents, null if there are none
+	 */
+	ByteBuffer readHistoryContents(String key) {
+		synchronized (this.historicDays) {
+			ByteBuffer contents = this.preloadedContents.remove(key);
+			if (null != contents) {
+				// this was read with the others in a range
+				return contents;
+			}
+		}
+		return this.storage.read(key);
 	}
 	
 	public String[] getHistoricFileDates() {
-		String[] dateKeys;
-		synchronized (this.historicStore) {
-			dateKeys = new String[this.historicStore.size()];
-			for (int i = 0; i < dateKeys.length; ++i) {
-				dateKeys[i] = this.historicStore.get(i).getFileDateKey();
-			}
+		HistoryIndex<T> index = this.publishedIndex;
+		if (null != index) {
+			return index.days.keySet().toArray(new String[index.days.size()]);
 		}
-		return dateKeys;
+		synchronized (this.historicDays) {
+			return this.historicDays.keySet().toArray(new String[this.historicDays.size()]);
+		}
+	}
+
+	/**
+	 * @return the number of histories loaded now
+	 */
+	public int getNoLoadedHistories() {
+		HistoryIndex<T> index = this.publishedIndex;
+		return null == index ? 0 : index.loaded.size();
+	}
+
+	/**
+	 * @return the number of times a history has been loaded from its file
+	 */
+	public long getNoHistoriesLoaded() {
+		return this.noHistoriesLoaded;
 	}
 
 	public void storeData(T value, int frequency) {
+		storeData(value, frequency, this.clock.currentTimeMillis());
+	}
+
+	/**
+	 * store the data in the history for the time given
+	 * @param value is the value to store
+	 * @param frequency is the number of times to count this value
+	 * @param time is the time the value was received, in ms since the epoch
+	 */
+	public void storeData(T value, int frequency, long time) {
 		// store the latest data
 		this.lastData = value;
-		// so lets store this data, for "now", format the time to the nearest file time though
-		String fileDateKey = consolidationFormat.format(new Date());
-		if (null == this.currentHistory || false == this.currentHistory.getFileDateKey().equals(fileDateKey)) {
-			// need to create a new history store
-			try {
-				/// try to get an existing one if there is one
-				this.currentHistory = getHistoryData(fileDateKey);
-				if (null == this.currentHistory) {
-					// create the new history store
-					this.currentHistory = new BleConnectionHistory<T>(consolidationFormat.parse(fileDateKey), this.context, this);
-					// now go through our store and get rid of out-of-date ones and save used ones
-					saveStoreContents(true);
-					// add our new current history to the store
-					synchronized (this.historicStore) {
-						this.historicStore.add(this.currentHistory);
-					}
+		BleConnectionHistory<T> history = getHistoryForTime(time);
+		if (null != history) {
+			history.addData(value, frequency);
+			saveIfDue(time);
+		}
+	}
+
+	/**
+	 * get the history to store data received at the time in, creating it if there is not one
+	 * @param time is the time the data was received, in ms since the epoch
+	 * @return the history for the time, null if it could not be created
+	 */
+	protected BleConnectionHistory<T> getHistoryForTime(long time) {
+		if (null != this.currentHistory && time >= this.currentHistoryStart && time < this.currentHistoryEnd) {
+			// the current history is valid so we can just use that, the usual case
+			return this.currentHistory;
+		}
+		// so lets store this data, in the history of the day of the time
+		int epochDay = EpochDays.getEpochDay(time);
+		long dayStart = EpochDays.getDayStartTime(epochDay);
+		if (null == this.currentHistory || this.currentHistory.getDataEpochDay() != epochDay) {
+			// need to create a new history store, try to get an existing one if there is one
+			String fileDateKey = formatDayKey(epochDay);
+			synchronized (this.historicDays) {
+				// find the days there are first if the persist thread hasn't yet, or the day would be stored over
+				indexHistoricDays();
+			}
+			this.currentHistory = getHistoryData(fileDateKey);
+			if (null == this.currentHistory) {
+				// create the new history store
+				Date fileDate = new Date(dayStart);
+				this.currentHistory = createHistory(fileDate, this.context);
+				// add our new current history to the store
+				synchronized (this.historicDays) {
+					this.historicDays.put(fileDateKey, fileDate);
+					addLoadedHistory(this.currentHistory);
 				}
-			} catch (ParseException e) {
-				Log.e(MainActivity.TAG, "Failed to store data in the history file", e);
-				return;
+				// now have the persist thread get rid of out-of-date ones and save used ones
+				requestFlush();
 			}
 		}
-		//else the current history is valid so we can just use that
-		this.currentHistory.addData(value, frequency);
-		if (System.currentTimeMillis() - this.lastSavePerformed > K_SAVEINTERVAL) {
-			// time to back things up to be safe
-			saveStoreContents(true);
+		// remember the times this history covers, so the next midnight is all we check until then
+		this.currentHistoryStart = dayStart;
+		this.currentHistoryEnd = EpochDays.getDayStartTime(epochDay + 1);
+		return this.currentHistory;
+	}
+
+	/**
+	 * get the key of the history of a day, the name of its file and what is shown for it. This
+	 * is safe to call from any thread, unlike the formatters
+	 * @param epochDay is the number of days since the epoch
+	 * @return the key of the day, as K_DAYKEYFORMAT
+	 */
+	public static String formatDayKey(int epochDay) {
+		int date = EpochDays.getCivilDate(epochDay);
+		int year = date / 10000;
+		int month = date / 100 % 100;
+		int day = date % 100;
+		char[] key = new char[] { '0', '0', '0', '0', '-', '0', '0', '-', '0', '0' };
+		for (int i = 3; i >= 0; --i, year /= 10) {
+			key[i] = (char) ('0' + year % 10);
+		}
+		key[5] = (char) ('0' + month / 10);
+		key[6] = (char) ('0' + month % 10);
+		key[8] = (char) ('0' + day / 10);
+		key[9] = (char) ('0' + day % 10);
+		return new String(key);
+	}
+
+	/**
+	 * create a history to hold the data for the date, loading any data in its file, override to
+	 * create a specialised history. This is called on any thread asking for the history
+	 * @param date is the date of the history
+	 * @param context is the context for access to the files
+	 * @return the new history
+	 */
+	protected BleConnectionHistory<T> createHistory(Date date, Context context) {
+		return new BleConnectionHistory<T>(date, context, this);
+	}
+
+	/**
+	 * save the contents of the store if it has been a while since we last did
+	 * @param time is the time of the data just stored, in ms since the epoch
+	 */
+	protected void saveIfDue(long time) {
+		if (time - this.lastSavePerformed > K_SAVEINTERVAL) {
+			// time to back things up to be safe, this is done on the persist thread
+			this.lastSavePerformed = time;
+			requestFlush();
+		}
+	}
+
+	/**
+	 * ask the persist thread to save the contents of the store, returns at once. Any number of
+	 * requests made while one is waiting to run result in just the one save
+	 */
+	public void requestFlush() {
+		if (this.isFlushRequested.compareAndSet(false, true)) {
+			try {
+				this.persistExecutor.execute(this.flushTask);
+			}
+			catch (RejectedExecutionException e) {
+				// the store is closed, and everything saved as it closed
+				this.isFlushRequested.set(false);
+			}
 		}
 	}
+
+	/**
+	 * called by a history when it has data that is not in its file
+	 * @param history is the history that now has data to save
+	 */
+	void historyDirtied(BleConnectionHistory<T> history) {
+		this.dirtyHistories.add(history);
+	}
 	
-	private void saveStoreContents(boolean isRemoveOld) {
+	/**
+	 * save the contents of the store, only to be run on the persist thread
+	 * @param isRollUp is true to roll up the histories that are too old to keep as they are
+	 */
+	private void saveStoreContents(boolean isRollUp) {
+		long startTime = System.nanoTime();
 		// remember when we last saved this all
-		this.lastSavePerformed = System.currentTimeMillis();
+		this.lastSavePerformed = this.clock.currentTimeMillis();
+		// take the histories to save, anything changed from here on is saved next time
+		ArrayList<BleConnectionHistory<T>> toSave = new ArrayList<BleConnectionHistory<T>>(this.dirtyHistories.size());
+		for (Iterator<BleConnectionHistory<T>> iterator = this.dirtyHistories.iterator(); iterator.hasNext(); ) {
+			toSave.add(iterator.next());
+			iterator.remove();
+		}
 		// now save everything
-		Date oldest = getOldestPermissableDate();
-		ArrayList<BleConnectionHistory<T>> toRemove = new ArrayList<BleConnectionHistory<T>>();
-		synchronized (this.historicStore) {
-			for (BleConnectionHistory<T> history : this.historicStore) {
-				// save the file if it changed
-				if (history.isDirtyFromFile()) {
-					// save this
-					history.saveDataToFile(context);
-				}
-				try {
-					Date fileDate = consolidationFormat.parse(history.getFileDateKey());
-					if (fileDate.before(oldest)) {
-						// this data is no longer required, bin it
-						toRemove.add(history);					
-					}
-				} catch (ParseException e) {
-					Log.e(MainActivity.TAG, "Failed to store data in the history file", e);
-					return;
+		synchronized (this.historicDays) {
+			// only save the histories that are in the store, anything else was removed
+			for (Iterator<BleConnectionHistory<T>> iterator = toSave.iterator(); iterator.hasNext(); ) {
+				BleConnectionHistory<T> history = iterator.next();
+				if (false == this.historicDays.containsKey(history.getFileDateKey())) {
+					iterator.remove();
 				}
 			}
-			if (isRemoveOld) {
-				// remove all the out-of-date histories in the store
-				for (BleConnectionHistory<T> history : toRemove) {
-					this.historicStore.remove(history);
+		}
+		// take the data to save with how much data was in the store, all of which is saved when this is done
+		long dataSequence;
+		ArrayList<ByteBuffer> contents = new ArrayList<ByteBuffer>(toSave.size());
+		synchronized (this.dataLock) {
+			dataSequence = getDataSequence();
+			for (BleConnectionHistory<T> history : toSave) {
+				contents.add(history.takeFileBytes(dataSequence));
+			}
+		}
+		// write them all in one batch, this doesn't hold anything up that is storing data
+		boolean isAllSaved = true;
+		long bytesWritten = 0;
+		if (false == toSave.isEmpty()) {
+			ArrayList<String> keys = new ArrayList<String>(toSave.size());
+			for (int i = 0; i < toSave.size(); ++i) {
+				keys.add(toSave.get(i).getFileDateKey());
+				bytesWritten += contents.get(i).remaining();
+			}
+			isAllSaved = this.storage.writeBatch(keys, contents);
+			if (false == isAllSaved) {
+				// save them all again next time
+				bytesWritten = 0;
+				for (BleConnectionHistory<T> history : toSave) {
+					history.setDirty();
 				}
 			}
 		}
+		if (isAllSaved) {
+			// everything stored is now in the files
+			storeContentsSaved(dataSequence);
+		}
+		if (isRollUp) {
+			// the days that are in more than one file can be compacted now they are saved
+			compactHistories();
+			// and the days that are now too old can be rolled up from their saved files
+			rollUpHistories();
+		}
+		// and update the metrics of this
+		long flushNanos = System.nanoTime() - startTime;
+		this.lastFlushNanos = flushNanos;
+		this.maxFlushNanos = Math.max(this.maxFlushNanos, flushNanos);
+		this.totalFlushNanos += flushNanos;
+		this.bytesWritten += bytesWritten;
+		this.noFilesWritten += isAllSaved ? toSave.size() : 0;
+		++this.noFlushes;
+	}
+
+	/**
+	 * @return the lock to hold while storing data and updating the sequence returned from
+	 * getDataSequence, so the data saved is exactly the data up to that sequence
+	 */
+	protected final Object getDataLock() {
+		return this.dataLock;
+	}
+
+	/**
+	 * called on the persist thread as a save takes the data to save, while holding the data lock,
+	 * override to remember how much data has been stored so far, this is passed to
+	 * storeContentsSaved once it is all saved
+	 * @return the sequence of the data stored so far, -1 if not known
+	 */
+	protected long getDataSequence() {
+		return -1;
+	}
+
+	/**
+	 * find if data journaled is in the file of the history of its day already, the files are saved
+	 * before the journal is told they are, so data replayed from a journal after a crash can be
+	 * @param time is the time of the data
+	 * @param sequence is the sequence of the data, as returned from getDataSequence when stored
+	 * @return true if in the file, and so not to be stored again
+	 */
+	protected boolean isDataInFile(long time, long sequence) {
+		BleConnectionHistory<T> history = getHistoryForTime(time);
+		return null != history && sequence < history.getFileSequence();
+	}
+
+	/**
+	 * called on the persist thread when all the data stored has been saved to the files,
+	 * override to know when this is. This can be called from the constructor, before the members
+	 * of the derived class are set
+	 * @param dataSequence is the sequence of the data saved, as returned from getDataSequence
+	 */
+	protected void storeContentsSaved(long dataSequence) {
+		// nothing to do here
+	}
+
+	/**
+	 * @return the number of times the store has been saved
+	 */
+	public long getNoFlushes() {
+		return this.noFlushes;
+	}
+
+	/**
+	 * @return the time the last save took, in ns
+	 */
+	public long getLastFlushNanos() {
+		return this.lastFlushNanos;
+	}
+
+	/**
+	 * @return the longest time a save took, in ns
+	 */
+	public long getMaxFlushNanos() {
+		return this.maxFlushNanos;
+	}
+
+	/**
+	 * @return the total time spent saving, in ns
+	 */
+	public long getTotalFlushNanos() {
+		return this.totalFlushNanos;
+	}
+
+	/**
+	 * @return the number of bytes written to the files
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * @return the number of files written
+	 */
+	public long getNoFilesWritten() {
+		return this.noFilesWritten;
 	}
 	
+	/**
+	 * close the store, returns at once so it can be called from the UI thread. Everything is saved,
+	 * and the storage closed, on the persist thread, call awaitClosed to wait for this to finish
+	 */
 	public void closeStore() {
-		saveStoreContents(false);
-		synchronized (this.historicStore) {
-			this.historicStore.clear();
+		closingStores.put(this.filePrefix, this);
+		try {
+			this.persistExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// anything still storing data has to stop before the last save, or it is lost
+						boolean isStopped = stopStoringData();
+						saveStoreContents(false);
+						if (isStopped) {
+							closeStorage();
+						}
+						else {
+							// something might still use the storage, leave it open rather than break it
+							Log.e(MainActivity.TAG, "Data was still being stored, leaving the storage open " + filePrefix);
+						}
+					}
+					finally {
+						closingStores.remove(filePrefix, BleConnectionHistoryStore.this);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// closed already
+			closingStores.remove(this.filePrefix, this);
+		}
+		this.persistExecutor.shutdown();
+	}
+
+	/**
+	 * wait for the store to finish opening, the histories there are found, so the first data stored
+	 * doesn't wait for it. A device sends nothing until connected so this is for the simulations,
+	 * not to be called on the UI thread
+	 * @param timeout is the time to wait, in ms
+	 * @return true if opened, false if not opened in the time
+	 */
+	public boolean awaitOpened(long timeout) {
+		try {
+			return this.openedLatch.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Log.e(MainActivity.TAG, "Interrupted waiting for the store to open " + this.filePrefix, e);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * wait for the store to finish closing, not to be called on the UI thread
+	 * @param timeout is the time to wait, in ms
+	 * @return true if closed, false if not closed in the time
+	 */
+	public boolean awaitClosed(long timeout) {
+		try {
+			return this.persistExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Log.e(MainActivity.TAG, "Interrupted waiting for the store to close " + this.filePrefix, e);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * wait for any store closing over the same files as this to finish, so this doesn't read or write
+	 * them while it saves. Called on the threads of this store before they use the files
+	 */
+	protected void awaitPreviousStoreClosed() {
+		BleConnectionHistoryStore<?> previous = closingStores.get(this.filePrefix);
+		if (null != previous && previous != this && false == previous.awaitClosed(K_CLOSETIMEOUT)) {
+			Log.e(MainActivity.TAG, "Timed out waiting for the previous store to close " + this.filePrefix);
+		}
+		// a keyed store takes the histories of the store with no key, so wait for that to close too
+		BleConnectionHistoryStore<?> unkeyed = closingStores.get(createFilePrefix(this.packager, null));
+		if (null != unkeyed && unkeyed != this && false == unkeyed.awaitClosed(K_CLOSETIMEOUT)) {
+			Log.e(MainActivity.TAG, "Timed out waiting for the store with no key to close " + this.filePrefix);
+		}
+	}
+
+	/**
+	 * helper to move the histories kept by the store with no key, all the data from before stores
+	 * were keyed by device, into this store so they are not hidden by the key. The first keyed store
+	 * opened takes them all. A day this store has already is kept under another key, to be compacted
+	 * into the day. Must be called once the storage is open, and the store with no key is closed
+	 */
+	private void adoptUnkeyedHistories() {
+		String unkeyedPrefix = createFilePrefix(this.packager, null);
+		if (unkeyedPrefix.equals(this.filePrefix)) {
+			// this is the store with no key
+			return;
+		}
+		synchronized (adoptLock) {
+			HistoryStorage unkeyedStorage = this.storageBackend.create(this.context, unkeyedPrefix);
+			if (false == unkeyedStorage.open()) {
+				// nothing to take
+				return;
+			}
+			try {
+				Set<String> keys = new HashSet<String>(this.storage.listKeys());
+				int noAdopted = 0;
+				for (String key : unkeyedStorage.listKeys()) {
+					ByteBuffer contents = unkeyedStorage.read(key);
+					if (null == contents) {
+						continue;
+					}
+					String adoptedKey = key;
+					if (keys.contains(key)) {
+						if (contents.equals(this.storage.read(key))) {
+							// taken already, but not deleted before we stopped
+							adoptedKey = null;
+						}
+						else if (key.startsWith(K_WEEKKEYPREFIX) || key.startsWith(K_MONTHKEYPREFIX) || key.startsWith(K_COMPACTKEYPREFIX)) {
+							// only days can be compacted together, leave this where it is
+							Log.w(MainActivity.TAG, "Leaving the history " + key + " with no key, " + this.filePrefix + " has it already");
+							continue;
+						}
+						else {
+							adoptedKey = key + K_ADOPTEDKEYSUFFIX;
+						}
+					}
+					if (null != adoptedKey && false == this.storage.writeBatch(Collections.singletonList(adoptedKey), Collections.singletonList(contents))) {
+						Log.e(MainActivity.TAG, "Failed to take the history " + key + " with no key into " + this.filePrefix);
+						continue;
+					}
+					if (unkeyedStorage.delete(key)) {
+						++noAdopted;
+					}
+				}
+				if (noAdopted > 0) {
+					Log.i(MainActivity.TAG, "Took " + noAdopted + " histories with no key into " + this.filePrefix);
+				}
+			}
+			finally {
+				unkeyedStorage.close();
+			}
+		}
+	}
+
+	/**
+	 * stop anything storing data in this store, called on the persist thread as the store closes,
+	 * before the last save
+	 * @return true if stopped, false if data might still be stored, and the storage used
+	 */
+	protected boolean stopStoringData() {
+		// nothing of ours stores data, those storing data stop as the store closes
+		return true;
+	}
+
+	/**
+	 * close the storage of the store, called on the persist thread once everything is saved
+	 */
+	protected void closeStorage() {
+		this.storage.close();
+		synchronized (this.historicDays) {
+			this.historicDays.clear();
+			this.historicWeeks.clear();
+			this.historicMonths.clear();
+			this.loadedHistories.clear();
+			this.fragmentedDays.clear();
+			publishIndex();
 		}
 	}
 	public abstract void handleGattData(BluetoothDevice device, BluetoothGattCharacteristic characteristic);
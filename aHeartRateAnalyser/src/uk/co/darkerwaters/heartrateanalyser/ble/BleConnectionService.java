@@ -2,6 +2,8 @@ package uk.co.darkerwaters.heartrateanalyser.ble;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import uk.co.darkerwaters.heartrateanalyser.MainActivity;
 import android.app.Service;
@@ -19,15 +21,13 @@ import android.os.IBinder;
 import android.util.Log;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with the GATT servers hosted on
+ * any number of Bluetooth LE devices at once, each with its own store of data.
  */
 public class BleConnectionService extends Service {
 	/** the bluetooth manager */
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothDevice device;
-    private BluetoothGatt bluetoothGatt;
     
     public enum ConnectionState {
     	connecting,
@@ -35,8 +35,6 @@ public class BleConnectionService extends Service {
     	disconnected,
     	disconnecting
     }
-    
-    private ConnectionState connectionState = ConnectionState.disconnected;
 
     public interface ConnectionServiceListener {
     	public void gattStateChanged(String deviceName, BluetoothDevice device, ConnectionState state);
@@ -51,11 +49,18 @@ public class BleConnectionService extends Service {
     }
     private final IBinder binder = new LocalBinder();
     
-    private final ArrayList<ConnectionServiceListener> listeners = new ArrayList<BleConnectionService.ConnectionServiceListener>();
-
-    private BleConnectionCallback gattCallback;
+    /** the listeners, copied on change so informing them never takes a lock on the data path */
+    private final CopyOnWriteArrayList<ConnectionServiceListener> listeners = new CopyOnWriteArrayList<BleConnectionService.ConnectionServiceListener>();
 
-    private BleConnectionHistoryStore<?> dataStore;
+    /** all the connections to devices, keyed by the device address, each locked on its own */
+    private final ConcurrentHashMap<String, BleDeviceConnection> connections = new ConcurrentHashMap<String, BleDeviceConnection>();
+    /** the address of the device most recently connected, the one used when no address is given */
+    private volatile String activeAddress = null;
+    /**
+     * the store used when there is no device connected, holds the data from before stores were per
+     * device. Closed as a device connects, the store of the first device takes its data
+     */
+    private BleConnectionHistoryStore<?> defaultStore;
 	private Context context;
 	private BleConnectionHistoryStore.Provider<?> dataStoreProvider;
 
@@ -97,16 +102,25 @@ public class BleConnectionService extends Service {
 	 * helper to close all the connections to this service
 	 */
     public void closeServiceConnections() {
-		if (null != this.bluetoothGatt) {
-			this.bluetoothGatt.disconnect();
-			this.bluetoothGatt.close();
-			this.bluetoothGatt = null;
-		}
-    	// save all our data
-    	synchronized (this) {
-    		if (null != this.dataStore) {
-        		this.dataStore.closeStore();
-        		this.dataStore = null;
+    	// close every device connection, saving all their data
+    	for (String address : this.connections.keySet()) {
+    		BleDeviceConnection connection = this.connections.remove(address);
+    		if (null != connection) {
+    			connection.close();
+    		}
+    	}
+    	this.activeAddress = null;
+    	closeDefaultStore();
+	}
+
+	/**
+	 * helper to close the store used when there is no device connected, if there is one
+	 */
+	private void closeDefaultStore() {
+		synchronized (this) {
+    		if (null != this.defaultStore) {
+        		this.defaultStore.closeStore();
+        		this.defaultStore = null;
         	}
 		}
 	}
@@ -117,7 +131,7 @@ public class BleConnectionService extends Service {
     		device = bluetoothAdapter.getRemoteDevice(deviceAddress);
     		if (null != device) {
     			// call the function to connect to this device
-    			connect(deviceName, device);
+    			return connect(deviceName, device);
     		}
     		else {
     			Log.w(MainActivity.TAG, "Device \"" + deviceAddress + "\" was not found.  Unable to connect.");
@@ -127,156 +141,277 @@ public class BleConnectionService extends Service {
     		// no address
     		Log.w(MainActivity.TAG, "Device of no address cannot be connected to.");
     	}
-    	return this.device;
+    	return device;
     }
     
     public BluetoothDevice connect(final String deviceName, final BluetoothDevice deviceToConnect) {
+        if (this.bluetoothAdapter == null || deviceToConnect == null || deviceToConnect.getAddress().isEmpty()) {
+        	// cannot connect to nothing
+            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return null;
+        }
+        final String address = deviceToConnect.getAddress();
+        BleDeviceConnection existing = this.connections.get(address);
+        if (null != existing && 
+        		existing.getState() == ConnectionState.connected &&
+        		existing.getGatt() != null) {
+        	// already connected to this very same device, send a message but basically ignore
+        	this.activeAddress = address;
+        	existing.getCallback().gattStateChanged(existing.getState());
+        	return existing.getDevice();
+        }
+        else if (null != existing) {
+        	// there is a stale connection to this device, close it before we try again
+        	this.connections.remove(address);
+        	existing.close();
+        }
+    	// this is a new connection, leaving any other devices connected, so try to connect to it
+        Log.d(MainActivity.TAG, "Trying to create a new connection to " + deviceToConnect.getName() + " at " + address);
+        final BleDeviceConnection connection = new BleDeviceConnection(address, deviceName, deviceToConnect);
+        // create the store for the data now, so the first data received doesn't have to
+        closeDefaultStore();
+        connection.openStore(this.dataStoreProvider, this.context);
     	// create the gatt callback to inform the listener of these changes
-    	this.gattCallback = new BleConnectionCallback(deviceName, deviceToConnect, new ConnectionServiceListener() {
+        BleConnectionCallback gattCallback = createCallback(connection);
+        // remember we are connecting to this device
+        this.connections.put(address, connection);
+        this.activeAddress = address;
+        try {
+	        // connect to the device
+        	connection.setGatt(deviceToConnect.connectGatt(this, false, gattCallback), gattCallback);
+	        // inform we are connecting this
+	        gattCallback.gattStateChanged(ConnectionState.connecting);
+        }
+        catch (IllegalArgumentException e) {
+        	Log.e(MainActivity.TAG, "Failed to connect to the specified device");
+        }
+        // return the success of this
+        return deviceToConnect;
+    }
+
+    /**
+     * connect a simulated device, one with no GATT connection, to this service. The data pushed
+     * in through the returned callback follows the same path as that from a real device
+     * @param deviceName is the name of the simulated device
+     * @param deviceAddress is the address of the simulated device, the key of its store
+     * @return the callback to push the data of the simulated device in to
+     */
+    public BleConnectionCallback connectSimulated(String deviceName, String deviceAddress) {
+    	BleDeviceConnection connection = new BleDeviceConnection(deviceAddress, deviceName, null);
+    	closeDefaultStore();
+    	connection.openStore(this.dataStoreProvider, this.context);
+    	BleConnectionCallback gattCallback = createCallback(connection);
+    	connection.setGatt(null, gattCallback);
+    	BleDeviceConnection existing = this.connections.put(deviceAddress, connection);
+    	if (null != existing) {
+    		// replaced a connection to this address, close the old one
+    		existing.close();
+    	}
+    	this.activeAddress = deviceAddress;
+    	gattCallback.gattStateChanged(ConnectionState.connected);
+    	return gattCallback;
+    }
+
+    /**
+     * helper to create the callback for a device connection, the data from the device goes
+     * straight to the store for that device without taking any lock shared with another device
+     * @param connection is the connection to the device
+     * @return the callback to receive the changes from the GATT connection
+     */
+    private BleConnectionCallback createCallback(final BleDeviceConnection connection) {
+    	return new BleConnectionCallback(connection.getDeviceName(), connection.getDevice(), new ConnectionServiceListener() {
 			@Override
 			public void gattStateChanged(String deviceName, BluetoothDevice device, ConnectionState state) {
 				// store the current state
-				BleConnectionService.this.connectionState = state;
+				connection.setState(state);
 				// inform our listeners
-				synchronized(BleConnectionService.this.listeners) {
-					for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
-						listener.gattStateChanged(deviceName, BleConnectionService.this.device, state);
-					}
+				for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
+					listener.gattStateChanged(deviceName, connection.getDevice(), state);
 				}
 			}
 			@Override
 			public void gattServicesDiscovered(String deviceName, BluetoothDevice device) {
 				// inform our listeners
-				synchronized(BleConnectionService.this.listeners) {
-					for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
-						listener.gattServicesDiscovered(deviceName, device);
-					}
+				for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
+					listener.gattServicesDiscovered(deviceName, device);
 				}
 			}
 			@Override
 			public void gattDataAvailable(String deviceName, BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
-				// put this data in the store to handle the data creation
-				BleConnectionHistoryStore<?> store = getStore();
+				// put this data in the store for this device to handle the data creation, none once closed
+				BleConnectionHistoryStore<?> store = connection.getStore();
 				if (null != store) {
 					store.handleGattData(device, characteristic);
 				}
 				// inform our listeners
-				synchronized(BleConnectionService.this.listeners) {
-					for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
-						listener.gattDataAvailable(deviceName, device, characteristic);
-					}
+				for (ConnectionServiceListener listener : BleConnectionService.this.listeners) {
+					listener.gattDataAvailable(deviceName, device, characteristic);
 				}
 			}
 		});
-        if (this.bluetoothAdapter == null || deviceToConnect == null || deviceToConnect.getAddress().isEmpty()) {
-        	// cannot connect to nothing
-            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized or unspecified address.");
-        }
-        else if (this.device != null && 
-        		this.connectionState == ConnectionState.connected &&
-        		deviceToConnect.getAddress().equals(this.device.getAddress()) && 
-        		this.bluetoothGatt != null) {
-        	// already connected to this very same device, send a message but basically ignore
-        	this.gattCallback.gattStateChanged(connectionState);
-        }
-        else {
-        	// this is a change in the connection, so try to connect to it
-	        Log.d(MainActivity.TAG, "Trying to create a new connection to " + deviceToConnect.getName() + " at " + deviceToConnect.getAddress());
-	        // remember we are connecting to this device
-	        this.device = deviceToConnect;
-	        try {
-		        // connect to the device
-		        this.bluetoothGatt = this.device.connectGatt(this, false, gattCallback);
-		        // inform we are connecting this
-		        this.gattCallback.gattStateChanged(ConnectionState.connecting);
-	        }
-	        catch (IllegalArgumentException e) {
-	        	Log.e(MainActivity.TAG, "Failed to connect to the specified device");
-	        }
-        }
-        // return the success of this
-        return this.device;
     }
     
+    /**
+     * helper to get the connection to use for the address
+     * @param deviceAddress is the address of the device, null for the most recently connected
+     * @return the connection, null if there is none
+     */
+    private BleDeviceConnection getConnection(String deviceAddress) {
+    	String address = null == deviceAddress ? this.activeAddress : deviceAddress;
+    	return null == address ? null : this.connections.get(address);
+    }
+    
+    /**
+     * @return the current connection state of the device most recently connected
+     */
     public ConnectionState getCurrentState() {
-    	return this.connectionState;
+    	return getCurrentState(null);
+    }
+    
+    /**
+     * @param deviceAddress is the address of the device
+     * @return the current connection state of the device
+     */
+    public ConnectionState getCurrentState(String deviceAddress) {
+    	BleDeviceConnection connection = getConnection(deviceAddress);
+    	return null == connection ? ConnectionState.disconnected : connection.getState();
+    }
+    
+    /**
+     * @return the addresses of all the devices connected, or connecting, to this service
+     */
+    public String[] getConnectedAddresses() {
+    	return this.connections.keySet().toArray(new String[0]);
     }
 
+    /**
+     * @return the store for the device most recently connected, or the default store if there is none
+     */
 	public BleConnectionHistoryStore<?> getStore() {
+		return getStore((String)null);
+	}
+	
+	/**
+	 * @param deviceAddress is the address of the device, null for the most recently connected
+	 * @return the store of data for the device, or the default store if there is no device
+	 */
+	public BleConnectionHistoryStore<?> getStore(String deviceAddress) {
+		BleDeviceConnection connection = getConnection(deviceAddress);
+		BleConnectionHistoryStore<?> store = null == connection ? null : connection.getStore();
+		if (null != store) {
+			return store;
+		}
 		synchronized (this) {
-			if (null == this.dataStore) {
+			if (null == this.defaultStore) {
 	    		// we don't have a store, so create one with the provider
-	    		this.dataStore = this.dataStoreProvider.createNewStore(this.context);
-	    		if (null != this.gattCallback) {
-		    		// inform any listeners of this data
-		    		this.gattCallback.gattStateChanged(this.connectionState);
-	    		}
+	    		this.defaultStore = this.dataStoreProvider.createNewStore(this.context, null);
 	    	}
-			return this.dataStore;
+			return this.defaultStore;
 		}
 	}
 
+	/**
+	 * disconnect the device most recently connected
+	 */
     public void disconnect() {
-    	if (this.bluetoothGatt == null) {
-            Log.w(MainActivity.TAG, "BluetoothAdapter not initialized so cannot disconnect");
+    	disconnect(null);
+    }
+
+    /**
+     * disconnect the device, leaving any other devices connected
+     * @param deviceAddress is the address of the device, null for the most recently connected
+     */
+    public void disconnect(String deviceAddress) {
+    	BleDeviceConnection connection = getConnection(deviceAddress);
+    	if (null == connection) {
+            Log.w(MainActivity.TAG, "No device connected so cannot disconnect");
         }
-        else {
-        	// close our service connections, will inform the listener of this disconnection
-        	// through the callback
-        	closeServiceConnections();
+    	else {
+        	// close the connection, will inform the listener of this disconnection through the callback
+    		this.connections.remove(connection.getAddress());
+    		if (connection.getAddress().equals(this.activeAddress)) {
+    			this.activeAddress = null;
+    		}
+        	BleConnectionCallback callback = connection.getCallback();
+        	connection.close();
 	        // inform we are disconnecting this
-	        this.gattCallback.gattStateChanged(ConnectionState.disconnected);
+        	if (null != callback) {
+        		callback.gattStateChanged(ConnectionState.disconnected);
+        	}
         }
     	Log.i(MainActivity.TAG, "Service disconnected");
     }
 
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (this.bluetoothGatt == null) {
+    	readCharacteristic(null, characteristic);
+    }
+
+    public void readCharacteristic(String deviceAddress, BluetoothGattCharacteristic characteristic) {
+    	BluetoothGatt gatt = getGatt(deviceAddress);
+        if (gatt == null) {
             Log.w(MainActivity.TAG, "BluetoothAdapter not initialized so cannot read the characteristic");
         }
         else {
-        	this.bluetoothGatt.readCharacteristic(characteristic);
+        	gatt.readCharacteristic(characteristic);
         }
     }
 
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-    	if (this.bluetoothGatt == null) {
+    	setCharacteristicNotification(null, characteristic, enabled);
+    }
+
+    public void setCharacteristicNotification(String deviceAddress, 
+    										  BluetoothGattCharacteristic characteristic,
+                                              boolean enabled) {
+    	BluetoothGatt gatt = getGatt(deviceAddress);
+    	if (gatt == null) {
             Log.w(MainActivity.TAG, "BluetoothAdapter not initialized so cannot set the characteristic notification");
         }
         else {
-        	this.bluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        	gatt.setCharacteristicNotification(characteristic, enabled);
         }
     }
 
 	public void writeGattDescriptor(BluetoothGattDescriptor descriptor) {
-		if (this.bluetoothGatt == null) {
+		writeGattDescriptor(null, descriptor);
+	}
+
+	public void writeGattDescriptor(String deviceAddress, BluetoothGattDescriptor descriptor) {
+		BluetoothGatt gatt = getGatt(deviceAddress);
+		if (gatt == null) {
             Log.w(MainActivity.TAG, "BluetoothAdapter not initialized so cannot write the gatt descriptor");
         }
         else {
-        	this.bluetoothGatt.writeDescriptor(descriptor);
+        	gatt.writeDescriptor(descriptor);
         }
 	}
 	
+	/**
+	 * helper to get the GATT connection to a device
+	 * @param deviceAddress is the address of the device, null for the most recently connected
+	 * @return the GATT connection, null if not connected
+	 */
+	private BluetoothGatt getGatt(String deviceAddress) {
+		BleDeviceConnection connection = getConnection(deviceAddress);
+		return null == connection ? null : connection.getGatt();
+	}
+	
 	public boolean addListener(ConnectionServiceListener listener) {
-		boolean success = false;
-		synchronized (this.listeners) {
-			if (false == this.listeners.contains(listener)) {
-				success = this.listeners.add(listener);
-			}
-		}
+		boolean success = this.listeners.addIfAbsent(listener);
 		// upon adding a listener, lets take the opportunity to immediately inform the listener of what is going on
-		if (null != this.gattCallback) {
-			// there is a callback to inform any listeners of this data
-    		this.gattCallback.gattStateChanged(this.connectionState);
+		for (BleDeviceConnection connection : this.connections.values()) {
+			BleConnectionCallback callback = connection.getCallback();
+			if (null != callback) {
+				// there is a callback to inform any listeners of this data
+	    		callback.gattStateChanged(connection.getState());
+			}
 		}
 		return success;
 	}
 	
 	public boolean removeListener(ConnectionServiceListener listener) {
-		synchronized (this.listeners) {
-			return this.listeners.remove(listener);
-		}
+		return this.listeners.remove(listener);
 	}
 
     /**
@@ -286,8 +421,20 @@ public class BleConnectionService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (null != this.bluetoothGatt) {
-        	return this.bluetoothGatt.getServices();
+    	return getSupportedGattServices(null);
+    }
+
+    /**
+     * Retrieves a list of supported GATT services on the connected device. This should be
+     * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
+     *
+     * @param deviceAddress is the address of the device, null for the most recently connected
+     * @return A {@code List} of supported services.
+     */
+    public List<BluetoothGattService> getSupportedGattServices(String deviceAddress) {
+    	BluetoothGatt gatt = getGatt(deviceAddress);
+        if (null != gatt) {
+        	return gatt.getServices();
         }
         else {
         	// return none
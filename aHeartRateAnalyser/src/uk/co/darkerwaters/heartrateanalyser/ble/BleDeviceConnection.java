@@ -0,0 +1,133 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import uk.co.darkerwaters.heartrateanalyser.ble.BleConnectionService.ConnectionState;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.content.Context;
+
+/**
+ * a single connection to a device held by the service, with the GATT connection and the store of
+ * the data received from that device. Each connection is locked on its own so that the data from
+ * one device never waits on the data from another.
+ */
+class BleDeviceConnection {
+	/** the address of the device, the key of this connection */
+	private final String address;
+	/** the device connected to, can be null if not a real device */
+	private final BluetoothDevice device;
+	/** the name of the device */
+	private final String deviceName;
+	/** the GATT connection to the device, null if not connected */
+	private BluetoothGatt gatt = null;
+	/** the callback receiving all the changes from the GATT connection */
+	private BleConnectionCallback callback = null;
+	/** the current state of the connection */
+	private volatile ConnectionState state = ConnectionState.disconnected;
+	/** the store of data from this device, created as the connection is made */
+	private volatile BleConnectionHistoryStore<?> store = null;
+	/** true once closed, after which no store is created */
+	private boolean isClosed = false;
+
+	/**
+	 * constructor
+	 * @param address is the address of the device
+	 * @param deviceName is the name of the device
+	 * @param device is the device, can be null
+	 */
+	BleDeviceConnection(String address, String deviceName, BluetoothDevice device) {
+		this.address = address;
+		this.deviceName = deviceName;
+		this.device = device;
+	}
+
+	String getAddress() {
+		return this.address;
+	}
+
+	String getDeviceName() {
+		return this.deviceName;
+	}
+
+	BluetoothDevice getDevice() {
+		return this.device;
+	}
+
+	ConnectionState getState() {
+		return this.state;
+	}
+
+	void setState(ConnectionState state) {
+		this.state = state;
+	}
+
+	BluetoothGatt getGatt() {
+		synchronized (this) {
+			return this.gatt;
+		}
+	}
+
+	BleConnectionCallback getCallback() {
+		synchronized (this) {
+			return this.callback;
+		}
+	}
+
+	/**
+	 * set the GATT connection, and the callback for it, on this connection
+	 * @param gatt is the GATT connection
+	 * @param callback is the callback that receives the changes from the GATT connection
+	 */
+	void setGatt(BluetoothGatt gatt, BleConnectionCallback callback) {
+		synchronized (this) {
+			this.gatt = gatt;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * create the store for the data from this device, called as the connection is made so the
+	 * thread receiving the data never does. Nothing is created once this is closed
+	 * @param provider is the provider to create the store with
+	 * @param context is the context to create the store with
+	 * @return the store for this device, null if closed
+	 */
+	BleConnectionHistoryStore<?> openStore(BleConnectionHistoryStore.Provider<?> provider, Context context) {
+		synchronized (this) {
+			if (false == this.isClosed && null == this.store) {
+				// we don't have a store, so create one with the provider, keyed on our address
+				this.store = provider.createNewStore(context, this.address);
+			}
+			return this.store;
+		}
+	}
+
+	/**
+	 * @return the store for the data from this device, null if not opened or closed
+	 */
+	BleConnectionHistoryStore<?> getStore() {
+		return this.store;
+	}
+
+	/**
+	 * close the GATT connection and the store of data
+	 */
+	void close() {
+		BluetoothGatt toClose;
+		BleConnectionHistoryStore<?> storeToClose;
+		synchronized (this) {
+			this.isClosed = true;
+			toClose = this.gatt;
+			storeToClose = this.store;
+			this.gatt = null;
+			this.store = null;
+		}
+		if (null != toClose) {
+			toClose.disconnect();
+			toClose.close();
+		}
+		if (null != storeToClose) {
+			// save all our data
+			storeToClose.closeStore();
+		}
+	}
+}
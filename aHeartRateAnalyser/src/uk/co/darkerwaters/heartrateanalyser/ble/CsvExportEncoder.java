@@ -0,0 +1,50 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * encodes the samples as comma separated text, a line per sample of the time in UTC, the heart
+ * rate, the energy expended if sent and the RR-intervals, in ms and separated by spaces, if sent.
+ */
+public class CsvExportEncoder extends ExportEncoder {
+	/** the line at the top of the file naming the columns */
+	private static final String K_HEADER = "time,heart_rate_bpm,energy_expended_kj,rr_intervals_ms\n";
+	/** the most space a line takes, with the most RR-intervals the journal keeps */
+	private static final int K_MAXLINE = 128;
+
+	/**
+	 * constructor
+	 * @param channel is the channel to write the encoding to
+	 */
+	public CsvExportEncoder(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	@Override
+	public void start(Summary summary) throws IOException {
+		putAscii(K_HEADER);
+	}
+
+	@Override
+	public void encode(HeartRateMeasurement measurement, long time) throws IOException {
+		reserve(K_MAXLINE);
+		putIsoTime(time);
+		this.buffer.put((byte) ',');
+		putDecimal(measurement.getHeartRate());
+		this.buffer.put((byte) ',');
+		if (measurement.isEnergyExpendedPresent()) {
+			putDecimal(measurement.getEnergyExpended());
+		}
+		this.buffer.put((byte) ',');
+		int noIntervals = Math.min(measurement.getNoRrIntervals(), SampleJournal.K_MAXRRPERRECORD);
+		for (int i = 0; i < noIntervals; ++i) {
+			if (i > 0) {
+				this.buffer.put((byte) ' ');
+			}
+			// the intervals are sent in 1/1024ths of a second
+			putDecimal(Math.round(measurement.getRrInterval(i) * 1000.0 / 1024.0));
+		}
+		this.buffer.put((byte) '\n');
+	}
+}
@@ -0,0 +1,79 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * the helpers to work with days as the number of days since the epoch, so the day of a time is
+ * found with arithmetic rather than by formatting it. These are safe to call from any thread and
+ * create no garbage, unlike the formatters and calendars.
+ */
+public final class EpochDays {
+	/** the number of ms in a day */
+	public static final long K_MILLISPERDAY = 86400000L;
+
+	private EpochDays() {
+		// just the helpers
+	}
+
+	/**
+	 * @param time is the time, in ms since the epoch
+	 * @return the number of days since the epoch to the time, in the local time zone
+	 */
+	public static int getEpochDay(long time) {
+		return (int) getUtcEpochDay(time + TimeZone.getDefault().getOffset(time));
+	}
+
+	/**
+	 * @param time is the time, in ms since the epoch
+	 * @return the number of days since the epoch to the time, in UTC, rounded down before the epoch
+	 */
+	public static long getUtcEpochDay(long time) {
+		long epochDay = time / K_MILLISPERDAY;
+		return time % K_MILLISPERDAY < 0 ? epochDay - 1 : epochDay;
+	}
+
+	/**
+	 * @param epochDay is the number of days since the epoch
+	 * @return the time of the start of the day in the local time zone, in ms since the epoch
+	 */
+	public static long getDayStartTime(int epochDay) {
+		// midnight UTC is on the day, or the day before, in the local time zone, move from there
+		Calendar calendar = Calendar.getInstance();
+		long time = epochDay * K_MILLISPERDAY;
+		calendar.setTimeInMillis(time);
+		calendar.add(Calendar.DATE, epochDay - getEpochDay(time));
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		long start = calendar.getTimeInMillis();
+		// where the clocks go back at midnight there are two, the day starts at the first
+		TimeZone zone = calendar.getTimeZone();
+		long repeated = zone.getOffset(start - 1) - zone.getOffset(start);
+		if (repeated > 0 && getEpochDay(start - repeated) == epochDay) {
+			start -= repeated;
+		}
+		return start;
+	}
+
+	/**
+	 * get the date of a day, in the proleptic Gregorian calendar, as the digits yyyyMMdd of an int
+	 * so it can be found without creating anything
+	 * @param epochDay is the number of days since the epoch
+	 * @return the date, year * 10000 + month * 100 + day of month
+	 */
+	public static int getCivilDate(long epochDay) {
+		// the calendar counted in 400 year eras from March, so the leap day is the last of a year
+		long shifted = epochDay + 719468L;
+		long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+		long dayOfEra = shifted - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthFromMarch = (5 * dayOfYear + 2) / 153;
+		long month = monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		long day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+		return (int) (year * 10000 + month * 100 + day);
+	}
+}
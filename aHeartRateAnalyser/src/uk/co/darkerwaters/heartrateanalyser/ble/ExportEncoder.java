@@ -0,0 +1,223 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * encodes samples to a file format as they are streamed to it, into a fixed-size buffer that is
+ * written to the channel each time it fills, so the memory used is the same however many samples
+ * there are. The numbers and times are written straight into the buffer so encoding a sample
+ * creates no garbage. An encoder is only to be used from one thread and only the once.
+ */
+public abstract class ExportEncoder {
+	/** the size of the buffer the encoding is written through */
+	public static final int K_BUFFERSIZE = 16384;
+
+	/**
+	 * the totals of the samples to encode, found before they are encoded as the formats put
+	 * some of them before the samples
+	 */
+	public static class Summary {
+		private long noSamples = 0;
+		private long startTime = 0;
+		private long endTime = 0;
+		private long sumHeartRate = 0;
+		private int maxHeartRate = 0;
+
+		/**
+		 * add a sample to the totals, the samples are added in the order of their time
+		 * @param measurement is the sample
+		 * @param time is the time of the sample, in ms since the epoch
+		 */
+		public void add(HeartRateMeasurement measurement, long time) {
+			if (this.noSamples == 0) {
+				this.startTime = time;
+			}
+			this.endTime = time;
+			this.sumHeartRate += measurement.getHeartRate();
+			this.maxHeartRate = Math.max(this.maxHeartRate, measurement.getHeartRate());
+			++this.noSamples;
+		}
+
+		/**
+		 * @return the number of samples
+		 */
+		public long getNoSamples() {
+			return this.noSamples;
+		}
+
+		/**
+		 * @return the time of the first sample, in ms since the epoch
+		 */
+		public long getStartTime() {
+			return this.startTime;
+		}
+
+		/**
+		 * @return the time of the last sample, in ms since the epoch
+		 */
+		public long getEndTime() {
+			return this.endTime;
+		}
+
+		/**
+		 * @return the mean heart rate, 0 if no samples
+		 */
+		public int getMeanHeartRate() {
+			return this.noSamples == 0 ? 0 : (int) Math.round(this.sumHeartRate / (double) this.noSamples);
+		}
+
+		/**
+		 * @return the highest heart rate, 0 if no samples
+		 */
+		public int getMaxHeartRate() {
+			return this.maxHeartRate;
+		}
+	}
+
+	/** the channel the encoding is written to */
+	private final WritableByteChannel channel;
+	/** the buffer the encoding is written into before the channel */
+	protected final ByteBuffer buffer = ByteBuffer.allocate(K_BUFFERSIZE);
+	/** the number of bytes written to the channel */
+	private long noBytes = 0;
+
+	/**
+	 * constructor
+	 * @param channel is the channel to write the encoding to, not closed by the encoder
+	 */
+	protected ExportEncoder(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * start the encoding, writing anything that goes before the samples
+	 * @param summary is the totals of the samples to be encoded
+	 */
+	public abstract void start(Summary summary) throws IOException;
+
+	/**
+	 * encode the sample
+	 * @param measurement is the sample
+	 * @param time is the time of the sample, in ms since the epoch
+	 */
+	public abstract void encode(HeartRateMeasurement measurement, long time) throws IOException;
+
+	/**
+	 * finish the encoding, writing anything that goes after the samples and all that is left to
+	 * the channel. Override to write the end, calling this last
+	 */
+	public void finish() throws IOException {
+		flush();
+	}
+
+	/**
+	 * @return the number of bytes written to the channel
+	 */
+	public long getNoBytes() {
+		return this.noBytes;
+	}
+
+	/**
+	 * helper to make sure there is space in the buffer, writing it to the channel if not
+	 * @param noBytes is the number of bytes to be put in the buffer, no more than K_BUFFERSIZE
+	 */
+	protected void reserve(int noBytes) throws IOException {
+		if (this.buffer.remaining() < noBytes) {
+			flush();
+		}
+	}
+
+	/**
+	 * write all in the buffer to the channel
+	 */
+	protected void flush() throws IOException {
+		this.buffer.flip();
+		bytesEncoded(this.buffer);
+		while (this.buffer.hasRemaining()) {
+			this.noBytes += this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+	/**
+	 * called with the bytes in the buffer just before they are written to the channel, override
+	 * to see all the bytes of the encoding as for a checksum
+	 * @param bytes are the bytes, from the position to the limit, that must not be changed
+	 */
+	protected void bytesEncoded(ByteBuffer bytes) {
+		// nothing to do here
+	}
+
+	/**
+	 * helper to put text of only ASCII characters in the buffer
+	 * @param text is the text, no longer than K_BUFFERSIZE
+	 */
+	protected void putAscii(String text) throws IOException {
+		reserve(text.length());
+		for (int i = 0; i < text.length(); ++i) {
+			this.buffer.put((byte) text.charAt(i));
+		}
+	}
+
+	/**
+	 * helper to put a number in the buffer as decimal text
+	 * @param value is the number
+	 */
+	protected void putDecimal(long value) throws IOException {
+		reserve(20);
+		if (value < 0) {
+			this.buffer.put((byte) '-');
+			value = -value;
+		}
+		putDigits(value, 1);
+	}
+
+	/**
+	 * helper to put a time in the buffer as ISO 8601 text in UTC, to the ms, yyyy-MM-ddTHH:mm:ss.SSSZ
+	 * @param time is the time, in ms since the epoch
+	 */
+	protected void putIsoTime(long time) throws IOException {
+		reserve(24);
+		long day = EpochDays.getUtcEpochDay(time);
+		long millis = time - day * EpochDays.K_MILLISPERDAY;
+		int date = EpochDays.getCivilDate(day);
+		putDigits(date / 10000, 4);
+		this.buffer.put((byte) '-');
+		putDigits(date / 100 % 100, 2);
+		this.buffer.put((byte) '-');
+		putDigits(date % 100, 2);
+		this.buffer.put((byte) 'T');
+		putDigits(millis / 3600000L, 2);
+		this.buffer.put((byte) ':');
+		putDigits(millis / 60000L % 60, 2);
+		this.buffer.put((byte) ':');
+		putDigits(millis / 1000L % 60, 2);
+		this.buffer.put((byte) '.');
+		putDigits(millis % 1000L, 3);
+		this.buffer.put((byte) 'Z');
+	}
+
+	/**
+	 * helper to put the digits of a number in the buffer, there must be space for them
+	 * @param value is the number, not negative
+	 * @param minDigits is the fewest digits to put, padded with leading zeros
+	 */
+	private void putDigits(long value, int minDigits) {
+		int noDigits = 1;
+		for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+			++noDigits;
+		}
+		for (int i = noDigits; i < minDigits; ++i) {
+			this.buffer.put((byte) '0');
+		}
+		// write the digits from the last, into their places in the buffer
+		int end = this.buffer.position() + noDigits;
+		for (int index = end - 1; index >= end - noDigits; --index) {
+			this.buffer.put(index, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		this.buffer.position(end);
+	}
+}
@@ -0,0 +1,276 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * the storage of the histories as a file per history in the files directory, named the prefix of
+ * the store then the key of the history. A file is written to a temporary file that replaces the
+ * real file once on the disk, so a file is never half written. A batch writes all the temporary
+ * files before syncing them, so the writes to the disk are done together.
+ */
+public class FileHistoryStorage implements HistoryStorage {
+	/** the backend that keeps each history in a file in the files directory, as we always did */
+	public static final HistoryStorage.Backend K_BACKEND = new HistoryStorage.Backend() {
+		@Override
+		public String getName() {
+			return "files";
+		}
+		@Override
+		public HistoryStorage create(Context context, String filePrefix) {
+			return new FileHistoryStorage(context.getFilesDir(), filePrefix);
+		}
+	};
+	/** the start of the name of the temporary file written when saving */
+	private static final String K_TEMPFILEPREFIX = "tmp-";
+	/** the directory the files are in, null if there is not one */
+	private final File filesDir;
+	/** the start of the names of the files of the store */
+	private final String namePrefix;
+
+	/**
+	 * constructor
+	 * @param filesDir is the directory to keep the files in, can be null to keep nothing
+	 * @param filePrefix is the prefix of the store the histories are of
+	 */
+	public FileHistoryStorage(File filesDir, String filePrefix) {
+		this.filesDir = filesDir;
+		this.namePrefix = filePrefix + BleConnectionHistoryStore.filePrefixSep;
+	}
+
+	/**
+	 * @param key is the key of a history
+	 * @return the name of the file of the history
+	 */
+	public String getFilename(String key) {
+		return this.namePrefix + key;
+	}
+
+	@Override
+	public boolean open() {
+		File[] files = null == this.filesDir ? null : this.filesDir.listFiles();
+		if (null == files) {
+			// no files dir, probably in edit demo mode, fine
+			return false;
+		}
+		// delete the files left by saves that did not complete, the real files are still good
+		for (File file : files) {
+			if (file.getName().startsWith(K_TEMPFILEPREFIX + this.namePrefix) && false == file.delete()) {
+				Log.e(MainActivity.TAG, "Failed to delete the incomplete file: " + file.getName());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public List<String> listKeys() {
+		List<String> keys = new ArrayList<String>();
+		File[] files = null == this.filesDir ? null : this.filesDir.listFiles();
+		if (null != files) {
+			for (File file : files) {
+				// the key is all after the prefix, stores keyed by device have a longer prefix so don't match
+				String name = file.getName();
+				if (name.startsWith(this.namePrefix) && name.length() > this.namePrefix.length() && file.isFile()) {
+					keys.add(name.substring(this.namePrefix.length()));
+				}
+			}
+		}
+		Collections.sort(keys);
+		return keys;
+	}
+
+	@Override
+	public ByteBuffer read(String key) {
+		if (null == this.filesDir) {
+			return null;
+		}
+		String filename = getFilename(key);
+		FileInputStream inputStream = null;
+		try {
+			// open a stream to this file and read it all in one go through the channel
+			inputStream = new FileInputStream(new File(this.filesDir, filename));
+			FileChannel channel = inputStream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// keep reading until it is all in
+			}
+			buffer.flip();
+			return buffer;
+		}
+		catch (FileNotFoundException e) {
+			// fine, file not there is all...
+		}
+		catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to read the file " + filename, e);
+		}
+		finally {
+			if (null != inputStream) {
+				try {
+					inputStream.close();
+				} catch (IOException e) {
+					Log.w(MainActivity.TAG, "Failed to close the file " + filename, e);
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int readRange(String fromKey, String toKey, RecordHandler handler) {
+		// the files are not in any order, list them to find those in the range then read each
+		int noRead = 0;
+		for (String key : listKeys()) {
+			if (key.compareTo(fromKey) >= 0 && key.compareTo(toKey) <= 0) {
+				ByteBuffer contents = read(key);
+				if (null != contents) {
+					handler.handleRecord(key, contents);
+					++noRead;
+				}
+			}
+		}
+		return noRead;
+	}
+
+	@Override
+	public boolean writeBatch(List<String> keys, List<ByteBuffer> contents) {
+		if (null == this.filesDir) {
+			Log.e(MainActivity.TAG, "No files directory to save " + keys.size() + " files");
+			return false;
+		}
+		// write all the temporary files, then get them all on the disk together, then replace the real files
+		boolean isAllSaved = true;
+		ArrayList<FileSave> saves = new ArrayList<FileSave>(keys.size());
+		for (int i = 0; i < keys.size(); ++i) {
+			String filename = getFilename(keys.get(i));
+			FileSave save = new FileSave(new File(this.filesDir, K_TEMPFILEPREFIX + filename), new File(this.filesDir, filename));
+			if (save.write(contents.get(i))) {
+				saves.add(save);
+			}
+			else {
+				// failed to save this, keep going to save the rest
+				isAllSaved = false;
+			}
+		}
+		for (FileSave save : saves) {
+			isAllSaved &= save.sync();
+		}
+		for (FileSave save : saves) {
+			isAllSaved &= save.commit();
+		}
+		return isAllSaved;
+	}
+
+	@Override
+	public boolean delete(String key) {
+		File file = null == this.filesDir ? null : new File(this.filesDir, getFilename(key));
+		if (null != file && file.exists() && false == file.delete()) {
+			Log.e(MainActivity.TAG, "Failed to delete the file: " + file.getName());
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		// nothing is held open between calls
+	}
+
+	/**
+	 * a save of a file in progress, written to a temporary file that replaces the real file
+	 * once it is synced to the disk
+	 */
+	private static class FileSave {
+		/** the temporary file written to */
+		private final File tempFile;
+		/** the real file to replace */
+		private final File file;
+		/** the stream writing the temporary file, null once closed */
+		private FileOutputStream outputStream = null;
+		/** true once the temporary file is on the disk */
+		private boolean isSynced = false;
+
+		FileSave(File tempFile, File file) {
+			this.tempFile = tempFile;
+			this.file = file;
+		}
+
+		/**
+		 * helper to write the data to the temporary file, left open to sync
+		 */
+		private boolean write(ByteBuffer buffer) {
+			try {
+				this.outputStream = new FileOutputStream(this.tempFile);
+				this.outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				return true;
+			} catch (IOException e) {
+				Log.e(MainActivity.TAG, "Failed to write the file " + this.tempFile.getName(), e);
+				abandon();
+				return false;
+			}
+		}
+
+		/**
+		 * wait for the temporary file to be on the disk
+		 * @return true if it is, false if failed and abandoned
+		 */
+		private boolean sync() {
+			try {
+				this.outputStream.getFD().sync();
+				this.outputStream.close();
+				this.outputStream = null;
+				this.isSynced = true;
+			} catch (IOException e) {
+				Log.e(MainActivity.TAG, "Failed to sync the file " + this.tempFile.getName(), e);
+				abandon();
+			}
+			return this.isSynced;
+		}
+
+		/**
+		 * replace the real file with the synced temporary file, in one go
+		 * @return true if the real file now has the data
+		 */
+		private boolean commit() {
+			if (false == this.isSynced) {
+				return false;
+			}
+			if (false == this.tempFile.renameTo(this.file)) {
+				Log.e(MainActivity.TAG, "Failed to replace the file " + this.file.getName());
+				abandon();
+				return false;
+			}
+			Log.d(MainActivity.TAG, "Saved the file " + this.file.getName());
+			return true;
+		}
+
+		/**
+		 * helper to give up on the save, the real file is left as it was
+		 */
+		private void abandon() {
+			this.isSynced = false;
+			if (null != this.outputStream) {
+				try {
+					this.outputStream.close();
+				} catch (IOException e) {
+					// fine, giving up on this anyway
+				}
+				this.outputStream = null;
+			}
+			if (this.tempFile.exists() && false == this.tempFile.delete()) {
+				Log.w(MainActivity.TAG, "Failed to delete the file " + this.tempFile.getName());
+			}
+		}
+	}
+}
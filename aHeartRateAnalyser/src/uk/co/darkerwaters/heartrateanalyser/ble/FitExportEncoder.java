@@ -0,0 +1,225 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * encodes the samples as a Garmin FIT activity file: the file id, a record message per sample
+ * with the time and heart rate, then a lap, session and activity with the totals. The header has
+ * the size of all the messages, which is known before the samples are encoded as every message
+ * has a fixed size, so the file is streamed without going back to fill it in. The checksum at the
+ * end is found from the bytes as they are written. All the numbers are little-endian.
+ */
+public class FitExportEncoder extends ExportEncoder {
+	/** the size of the file header */
+	private static final int K_HEADERSIZE = 14;
+	/** the version of the FIT protocol, 1.0, and of the profile the messages are from, 20.96 */
+	private static final int K_PROTOCOLVERSION = 0x10;
+	private static final int K_PROFILEVERSION = 2096;
+	/** the seconds between the unix epoch and the FIT epoch, 1989-12-31 00:00:00 UTC */
+	private static final long K_FITEPOCHSECONDS = 631065600L;
+	/** the base types of the fields */
+	private static final int K_ENUM = 0x00;
+	private static final int K_UINT8 = 0x02;
+	private static final int K_UINT16 = 0x84;
+	private static final int K_UINT32 = 0x86;
+	/** the numbers of the messages used */
+	private static final int K_MESGFILEID = 0;
+	private static final int K_MESGRECORD = 20;
+	private static final int K_MESGLAP = 19;
+	private static final int K_MESGSESSION = 18;
+	private static final int K_MESGACTIVITY = 34;
+	/** the fields of each message written, field number, size and base type, in the order written */
+	private static final int[][] K_FILEIDFIELDS = new int[][] { { 0, 1, K_ENUM }, { 1, 2, K_UINT16 }, { 2, 2, K_UINT16 }, { 4, 4, K_UINT32 } };
+	private static final int[][] K_RECORDFIELDS = new int[][] { { 253, 4, K_UINT32 }, { 3, 1, K_UINT8 } };
+	private static final int[][] K_LAPFIELDS = new int[][] { { 253, 4, K_UINT32 }, { 2, 4, K_UINT32 }, { 7, 4, K_UINT32 }, { 8, 4, K_UINT32 },
+		{ 0, 1, K_ENUM }, { 1, 1, K_ENUM }, { 15, 1, K_UINT8 }, { 16, 1, K_UINT8 } };
+	private static final int[][] K_SESSIONFIELDS = new int[][] { { 253, 4, K_UINT32 }, { 2, 4, K_UINT32 }, { 7, 4, K_UINT32 }, { 8, 4, K_UINT32 },
+		{ 0, 1, K_ENUM }, { 1, 1, K_ENUM }, { 5, 1, K_ENUM }, { 16, 1, K_UINT8 }, { 17, 1, K_UINT8 }, { 25, 2, K_UINT16 }, { 26, 2, K_UINT16 } };
+	private static final int[][] K_ACTIVITYFIELDS = new int[][] { { 253, 4, K_UINT32 }, { 0, 4, K_UINT32 }, { 1, 2, K_UINT16 },
+		{ 2, 1, K_ENUM }, { 3, 1, K_ENUM }, { 4, 1, K_ENUM } };
+	/** the local numbers the messages are defined as */
+	private static final int K_LOCALFILEID = 0;
+	private static final int K_LOCALRECORD = 1;
+	private static final int K_LOCALSUMMARY = 2;
+	/** the values of the enums written */
+	private static final int K_FILETYPEACTIVITY = 4;
+	private static final int K_MANUFACTURERDEVELOPMENT = 255;
+	private static final int K_EVENTLAP = 9;
+	private static final int K_EVENTSESSION = 8;
+	private static final int K_EVENTACTIVITY = 26;
+	private static final int K_EVENTTYPESTOP = 1;
+	private static final int K_SPORTGENERIC = 0;
+	private static final int K_ACTIVITYMANUAL = 0;
+	/** the highest heart rate there can be, 255 is invalid */
+	private static final int K_MAXHEARTRATE = 254;
+	/** the table for the checksum, a nibble at a time */
+	private static final int[] K_CRCTABLE = new int[] { 0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401,
+		0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400 };
+	/** the totals of the samples, written after them */
+	private Summary summary = null;
+	/** the number of samples encoded, that must be all those in the summary */
+	private long noSamples = 0;
+	/** the checksum of the bytes written so far */
+	private int crc = 0;
+	/** true once the checksum is written, so it is not a part of itself */
+	private boolean isCrcWritten = false;
+
+	/**
+	 * constructor
+	 * @param channel is the channel to write the encoding to
+	 */
+	public FitExportEncoder(WritableByteChannel channel) {
+		super(channel);
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public void start(Summary summary) throws IOException {
+		this.summary = summary;
+		// the size of all the messages, they are all a fixed size so this is known now
+		long dataSize = getDefinitionSize(K_FILEIDFIELDS) + getMessageSize(K_FILEIDFIELDS)
+				+ getDefinitionSize(K_RECORDFIELDS) + summary.getNoSamples() * getMessageSize(K_RECORDFIELDS)
+				+ getDefinitionSize(K_LAPFIELDS) + getMessageSize(K_LAPFIELDS)
+				+ getDefinitionSize(K_SESSIONFIELDS) + getMessageSize(K_SESSIONFIELDS)
+				+ getDefinitionSize(K_ACTIVITYFIELDS) + getMessageSize(K_ACTIVITYFIELDS);
+		reserve(K_HEADERSIZE);
+		int headerStart = this.buffer.position();
+		this.buffer.put((byte) K_HEADERSIZE);
+		this.buffer.put((byte) K_PROTOCOLVERSION);
+		this.buffer.putShort((short) K_PROFILEVERSION);
+		this.buffer.putInt((int) dataSize);
+		this.buffer.put((byte) '.').put((byte) 'F').put((byte) 'I').put((byte) 'T');
+		int headerCrc = 0;
+		for (int i = headerStart; i < this.buffer.position(); ++i) {
+			headerCrc = updateCrc(headerCrc, this.buffer.get(i));
+		}
+		this.buffer.putShort((short) headerCrc);
+		// the file id, then the definition of the record for all the samples
+		putDefinition(K_LOCALFILEID, K_MESGFILEID, K_FILEIDFIELDS);
+		reserve(getMessageSize(K_FILEIDFIELDS));
+		this.buffer.put((byte) K_LOCALFILEID);
+		this.buffer.put((byte) K_FILETYPEACTIVITY);
+		this.buffer.putShort((short) K_MANUFACTURERDEVELOPMENT);
+		this.buffer.putShort((short) 0);
+		this.buffer.putInt(toFitTime(summary.getStartTime()));
+		putDefinition(K_LOCALRECORD, K_MESGRECORD, K_RECORDFIELDS);
+	}
+
+	@Override
+	public void encode(HeartRateMeasurement measurement, long time) throws IOException {
+		reserve(getMessageSize(K_RECORDFIELDS));
+		this.buffer.put((byte) K_LOCALRECORD);
+		this.buffer.putInt(toFitTime(time));
+		this.buffer.put(toFitHeartRate(measurement.getHeartRate()));
+		++this.noSamples;
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (this.noSamples != this.summary.getNoSamples()) {
+			// the size in the header is wrong, the file is no good
+			throw new IOException("Encoded " + this.noSamples + " samples, not the " + this.summary.getNoSamples() + " expected");
+		}
+		int endTime = toFitTime(this.summary.getEndTime());
+		int startTime = toFitTime(this.summary.getStartTime());
+		int elapsedMillis = (int) (this.summary.getEndTime() - this.summary.getStartTime());
+		// the lap, session and activity, all the one lap of the samples, re-using the same local number
+		putDefinition(K_LOCALSUMMARY, K_MESGLAP, K_LAPFIELDS);
+		reserve(getMessageSize(K_LAPFIELDS));
+		this.buffer.put((byte) K_LOCALSUMMARY);
+		this.buffer.putInt(endTime).putInt(startTime).putInt(elapsedMillis).putInt(elapsedMillis);
+		this.buffer.put((byte) K_EVENTLAP).put((byte) K_EVENTTYPESTOP);
+		this.buffer.put(toFitHeartRate(this.summary.getMeanHeartRate())).put(toFitHeartRate(this.summary.getMaxHeartRate()));
+		putDefinition(K_LOCALSUMMARY, K_MESGSESSION, K_SESSIONFIELDS);
+		reserve(getMessageSize(K_SESSIONFIELDS));
+		this.buffer.put((byte) K_LOCALSUMMARY);
+		this.buffer.putInt(endTime).putInt(startTime).putInt(elapsedMillis).putInt(elapsedMillis);
+		this.buffer.put((byte) K_EVENTSESSION).put((byte) K_EVENTTYPESTOP).put((byte) K_SPORTGENERIC);
+		this.buffer.put(toFitHeartRate(this.summary.getMeanHeartRate())).put(toFitHeartRate(this.summary.getMaxHeartRate()));
+		this.buffer.putShort((short) 0).putShort((short) 1);
+		putDefinition(K_LOCALSUMMARY, K_MESGACTIVITY, K_ACTIVITYFIELDS);
+		reserve(getMessageSize(K_ACTIVITYFIELDS));
+		this.buffer.put((byte) K_LOCALSUMMARY);
+		this.buffer.putInt(endTime).putInt(elapsedMillis).putShort((short) 1);
+		this.buffer.put((byte) K_ACTIVITYMANUAL).put((byte) K_EVENTACTIVITY).put((byte) K_EVENTTYPESTOP);
+		// write all that, to have the checksum of it all, then the checksum
+		flush();
+		this.isCrcWritten = true;
+		this.buffer.putShort((short) this.crc);
+		super.finish();
+	}
+
+	@Override
+	protected void bytesEncoded(ByteBuffer bytes) {
+		if (false == this.isCrcWritten) {
+			for (int i = bytes.position(); i < bytes.limit(); ++i) {
+				this.crc = updateCrc(this.crc, bytes.get(i));
+			}
+		}
+	}
+
+	/**
+	 * helper to put the definition of a message in the buffer
+	 * @param localNumber is the local number to define the message as
+	 * @param mesgNumber is the global number of the message
+	 * @param fields are the fields of the message
+	 */
+	private void putDefinition(int localNumber, int mesgNumber, int[][] fields) throws IOException {
+		reserve(getDefinitionSize(fields));
+		this.buffer.put((byte) (0x40 | localNumber));
+		// reserved, then little-endian
+		this.buffer.put((byte) 0).put((byte) 0);
+		this.buffer.putShort((short) mesgNumber);
+		this.buffer.put((byte) fields.length);
+		for (int[] field : fields) {
+			this.buffer.put((byte) field[0]).put((byte) field[1]).put((byte) field[2]);
+		}
+	}
+
+	/**
+	 * @return the size of the definition of a message with the fields
+	 */
+	private static int getDefinitionSize(int[][] fields) {
+		return 6 + 3 * fields.length;
+	}
+
+	/**
+	 * @return the size of a message with the fields, with its header
+	 */
+	private static int getMessageSize(int[][] fields) {
+		int size = 1;
+		for (int[] field : fields) {
+			size += field[1];
+		}
+		return size;
+	}
+
+	/**
+	 * helper to convert a time to a FIT time, the seconds since the FIT epoch
+	 */
+	private static int toFitTime(long time) {
+		return (int) (time / 1000L - K_FITEPOCHSECONDS);
+	}
+
+	/**
+	 * helper to put a heart rate in the byte of a FIT field, 255 is invalid so rates are clamped below it
+	 */
+	private static byte toFitHeartRate(int heartRate) {
+		return (byte) Math.max(0, Math.min(K_MAXHEARTRATE, heartRate));
+	}
+
+	/**
+	 * helper to add a byte to the checksum
+	 */
+	private static int updateCrc(int crc, byte value) {
+		int tmp = K_CRCTABLE[crc & 0xF];
+		crc = (crc >> 4) & 0x0FFF;
+		crc = crc ^ tmp ^ K_CRCTABLE[value & 0xF];
+		tmp = K_CRCTABLE[crc & 0xF];
+		crc = (crc >> 4) & 0x0FFF;
+		return crc ^ tmp ^ K_CRCTABLE[(value >> 4) & 0xF];
+	}
+}
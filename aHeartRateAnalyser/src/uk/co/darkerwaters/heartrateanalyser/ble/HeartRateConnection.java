@@ -1,6 +1,7 @@
 package uk.co.darkerwaters.heartrateanalyser.ble;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
@@ -27,8 +28,8 @@ public class HeartRateConnection implements ConnectionServiceListener {
     private String deviceAddress;
     /** the connection service we can connect to for data */
     private BleConnectionService bleConnectionService = null;
-    /** this is the current notification characteristic - heart-rate */
-    private BluetoothGattCharacteristic currentNotifyCharacteristic;
+    /** these are the current notification characteristics - heart-rate, keyed by device address */
+    private final HashMap<String, BluetoothGattCharacteristic> currentNotifyCharacteristics = new HashMap<String, BluetoothGattCharacteristic>();
     /** the defined UUID to which to connect */
     public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
     /** the defined UUID to which to set to receive heart-rate data */
@@ -152,9 +153,23 @@ public class HeartRateConnection implements ConnectionServiceListener {
 		}
 	}
     
+	/**
+	 * helper to get the address of the device
+	 * @param device is the device, can be null
+	 * @return the address, null if there is no device
+	 */
+	private static String getAddress(BluetoothDevice device) {
+		return null == device ? null : device.getAddress();
+	}
+
 	@Override
 	public void gattStateChanged(String deviceName, BluetoothDevice device, ConnectionState state) {
-		BleConnectionHistoryStore<?> store = this.bleConnectionService.getStore();
+		BleConnectionService service = getService();
+		if (null == service) {
+			// no service to get the data from
+			return;
+		}
+		BleConnectionHistoryStore<?> store = service.getStore(getAddress(device));
 		synchronized (this.listeners) {
 			for (HeartRateListener listener : this.listeners) {
 				listener.displayData(deviceName, device, state, (HeartRateDataStore) store);
@@ -166,7 +181,7 @@ public class HeartRateConnection implements ConnectionServiceListener {
 		BleConnectionService service = getService();
 		boolean success = false;
 		if (null != address && false == address.isEmpty() && null != service) {
-			if (service.getCurrentState() != ConnectionState.connected ||
+			if (service.getCurrentState(address) != ConnectionState.connected ||
 				null == this.deviceAddress ||
 				null == this.deviceName ||
 				false == this.deviceName.equals(name) ||
@@ -225,25 +240,29 @@ public class HeartRateConnection implements ConnectionServiceListener {
 		BleConnectionService service = getService();
 		if (null != service) {
 			// services are discovered - subscribe to heart-rate updates
-			List<BluetoothGattService> supportedGattServices = service.getSupportedGattServices();
+			String address = getAddress(device);
+			List<BluetoothGattService> supportedGattServices = service.getSupportedGattServices(address);
 			boolean isSupported = false;
 	        // connect to the heart-rate service to get the data we want...
 	        for (BluetoothGattService gattService : supportedGattServices) {
 	        	for (BluetoothGattCharacteristic characteristic : gattService.getCharacteristics()) {
 		        	if (characteristic.getUuid().equals(UUID_HEART_RATE_MEASUREMENT)) {
 		        		// supports HRM, ask for this data from the service
+		        		BluetoothGattCharacteristic currentNotifyCharacteristic;
+		        		synchronized (this.currentNotifyCharacteristics) {
+		        			currentNotifyCharacteristic = this.currentNotifyCharacteristics.put(address, characteristic);
+		        		}
 		        		if (null != currentNotifyCharacteristic) {
 		        		    // If there is an active notification on a characteristic, clear
 		                    // it first so it doesn't update the data field on the user interface.
-		        			service.setCharacteristicNotification(this.currentNotifyCharacteristic, false);
-		                    this.currentNotifyCharacteristic = null;
+		        			service.setCharacteristicNotification(address, currentNotifyCharacteristic, false);
 		                }
 		        		// and read the new one
-		        		service.setCharacteristicNotification(characteristic, true);
+		        		service.setCharacteristicNotification(address, characteristic, true);
 		        		// This is specific to Heart Rate Measurement, turn on the notification value too
 		                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
 	                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-	                    service.writeGattDescriptor(descriptor);
+	                    service.writeGattDescriptor(address, descriptor);
 	                    // Heart-rate done, stop looking at the characteristics
 	                    isSupported = true;
 	                    break;
@@ -251,16 +270,17 @@ public class HeartRateConnection implements ConnectionServiceListener {
 	        	}
 	        }
 	        if (false == isSupported) {
-	        	Log.w(MainActivity.TAG, "Heart-rate measurements not supported by device " + this.deviceName);
-	        	disconnectDevice();
+	        	Log.w(MainActivity.TAG, "Heart-rate measurements not supported by device " + deviceName);
+	        	service.disconnect(address);
 	        }
 		}
 	}
 
 	@Override
 	public void gattDataAvailable(String deviceName, BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
-        // there is new data available, show this, get the data store from the service
-        BleConnectionHistoryStore<?> store = this.bleConnectionService.getStore();
+        // there is new data available, show this, get the data store for this device from the service
+		BleConnectionService service = getService();
+        BleConnectionHistoryStore<?> store = null == service ? null : service.getStore(getAddress(device));
         if (null != store && store instanceof HeartRateDataStore) {
             // show this data
             displayHeartRateData(deviceName, device, (HeartRateDataStore)store);
@@ -275,7 +295,7 @@ public class HeartRateConnection implements ConnectionServiceListener {
 		ConnectionState state;
 		BleConnectionService service = getService();
 		if (null != service) {
-			state = service.getCurrentState();
+			state = service.getCurrentState(getAddress(device));
 		}
 		else {
 			state = ConnectionState.disconnected;
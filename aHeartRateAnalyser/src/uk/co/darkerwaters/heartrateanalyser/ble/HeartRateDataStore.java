@@ -1,118 +1,383 @@
 package uk.co.darkerwaters.heartrateanalyser.ble;
 
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 import uk.co.darkerwaters.heartrateanalyser.MainActivity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
-import android.graphics.Color;
 import android.util.Log;
 
-public class HeartRateDataStore extends BleConnectionHistoryStore<Integer> {
+public class HeartRateDataStore extends IntConnectionHistoryStore {
+	/** the measurement to decode each notification into, re-used to prevent garbage */
+	private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+	/** the stream of beat-to-beat intervals received, alongside the binned heart rate data */
+	private final RrIntervalBuffer rrIntervals = new RrIntervalBuffer(RrIntervalBuffer.K_DAYCAPACITY);
+	/** the time to wait for the ingest thread to store the last of the data when closing */
+	private static final long K_INGESTSTOPTIMEOUT = 2000;
+	/** the queue of samples from the GATT callback thread to our ingest thread */
+	private final HeartRateIngestQueue ingestQueue = new HeartRateIngestQueue(HeartRateIngestQueue.K_DEFAULTCAPACITY);
+	/** the thread that takes samples from the queue and stores them */
+	private final Thread ingestThread;
+	/** false when the ingest thread is to stop */
+	private volatile boolean isIngesting = true;
+	/** the name of the directory, in the files directory, the journals are kept in */
+	private static final String K_JOURNALDIR = "journal";
+	/** the journal of every sample received, null if there is not one */
+	private final SampleJournal journal;
+	/** true once the samples in the journal not yet saved are back in the store */
+	private volatile boolean isJournalRecovered = false;
+	/** counted down once the ingest thread has recovered the journal, and is ready for samples */
+	private final CountDownLatch recoveredLatch = new CountDownLatch(1);
+	/** the sequence in the journal of the first sample not yet in the store */
+	private volatile long storedSequence = 0;
+	/** the name of the directory, in the files directory, the minute rollups are kept in */
+	private static final String K_MINUTESDIR = "minutes";
+	/** the heart rate a minute at a time, for the heart rate over a range of time, null if not kept */
+	private final MinuteRollupStore minuteRollups;
+
 	public HeartRateDataStore(Context context) {
-		super(context, new HeartRateDataStorePackager());
-		Log.i(MainActivity.TAG, "Creating new heart rate store");
-		// also we want to ensure we have something for now, we can do this by storing a nothing
-		// value, which will ensure there is a non-null history for the current store
-		storeData (0, 0);
+		this(context, null);
+	}
+
+	public HeartRateDataStore(Context context, String deviceAddress) {
+		this(context, deviceAddress, FileHistoryStorage.K_BACKEND);
+	}
+
+	public HeartRateDataStore(Context context, String deviceAddress, HistoryStorage.Backend storageBackend) {
+		super(context, new HeartRateDataStorePackager(), deviceAddress, storageBackend);
+		Log.i(MainActivity.TAG, "Creating new heart rate store for " + (null == deviceAddress ? "no device" : deviceAddress));
+		// the journal and minutes are opened on the ingest thread, nothing is read or written here
+		File filesDir = context.getFilesDir();
+		this.journal = null == filesDir ? null : new SampleJournal(new File(filesDir, K_JOURNALDIR), getFilePrefix());
+		this.minuteRollups = null == filesDir ? null : new MinuteRollupStore(new File(filesDir, K_MINUTESDIR), getFilePrefix(), getRetentionPolicy().getNoDays());
+		// start the thread to store the data, keeps the binning and file writing off the GATT callback thread
+		this.ingestThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ingestSamples();
+			}
+		}, "HeartRateIngest " + getFilePrefix());
+		this.ingestThread.setDaemon(true);
+		this.ingestQueue.setConsumerThread(this.ingestThread);
+		this.ingestThread.start();
 	}
 	public static class HeartRateStoreProvider implements BleConnectionHistoryStore.Provider<Integer> {
+		/** the kind of storage the stores keep their histories in */
+		private final HistoryStorage.Backend storageBackend;
+
+		public HeartRateStoreProvider() {
+			this(FileHistoryStorage.K_BACKEND);
+		}
+
+		/**
+		 * constructor
+		 * @param storageBackend is the kind of storage the stores created keep their histories in
+		 */
+		public HeartRateStoreProvider(HistoryStorage.Backend storageBackend) {
+			this.storageBackend = storageBackend;
+		}
+
 		@Override
-		public BleConnectionHistoryStore<Integer> createNewStore(Context context) {
-			return new HeartRateDataStore(context);
+		public BleConnectionHistoryStore<Integer> createNewStore(Context context, String storeKey) {
+			return new HeartRateDataStore(context, storeKey, this.storageBackend);
 		}
 	}
 	
 	@Override
 	public void handleGattData(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
 		if (HeartRateConnection.UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-            }
-            int heartRate = characteristic.getIntValue(format, 1);
-            storeData(heartRate, 1);
+			byte[] value = characteristic.getValue();
+			BleClock clock = getClock();
+			handleMeasurementData(value, 0, null == value ? 0 : value.length, clock.currentTimeMillis(), clock.elapsedRealtime());
         }
 	}
-	
-	public static class HeartRateDataStorePackager implements StorePackager<Integer> {
 
-		private static final int K_ALPHA = 255;
+	/**
+	 * handle the raw value of a heart rate measurement characteristic, only to be called from
+	 * the one thread receiving the data for this store
+	 * @param data is the raw value of the characteristic
+	 * @param offset is the index of the flags byte in the data
+	 * @param length is the number of bytes in the measurement
+	 * @param time is the wall-clock time, in ms, the data was received
+	 * @param elapsedTime is the monotonic time, in ms, the data was received
+	 * @return true if the data was valid and queued to be stored
+	 */
+	public boolean handleMeasurementData(byte[] data, int offset, int length, long time, long elapsedTime) {
+		// decode the raw value into our re-used measurement, the format is in the flags of the data
+		if (this.measurement.parse(data, offset, length)) {
+			// pass this to the ingest thread to store, this thread is not to be held up
+			return this.ingestQueue.offer(this.measurement, time, elapsedTime);
+		}
+		else {
+			Log.w(MainActivity.TAG, "Invalid heart rate measurement received");
+			return false;
+		}
+	}
+
+	/**
+	 * the body of the ingest thread, stores all the samples put in the queue until the store is closed
+	 */
+	private void ingestSamples() {
+		// put back any samples that were journaled but not saved, from a crash, before any new ones
+		try {
+			awaitPreviousStoreClosed();
+			recoverFromJournal();
+		}
+		finally {
+			this.recoveredLatch.countDown();
+		}
+		HeartRateIngestQueue.SampleHandler handler = new HeartRateIngestQueue.SampleHandler() {
+			@Override
+			public void handleSample(HeartRateMeasurement measurement, long time, long elapsedTime) {
+				// journal the sample before it is stored, so it is never lost
+				long sequence = null == journal ? -1 : journal.append(measurement, time);
+				synchronized (getDataLock()) {
+					// store the sample and its sequence together, so a save has both or neither
+					storeData(measurement.getHeartRate(), 1, time);
+					if (sequence >= 0) {
+						// this sample is in the store, to be saved with the next save
+						storedSequence = sequence + 1;
+					}
+				}
+				storeMinuteRollup(measurement.getHeartRate(), time, sequence);
+				storeRrIntervals(measurement, elapsedTime);
+			}
+		};
+		while (this.isIngesting) {
+			if (0 == this.ingestQueue.drain(handler)) {
+				// nothing to do, wait for the producer to wake us
+				LockSupport.park(this);
+			}
+		}
+		// store anything left in the queue before we stop
+		this.ingestQueue.drain(handler);
+	}
+
+	@Override
+	public void closeStore() {
+		// stop the ingest thread, the persist thread waits for it to store the last of the data
+		this.isIngesting = false;
+		LockSupport.unpark(this.ingestThread);
+		super.closeStore();
+	}
+
+	@Override
+	protected boolean stopStoringData() {
+		try {
+			this.ingestThread.join(K_INGESTSTOPTIMEOUT);
+		} catch (InterruptedException e) {
+			Log.e(MainActivity.TAG, "Interrupted waiting for the ingest thread to stop", e);
+		}
+		if (this.ingestThread.isAlive()) {
+			Log.e(MainActivity.TAG, "Timed out waiting for the ingest thread to stop " + getFilePrefix());
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected void closeStorage() {
+		super.closeStorage();
+		if (null != this.journal) {
+			this.journal.close();
+		}
+		if (null != this.minuteRollups) {
+			this.minuteRollups.close();
+		}
+	}
+
+	@Override
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		super.setRetentionPolicy(policy);
+		if (null != this.minuteRollups) {
+			// the minutes are kept as long as the days are
+			this.minuteRollups.setNoDaysKept(policy.getNoDays());
+		}
+	}
+
+	/**
+	 * helper to store the heart rate in the record of its minute
+	 * @param heartRate is the heart rate
+	 * @param time is the wall-clock time, in ms, of the sample
+	 * @param sequence is the sequence of the sample in the journal, -1 if not journaled
+	 */
+	private void storeMinuteRollup(int heartRate, long time, long sequence) {
+		if (null != this.minuteRollups) {
+			this.minuteRollups.add(heartRate, getZones().getZone(heartRate), time, sequence);
+		}
+	}
+
+	/**
+	 * @return the zones the data of this store is binned into now
+	 */
+	public HeartRateZones getZones() {
+		return ((HeartRateDataStorePackager) getPackager()).getZones();
+	}
+
+	/**
+	 * set the zones to bin the data of this store into from now on, leaving other stores alone
+	 * @param zones are the zones to use, null to use the current zones that all stores default to
+	 */
+	public void setZones(HeartRateZones zones) {
+		((HeartRateDataStorePackager) getPackager()).setZones(zones);
+	}
+
+	/**
+	 * @return the heart rate a minute at a time, for the heart rate over a range of time, null if not kept
+	 */
+	public MinuteRollupStore getMinuteRollups() {
+		return this.minuteRollups;
+	}
+
+	/**
+	 * helper to open the journal and store all the samples in it that were not saved in the files
+	 */
+	private void recoverFromJournal() {
+		if (null == this.journal || false == this.journal.open()) {
+			// no journal, just carry on without one
+			return;
+		}
+		long noRecovered;
+		final long[] noStored = new long[1];
+		synchronized (getDataLock()) {
+			// replay holding the data lock, so a save on the persist thread cannot take some of the
+			// replayed samples and then checkpoint with the sequence of them all
+			long fromSequence = this.journal.getCheckpoint();
+			noRecovered = this.journal.replay(fromSequence, new SampleJournal.RecordHandler() {
+				@Override
+				public void handleRecord(long sequence, HeartRateMeasurement measurement, long time) {
+					if (false == isDataInFile(time, sequence)) {
+						// saved in the journal but not the files, put it back
+						storeData(measurement.getHeartRate(), 1, time);
+						++noStored[0];
+					}
+					storeMinuteRollup(measurement.getHeartRate(), time, sequence);
+				}
+			});
+			this.storedSequence = this.journal.getNextSequence();
+			this.isJournalRecovered = true;
+		}
+		if (noRecovered > 0) {
+			Log.i(MainActivity.TAG, "Recovered " + noRecovered + " samples from the journal for " + getFilePrefix() + ", " + noStored[0] + " not already saved");
+		}
+	}
+
+	@Override
+	public boolean awaitOpened(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		if (false == super.awaitOpened(timeout)) {
+			return false;
+		}
+		try {
+			// and for the ingest thread to put back what was in the journal
+			return this.recoveredLatch.await(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Log.e(MainActivity.TAG, "Interrupted waiting for the journal to be recovered " + getFilePrefix(), e);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	@Override
+	protected long getDataSequence() {
+		// nothing in the journal counts as saved until we have recovered what wasn't
+		return this.isJournalRecovered ? this.storedSequence : -1;
+	}
+
+	@Override
+	protected void storeContentsSaved(long dataSequence) {
+		if (dataSequence >= 0) {
+			// everything journaled before here is in the files, so doesn't need to be replayed
+			this.journal.setCheckpoint(dataSequence);
+		}
+	}
+
+	/**
+	 * @return the journal of every sample received, null if there is not one
+	 */
+	public SampleJournal getJournal() {
+		return this.journal;
+	}
+
+	/**
+	 * @return the queue of samples waiting to be stored, for the depth and drop counters
+	 */
+	public HeartRateIngestQueue getIngestQueue() {
+		return this.ingestQueue;
+	}
+
+	/**
+	 * store the RR-intervals from the measurement in the stream of intervals
+	 * @param measurement is the measurement containing any intervals
+	 * @param time is the monotonic (elapsed realtime) time, in ms, the measurement was received
+	 * @return the number of intervals stored
+	 */
+	public int storeRrIntervals(HeartRateMeasurement measurement, long time) {
+		return this.rrIntervals.add(measurement, time);
+	}
+
+	/**
+	 * @return the buffer of RR-intervals received, read from this by copying into your own arrays
+	 */
+	public RrIntervalBuffer getRrIntervals() {
+		return this.rrIntervals;
+	}
+
+	/**
+	 * @return the last measurement received, re-used for every notification so do not keep it
+	 */
+	public HeartRateMeasurement getLastMeasurement() {
+		return this.measurement;
+	}
+	
+	public static class HeartRateDataStorePackager implements IntStorePackager {
+		/** the zones of the store this packages for, null to use the current zones */
+		private volatile HeartRateZones zones = null;
+		/**
+		 * @return the zones to bin data into now, the store's own or the current zones if it has none
+		 */
+		public HeartRateZones getZones() {
+			HeartRateZones storeZones = this.zones;
+			return null == storeZones ? HeartRateZones.getCurrent() : storeZones;
+		}
+		/**
+		 * @param zones are the zones to bin data into from now on, null to use the current zones
+		 */
+		public void setZones(HeartRateZones zones) {
+			this.zones = zones;
+		}
 		@Override
 		public Integer dataFromString(String data) {
 			return Integer.parseInt(data);
 		}
 		@Override
+		public int dataToInt(Integer data) {
+			return data.intValue();
+		}
+		@Override
 		public int getNoBins() {
-			return 7;
+			return HeartRateZones.K_NOZONES;
 		}
 		@Override
 		public int getBinIndex(Integer data) {
-			if (data < 60) {
-				return 0;
-			}
-			else if (data < 91) {
-				return 1;
-			}
-			else if (data < 110) {
-				return 2;
-			}
-			else if (data < 128) {
-				return 3;
-			}
-			else if (data < 147) {
-				return 4;
-			}
-			else if (data < 165) {
-				return 5;
-			}
-			else {
-				return 6;
-			}
+			return getBinIndex(data.intValue());
+		}
+		@Override
+		public int getBinIndex(int data) {
+			// the zones can be swapped at any time, so just get the ones to use now
+			return getZones().getZone(data);
 		}
 		@Override
 		public String getBinName(int binIndex) {
-			switch (binIndex) {
-			case 0:
-				return "Still";
-			case 1:
-				return "Resting";
-			case 2:
-				return "Recovery";
-			case 3:
-				return "Endurance";
-			case 4:
-				return "Aerobic";
-			case 5:
-				return "Anaerobic";
-			case 6:
-				return "Peak";
-			default:
-				return "unknown";
-			}
+			return getZones().getName(binIndex);
 		}
 		@Override
 		public int getBinColour(int binIndex) {
-			switch (binIndex) {
-			case 0:
-				return Color.argb(K_ALPHA, 65,211,201);
-			case 1:
-				return Color.argb(K_ALPHA, 153,204,153);
-			case 2:
-				return Color.argb(K_ALPHA, 249,199,78);
-			case 3:
-				return Color.argb(K_ALPHA, 251,101,77);
-			case 4:
-				return Color.argb(K_ALPHA, 73,150,42);
-			case 5:
-				return Color.argb(K_ALPHA, 54,111,175);
-			case 6:
-				return Color.argb(K_ALPHA, 134,69,77);
-			default:
-				return Color.TRANSPARENT;
-			}
+			return getZones().getColour(binIndex);
 		}
 		@Override
 		public String getFilePrefix() {
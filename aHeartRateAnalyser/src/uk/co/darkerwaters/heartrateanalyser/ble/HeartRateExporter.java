@@ -0,0 +1,302 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+/**
+ * exports the heart rate data of a store out of the app, as CSV, TCX or FIT files. The samples
+ * are streamed from where they are kept, through the fixed-size buffer of an encoder, to the
+ * channel of the file, so the memory used is the same however long the recording. The samples
+ * are read twice, once for the totals the formats need at the start and once to encode them.
+ * <p>
+ * A session, a range of time, is exported with every sample received from the journal, which
+ * only has the last day or so. A day is exported a minute at a time from the minute rollups, the
+ * mean heart rate of each minute as a sample, as these are kept as long as the days are.
+ * <p>
+ * The exports run on background threads, telling the listener how they are going. An export of
+ * several days encodes the days in parallel, a file each. Cancelling the future of an export
+ * interrupts the write to the file, which stops it and deletes the file.
+ */
+@SuppressLint("SimpleDateFormat")
+public class HeartRateExporter {
+	/** the default number of exports to run at once */
+	public static final int K_DEFAULTNOTHREADS = 2;
+	/** the number of samples encoded between telling the listener the progress */
+	private static final int K_PROGRESSINTERVAL = 4096;
+	/** the format of the day in the names of the files of days */
+	private static final String K_DAYFORMAT = "yyyy-MM-dd";
+	/**
+	 * the formats the data can be exported as
+	 */
+	public enum Format {
+		CSV("csv"),
+		TCX("tcx"),
+		FIT("fit");
+
+		/** the extension of the files of the format */
+		private final String extension;
+
+		private Format(String extension) {
+			this.extension = extension;
+		}
+
+		/**
+		 * @return the extension of the files of the format, without the dot
+		 */
+		public String getExtension() {
+			return this.extension;
+		}
+
+		/**
+		 * create the encoder of the format
+		 * @param channel is the channel to write the encoding to
+		 * @return the encoder
+		 */
+		public ExportEncoder createEncoder(WritableByteChannel channel) {
+			switch (this) {
+			case TCX:
+				return new TcxExportEncoder(channel);
+			case FIT:
+				return new FitExportEncoder(channel);
+			default:
+				return new CsvExportEncoder(channel);
+			}
+		}
+	}
+	/**
+	 * the interface to a class that wants to know how an export is going, called on the thread of the export
+	 */
+	public interface ExportListener {
+		/**
+		 * called as the samples are encoded
+		 * @param file is the file being exported to
+		 * @param noSamplesDone is the number of samples encoded so far
+		 * @param noSamples is the number of samples to encode
+		 */
+		public void exportProgress(File file, long noSamplesDone, long noSamples);
+		/**
+		 * called when the export is done
+		 * @param file is the file exported to, deleted if the export failed
+		 * @param isSuccess is true if all the samples were exported
+		 */
+		public void exportComplete(File file, boolean isSuccess);
+	}
+	/**
+	 * the interface to where the samples of an export come from
+	 */
+	private interface SampleSource {
+		/**
+		 * pass all the samples, in the order of their time, to the handler
+		 * @param handler is the handler, the sequence passed is -1 if not from the journal
+		 * @return the number of samples
+		 */
+		public long read(SampleJournal.RecordHandler handler);
+	}
+	/** the store to export the data of */
+	private final HeartRateDataStore store;
+	/** the threads the exports are run on */
+	private final ExecutorService exportExecutor;
+
+	/**
+	 * constructor
+	 * @param store is the store to export the data of
+	 * @param noThreads is the number of exports to run at once
+	 */
+	public HeartRateExporter(HeartRateDataStore store, int noThreads) {
+		this.store = store;
+		final String threadName = "HeartRateExport " + store.getFilePrefix();
+		this.exportExecutor = Executors.newFixedThreadPool(Math.max(1, noThreads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * export every sample received over the range of time, from the journal
+	 * @param fromTime is the start of the range, in ms since the epoch
+	 * @param toTime is the end of the range, in ms since the epoch, not included
+	 * @param format is the format to export as
+	 * @param file is the file to export to, replaced if there
+	 * @param listener is the listener to tell how it is going, can be null
+	 * @return the future of the export, true if exported
+	 */
+	public Future<Boolean> exportSession(final long fromTime, final long toTime, Format format, File file, ExportListener listener) {
+		final SampleJournal journal = this.store.getJournal();
+		return submit(new SampleSource() {
+			@Override
+			public long read(SampleJournal.RecordHandler handler) {
+				return null == journal ? 0 : journal.readRange(fromTime, toTime, handler);
+			}
+		}, format, file, listener);
+	}
+
+	/**
+	 * export the day, a minute at a time from the minute rollups
+	 * @param day is a time in the day
+	 * @param format is the format to export as
+	 * @param file is the file to export to, replaced if there
+	 * @param listener is the listener to tell how it is going, can be null
+	 * @return the future of the export, true if exported
+	 */
+	public Future<Boolean> exportDay(final Date day, Format format, File file, ExportListener listener) {
+		final MinuteRollupStore minuteRollups = this.store.getMinuteRollups();
+		return submit(new SampleSource() {
+			@Override
+			public long read(final SampleJournal.RecordHandler handler) {
+				if (null == minuteRollups) {
+					return 0;
+				}
+				final HeartRateMeasurement measurement = new HeartRateMeasurement();
+				final int[] noRrIntervals = new int[0];
+				return minuteRollups.readMinutes(day.getTime(), new MinuteRollupStore.MinuteHandler() {
+					@Override
+					public void handleMinute(long time, int count, int mean, int min, int max) {
+						// the minute is a sample of its mean heart rate
+						measurement.set(0, mean, HeartRateMeasurement.K_NO_ENERGY, noRrIntervals, 0, 0);
+						handler.handleRecord(-1, measurement, time);
+					}
+				});
+			}
+		}, format, file, listener);
+	}
+
+	/**
+	 * export the days, each to its own file in the directory, encoding them in parallel
+	 * @param firstDay is a time in the first day
+	 * @param noDays is the number of days to export
+	 * @param format is the format to export as
+	 * @param directory is the directory to put the files in, named for the store and the day
+	 * @param listener is the listener to tell how each is going, can be null
+	 * @return the futures of the exports of each day, in the order of the days
+	 */
+	public List<Future<Boolean>> exportDays(Date firstDay, int noDays, Format format, File directory, ExportListener listener) {
+		List<Future<Boolean>> exports = new ArrayList<Future<Boolean>>(noDays);
+		SimpleDateFormat dayFormat = new SimpleDateFormat(K_DAYFORMAT);
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(firstDay);
+		for (int i = 0; i < noDays; ++i) {
+			Date day = calendar.getTime();
+			File file = new File(directory, this.store.getFilePrefix() + "-" + dayFormat.format(day) + "." + format.getExtension());
+			exports.add(exportDay(day, format, file, listener));
+			calendar.add(Calendar.DATE, 1);
+		}
+		return exports;
+	}
+
+	/**
+	 * stop the threads, any exports running are finished first
+	 */
+	public void shutdown() {
+		this.exportExecutor.shutdown();
+	}
+
+	/**
+	 * helper to run an export on the export threads
+	 */
+	private Future<Boolean> submit(final SampleSource source, final Format format, final File file, final ExportListener listener) {
+		return this.exportExecutor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return runExport(source, format, file, listener);
+			}
+		});
+	}
+
+	/**
+	 * export the samples from the source to the file, on this thread
+	 * @param source is where the samples come from
+	 * @param format is the format to export as
+	 * @param file is the file to export to
+	 * @param listener is the listener to tell how it is going, can be null
+	 * @return true if exported
+	 */
+	private boolean runExport(SampleSource source, Format format, final File file, final ExportListener listener) {
+		// first find the totals, the formats want some of them before the samples
+		final ExportEncoder.Summary summary = new ExportEncoder.Summary();
+		source.read(new SampleJournal.RecordHandler() {
+			@Override
+			public void handleRecord(long sequence, HeartRateMeasurement measurement, long time) {
+				summary.add(measurement, time);
+			}
+		});
+		final long endTime = summary.getEndTime();
+		final long noSamples = summary.getNoSamples();
+		FileOutputStream outputStream = null;
+		boolean isSuccess = false;
+		try {
+			outputStream = new FileOutputStream(file);
+			final ExportEncoder encoder = format.createEncoder(outputStream.getChannel());
+			encoder.start(summary);
+			// then stream them all through the encoder, just those in the totals as more can arrive
+			final long[] noDone = new long[1];
+			final IOException[] error = new IOException[1];
+			source.read(new SampleJournal.RecordHandler() {
+				@Override
+				public void handleRecord(long sequence, HeartRateMeasurement measurement, long time) {
+					if (null != error[0] || noDone[0] >= noSamples || time > endTime) {
+						// failed, or done
+						return;
+					}
+					try {
+						encoder.encode(measurement, time);
+					} catch (IOException e) {
+						error[0] = e;
+						return;
+					}
+					if (++noDone[0] % K_PROGRESSINTERVAL == 0 && null != listener) {
+						listener.exportProgress(file, noDone[0], noSamples);
+					}
+				}
+			});
+			if (null != error[0]) {
+				throw error[0];
+			}
+			encoder.finish();
+			outputStream.getFD().sync();
+			isSuccess = true;
+			if (null != listener) {
+				listener.exportProgress(file, noDone[0], noSamples);
+			}
+			Log.i(MainActivity.TAG, "Exported " + noDone[0] + " samples, " + encoder.getNoBytes() + " bytes, to " + file.getName());
+		}
+		catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to export to " + file.getName(), e);
+		}
+		finally {
+			if (null != outputStream) {
+				try {
+					outputStream.close();
+				} catch (IOException e) {
+					Log.w(MainActivity.TAG, "Failed to close the file " + file.getName(), e);
+				}
+			}
+			if (false == isSuccess && file.exists() && false == file.delete()) {
+				Log.w(MainActivity.TAG, "Failed to delete the failed export " + file.getName());
+			}
+		}
+		if (null != listener) {
+			listener.exportComplete(file, isSuccess);
+		}
+		return isSuccess;
+	}
+}
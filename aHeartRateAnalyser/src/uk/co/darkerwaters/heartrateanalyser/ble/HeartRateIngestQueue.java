@@ -0,0 +1,280 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a lock-free, single-producer / single-consumer ring of decoded heart rate samples. The GATT
+ * callback thread is the only producer and a dedicated store thread the only consumer, so the
+ * callback is never held up by the binning and file writing the store performs. The samples are
+ * held in pre-allocated primitive arrays so passing one through creates no garbage.
+ */
+public class HeartRateIngestQueue {
+	/** the default number of samples the queue can hold, over four minutes at 4 Hz */
+	public static final int K_DEFAULTCAPACITY = 1024;
+	/** the maximum number of RR-intervals kept per sample, any more are dropped */
+	public static final int K_MAXRRPERSAMPLE = 16;
+	/** the longest the producers are held up waiting for space in one go, once the budget is full */
+	private static final long K_MAXBACKPRESSURENANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	/** the budget to hold up the producers refills at this fraction of the time that passes, 1/20th */
+	private static final long K_BACKPRESSUREREFILL = 20;
+	/** the time the producer parks each time it waits for space */
+	private static final long K_BACKOFFNANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/**
+	 * the interface the consumer implements to handle each sample taken from the queue
+	 */
+	public interface SampleHandler {
+		/**
+		 * handle the sample, the measurement is re-used so must not be kept
+		 * @param measurement is the decoded measurement
+		 * @param time is the wall-clock time, in ms, the measurement was received
+		 * @param elapsedTime is the monotonic time, in ms, the measurement was received
+		 */
+		public void handleSample(HeartRateMeasurement measurement, long time, long elapsedTime);
+	}
+	/** the mask to wrap a sequence into the arrays, capacity is always a power of two */
+	private final int mask;
+	/** the slots of sample data */
+	private final int[] flags;
+	private final int[] heartRates;
+	private final int[] energyExpended;
+	private final int[] noRrIntervals;
+	private final int[] rrIntervals;
+	private final long[] times;
+	private final long[] elapsedTimes;
+	/** the sequence of the next sample to read, only written by the consumer */
+	private final AtomicLong head = new AtomicLong(0);
+	/** the sequence of the next sample to write, only written by the producer */
+	private final AtomicLong tail = new AtomicLong(0);
+	/** the producer's last view of the head, saves reading the consumer's counter every time */
+	private long producerHeadCache = 0;
+	/** the measurement the consumer is passed each sample in, re-used for every one */
+	private final HeartRateMeasurement consumerMeasurement = new HeartRateMeasurement();
+	/** the consumer thread to wake when there is new data, null if not known */
+	private volatile Thread consumerThread = null;
+	/** the counters of what has happened on this queue */
+	private final AtomicLong noDropped = new AtomicLong(0);
+	private final AtomicLong noBackpressured = new AtomicLong(0);
+	private final AtomicLong noRrDropped = new AtomicLong(0);
+	/**
+	 * the time the producers can still be held up for, shared by every queue as the GATT callbacks
+	 * of every device come on the one binder thread, so a slow store cannot stall the others for long
+	 */
+	private static long backpressureBudgetNanos = K_MAXBACKPRESSURENANOS;
+	/** when the budget was last refilled */
+	private static long backpressureRefilled = System.nanoTime();
+	/** the deepest the queue has been, as seen by the consumer, only written by the consumer */
+	private volatile int maxDepth = 0;
+
+	/**
+	 * constructor
+	 * @param capacity is the minimum number of samples to hold, rounded up to a power of two
+	 */
+	public HeartRateIngestQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.mask = size - 1;
+		this.flags = new int[size];
+		this.heartRates = new int[size];
+		this.energyExpended = new int[size];
+		this.noRrIntervals = new int[size];
+		this.rrIntervals = new int[size * K_MAXRRPERSAMPLE];
+		this.times = new long[size];
+		this.elapsedTimes = new long[size];
+	}
+
+	/**
+	 * set the thread that consumes this queue, to be woken when there is data to handle
+	 * @param consumerThread is the thread calling drain
+	 */
+	public void setConsumerThread(Thread consumerThread) {
+		this.consumerThread = consumerThread;
+	}
+
+	/**
+	 * add the measurement to the queue, only to be called from the one producer thread. If the
+	 * queue is full the producer is held up for a short time to let the consumer catch up, if it
+	 * does not the sample is dropped. All the producers together are held up for no more than
+	 * 1/K_BACKPRESSUREREFILL of the time, so a store that stops consuming just drops its samples
+	 * @param measurement is the measurement to copy into the queue
+	 * @param time is the wall-clock time, in ms, the measurement was received
+	 * @param elapsedTime is the monotonic time, in ms, the measurement was received
+	 * @return true if added, false if dropped as the consumer has fallen behind
+	 */
+	public boolean offer(HeartRateMeasurement measurement, long time, long elapsedTime) {
+		long sequence = this.tail.get();
+		if (sequence - this.producerHeadCache > this.mask) {
+			// looks full, get the latest head from the consumer
+			this.producerHeadCache = this.head.get();
+			if (sequence - this.producerHeadCache > this.mask && false == waitForSpace(sequence)) {
+				// the consumer has not caught up, drop this sample
+				this.noDropped.incrementAndGet();
+				return false;
+			}
+		}
+		// copy the data into the slot
+		int slot = (int) (sequence & this.mask);
+		this.flags[slot] = measurement.getFlags();
+		this.heartRates[slot] = measurement.getHeartRate();
+		this.energyExpended[slot] = measurement.getEnergyExpended();
+		int noIntervals = measurement.getNoRrIntervals();
+		if (noIntervals > K_MAXRRPERSAMPLE) {
+			this.noRrDropped.addAndGet(noIntervals - K_MAXRRPERSAMPLE);
+			noIntervals = K_MAXRRPERSAMPLE;
+		}
+		for (int i = 0; i < noIntervals; ++i) {
+			this.rrIntervals[slot * K_MAXRRPERSAMPLE + i] = measurement.getRrInterval(i);
+		}
+		this.noRrIntervals[slot] = noIntervals;
+		this.times[slot] = time;
+		this.elapsedTimes[slot] = elapsedTime;
+		// publish the slot, the ordered write makes the data visible before the new tail
+		this.tail.lazySet(sequence + 1);
+		wakeConsumer();
+		return true;
+	}
+
+	/**
+	 * helper to hold the producer up while the consumer makes space in the queue, for no longer
+	 * than the budget shared by all the producers allows
+	 * @param sequence is the sequence the producer wants to write
+	 * @return true if there is now space, false if the time allowed ran out
+	 */
+	private boolean waitForSpace(long sequence) {
+		long budget = takeBackpressureBudget();
+		if (budget <= 0) {
+			// the producers have been held up enough lately, drop this at once
+			return false;
+		}
+		this.noBackpressured.incrementAndGet();
+		long start = System.nanoTime();
+		long deadline = start + budget;
+		boolean isSpace = false;
+		do {
+			wakeConsumer();
+			LockSupport.parkNanos(Math.min(K_BACKOFFNANOS, deadline - System.nanoTime()));
+			this.producerHeadCache = this.head.get();
+			isSpace = sequence - this.producerHeadCache <= this.mask;
+		} while (false == isSpace && System.nanoTime() < deadline);
+		// give back what we didn't use, for the next wait
+		returnBackpressureBudget(budget - (System.nanoTime() - start));
+		return isSpace;
+	}
+
+	/**
+	 * helper to take all the budget there is to hold up a producer, refilled for the time since last taken
+	 * @return the time the producer can be held up for, in ns
+	 */
+	private static synchronized long takeBackpressureBudget() {
+		long now = System.nanoTime();
+		long budget = Math.min(K_MAXBACKPRESSURENANOS, backpressureBudgetNanos + (now - backpressureRefilled) / K_BACKPRESSUREREFILL);
+		backpressureRefilled = now;
+		backpressureBudgetNanos = 0;
+		return budget;
+	}
+
+	/**
+	 * helper to give back the budget a producer did not use
+	 * @param unused is the time, in ns, not spent waiting
+	 */
+	private static synchronized void returnBackpressureBudget(long unused) {
+		if (unused > 0) {
+			backpressureBudgetNanos = Math.min(K_MAXBACKPRESSURENANOS, backpressureBudgetNanos + unused);
+		}
+	}
+
+	/**
+	 * helper to wake the consumer thread to handle the data
+	 */
+	private void wakeConsumer() {
+		Thread thread = this.consumerThread;
+		if (null != thread) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * pass all the samples currently in the queue to the handler, only to be called from the one
+	 * consumer thread
+	 * @param handler is the handler to pass each sample to
+	 * @return the number of samples handled
+	 */
+	public int drain(SampleHandler handler) {
+		long sequence = this.head.get();
+		long available = this.tail.get();
+		updateMaxDepth(available - sequence);
+		int noHandled = 0;
+		while (sequence < available) {
+			int slot = (int) (sequence & this.mask);
+			this.consumerMeasurement.set(this.flags[slot],
+					this.heartRates[slot],
+					this.energyExpended[slot],
+					this.rrIntervals, slot * K_MAXRRPERSAMPLE, this.noRrIntervals[slot]);
+			long time = this.times[slot];
+			long elapsedTime = this.elapsedTimes[slot];
+			// release the slot before handling, the data is copied out so the producer can have it
+			this.head.lazySet(++sequence);
+			handler.handleSample(this.consumerMeasurement, time, elapsedTime);
+			++noHandled;
+			if (sequence == available) {
+				// see if any more arrived while we were handling these
+				available = this.tail.get();
+				updateMaxDepth(available - sequence);
+			}
+		}
+		return noHandled;
+	}
+
+	/**
+	 * helper to remember the deepest the queue has been, only called from the consumer which
+	 * knows the real head, the producer only has a stale copy of it
+	 * @param depth is the number of samples the consumer found waiting
+	 */
+	private void updateMaxDepth(long depth) {
+		if (depth > this.maxDepth) {
+			this.maxDepth = (int) depth;
+		}
+	}
+
+	/**
+	 * @return the number of samples currently waiting in the queue
+	 */
+	public int getDepth() {
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	/**
+	 * @return the deepest the queue has been
+	 */
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	/**
+	 * @return the number of samples dropped because the consumer fell too far behind
+	 */
+	public long getNoDropped() {
+		return this.noDropped.get();
+	}
+
+	/**
+	 * @return the number of times the producer was held up waiting for the consumer
+	 */
+	public long getNoBackpressured() {
+		return this.noBackpressured.get();
+	}
+
+	/**
+	 * @return the number of RR-intervals dropped because a sample had too many to hold
+	 */
+	public long getNoRrDropped() {
+		return this.noRrDropped.get();
+	}
+
+	/**
+	 * @return the total number of samples added to the queue
+	 */
+	public long getNoOffered() {
+		return this.tail.get();
+	}
+}
@@ -0,0 +1,253 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+/**
+ * a mutable record of a single Heart Rate Measurement (0x2A37) decoded from the raw bytes of
+ * the characteristic. The same instance is intended to be re-used for every notification so that
+ * decoding the data creates no garbage. This class has no android dependencies so it can be
+ * exercised with captured payloads on a plain JVM.
+ */
+public class HeartRateMeasurement {
+	/** flag bit set when the heart rate value is a UINT16, else it is a UINT8 */
+	public static final int K_FLAG_HR_UINT16 = 0x01;
+	/** flag bit set when the sensor reports it is in contact */
+	public static final int K_FLAG_CONTACT_DETECTED = 0x02;
+	/** flag bit set when the sensor supports reporting the contact status */
+	public static final int K_FLAG_CONTACT_SUPPORTED = 0x04;
+	/** flag bit set when the energy expended field is present */
+	public static final int K_FLAG_ENERGY_PRESENT = 0x08;
+	/** flag bit set when one or more RR-intervals are present */
+	public static final int K_FLAG_RR_PRESENT = 0x10;
+	/** the value of the energy expended when it was not sent */
+	public static final int K_NO_ENERGY = -1;
+	/** the number of RR-intervals that fit in a default (20 byte) notification, the initial capacity */
+	private static final int K_INITIALRRCAPACITY = 9;
+	/**
+	 * the status of the contact between the sensor and the skin
+	 */
+	public enum SensorContact {
+		notSupported,
+		notDetected,
+		detected
+	}
+	/** true if the last data parsed was a valid measurement */
+	private boolean isValid = false;
+	/** the raw flags byte of the last measurement */
+	private int flags = 0;
+	/** the heart rate in beats per minute */
+	private int heartRate = -1;
+	/** the contact status of the sensor */
+	private SensorContact sensorContact = SensorContact.notSupported;
+	/** the energy expended in kilo joules, K_NO_ENERGY if not sent */
+	private int energyExpended = K_NO_ENERGY;
+	/** the RR-intervals in units of 1/1024 second, only grown if a larger payload is received */
+	private int[] rrIntervals = new int[K_INITIALRRCAPACITY];
+	/** the number of valid RR-intervals in the array */
+	private int noRrIntervals = 0;
+
+	/**
+	 * parse the entire array of data into this measurement
+	 * @param data is the raw value of the characteristic
+	 * @return true if the data was a valid measurement
+	 */
+	public boolean parse(byte[] data) {
+		if (null == data) {
+			// nothing to parse
+			return invalidate();
+		}
+		return parse(data, 0, data.length);
+	}
+
+	/**
+	 * parse the data into this measurement, replacing any data that was in here already
+	 * @param data is the raw value of the characteristic
+	 * @param offset is the index of the flags byte in the data
+	 * @param length is the number of bytes in the measurement
+	 * @return true if the data was a valid measurement
+	 */
+	public boolean parse(byte[] data, int offset, int length) {
+		if (null == data || offset < 0 || length < 2 || offset + length > data.length) {
+			// not even enough data for the flags and a UINT8 heart rate
+			return invalidate();
+		}
+		int end = offset + length;
+		int index = offset;
+		this.flags = data[index++] & 0xFF;
+		// the heart rate is either a UINT8 or a UINT16
+		if ((this.flags & K_FLAG_HR_UINT16) != 0) {
+			if (index + 2 > end) {
+				return invalidate();
+			}
+			this.heartRate = readUint16(data, index);
+			index += 2;
+		}
+		else {
+			this.heartRate = data[index++] & 0xFF;
+		}
+		this.sensorContact = getSensorContact(this.flags);
+		// the energy expended is an optional UINT16
+		if ((this.flags & K_FLAG_ENERGY_PRESENT) != 0) {
+			if (index + 2 > end) {
+				return invalidate();
+			}
+			this.energyExpended = readUint16(data, index);
+			index += 2;
+		}
+		else {
+			this.energyExpended = K_NO_ENERGY;
+		}
+		// and the rest of the data is any number of UINT16 RR-intervals
+		this.noRrIntervals = 0;
+		if ((this.flags & K_FLAG_RR_PRESENT) != 0) {
+			int noIntervals = (end - index) / 2;
+			if (noIntervals > this.rrIntervals.length) {
+				// this is more than we have ever seen, grow the array to fit them all
+				this.rrIntervals = new int[noIntervals];
+			}
+			for (int i = 0; i < noIntervals; ++i) {
+				this.rrIntervals[i] = readUint16(data, index);
+				index += 2;
+			}
+			this.noRrIntervals = noIntervals;
+		}
+		this.isValid = true;
+		return true;
+	}
+
+	/**
+	 * set this measurement from data that was already decoded, used to copy a measurement
+	 * @param flags is the raw flags byte of the measurement
+	 * @param heartRate is the heart rate in beats per minute
+	 * @param energyExpended is the energy expended, K_NO_ENERGY if not sent
+	 * @param rrIntervals is the array containing the RR-intervals
+	 * @param offset is the index in the array of the first RR-interval
+	 * @param noRrIntervals is the number of RR-intervals to copy
+	 */
+	void set(int flags, int heartRate, int energyExpended, int[] rrIntervals, int offset, int noRrIntervals) {
+		this.flags = flags;
+		this.heartRate = heartRate;
+		this.sensorContact = getSensorContact(flags);
+		this.energyExpended = energyExpended;
+		if (noRrIntervals > this.rrIntervals.length) {
+			// this is more than we have ever seen, grow the array to fit them all
+			this.rrIntervals = new int[noRrIntervals];
+		}
+		System.arraycopy(rrIntervals, offset, this.rrIntervals, 0, noRrIntervals);
+		this.noRrIntervals = noRrIntervals;
+		this.isValid = true;
+	}
+
+	/**
+	 * helper to get the contact status from the flags
+	 * @param flags is the flags byte of the measurement
+	 * @return the status, only meaningful if the sensor says it supports it
+	 */
+	private static SensorContact getSensorContact(int flags) {
+		if ((flags & K_FLAG_CONTACT_SUPPORTED) == 0) {
+			return SensorContact.notSupported;
+		}
+		else if ((flags & K_FLAG_CONTACT_DETECTED) == 0) {
+			return SensorContact.notDetected;
+		}
+		else {
+			return SensorContact.detected;
+		}
+	}
+
+	/**
+	 * helper to read a little-endian UINT16 from the data
+	 * @param data is the data to read from
+	 * @param index is the index of the low byte
+	 * @return the unsigned value
+	 */
+	private static int readUint16(byte[] data, int index) {
+		return (data[index] & 0xFF) | ((data[index + 1] & 0xFF) << 8);
+	}
+
+	/**
+	 * helper to reset this measurement to be invalid
+	 * @return false, always, for convenience
+	 */
+	private boolean invalidate() {
+		this.isValid = false;
+		this.flags = 0;
+		this.heartRate = -1;
+		this.sensorContact = SensorContact.notSupported;
+		this.energyExpended = K_NO_ENERGY;
+		this.noRrIntervals = 0;
+		return false;
+	}
+
+	/**
+	 * @return true if the last data parsed was a valid measurement
+	 */
+	public boolean isValid() {
+		return this.isValid;
+	}
+
+	/**
+	 * @return the raw flags byte of the last measurement
+	 */
+	public int getFlags() {
+		return this.flags;
+	}
+
+	/**
+	 * @return the heart rate in beats per minute, -1 if not valid
+	 */
+	public int getHeartRate() {
+		return this.heartRate;
+	}
+
+	/**
+	 * @return the status of the contact between the sensor and the skin
+	 */
+	public SensorContact getSensorContact() {
+		return this.sensorContact;
+	}
+
+	/**
+	 * @return true if the energy expended was sent in this measurement
+	 */
+	public boolean isEnergyExpendedPresent() {
+		return this.energyExpended != K_NO_ENERGY;
+	}
+
+	/**
+	 * @return the energy expended in kilo joules, K_NO_ENERGY if not sent
+	 */
+	public int getEnergyExpended() {
+		return this.energyExpended;
+	}
+
+	/**
+	 * @return the number of RR-intervals in this measurement
+	 */
+	public int getNoRrIntervals() {
+		return this.noRrIntervals;
+	}
+
+	/**
+	 * @param index is the index of the interval, oldest first
+	 * @return the RR-interval in units of 1/1024 second
+	 */
+	public int getRrInterval(int index) {
+		if (index < 0 || index >= this.noRrIntervals) {
+			throw new IndexOutOfBoundsException("RR-interval " + index + " of " + this.noRrIntervals);
+		}
+		return this.rrIntervals[index];
+	}
+
+	/**
+	 * copy the RR-intervals in this measurement to the passed array
+	 * @param destination is the array to copy into
+	 * @param offset is the index in the destination to copy the first interval to
+	 * @return the number of intervals copied
+	 */
+	public int copyRrIntervals(int[] destination, int offset) {
+		int noToCopy = Math.min(this.noRrIntervals, destination.length - offset);
+		if (noToCopy > 0) {
+			System.arraycopy(this.rrIntervals, 0, destination, offset, noToCopy);
+		}
+		return Math.max(noToCopy, 0);
+	}
+}
@@ -0,0 +1,163 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import android.graphics.Color;
+
+/**
+ * the zones heart rate data is binned into. The zones are fixed once created, to change them a
+ * new set is created and swapped in for the current set, so a store binning data never sees a
+ * half changed set. Finding the zone of a heart rate is a lookup in a table built when created.
+ */
+public class HeartRateZones {
+	/** the number of zones, fixed as the bins of the stored data are */
+	public static final int K_NOZONES = 7;
+	/** the heart rates the lookup table covers, anything higher is in the top zone */
+	private static final int K_TABLESIZE = 256;
+	/** the alpha of the zone colours */
+	private static final int K_ALPHA = 255;
+	/** the default names of the zones */
+	private static final String[] K_DEFAULTNAMES = new String[] {
+		"Still", "Resting", "Recovery", "Endurance", "Aerobic", "Anaerobic", "Peak" };
+	/** the default colours of the zones */
+	private static final int[] K_DEFAULTCOLOURS = new int[] {
+		Color.argb(K_ALPHA, 65,211,201),
+		Color.argb(K_ALPHA, 153,204,153),
+		Color.argb(K_ALPHA, 249,199,78),
+		Color.argb(K_ALPHA, 251,101,77),
+		Color.argb(K_ALPHA, 73,150,42),
+		Color.argb(K_ALPHA, 54,111,175),
+		Color.argb(K_ALPHA, 134,69,77) };
+	/** the lowest heart rate of each zone above the first, as a fraction of the max heart rate */
+	private static final double[] K_MAXHRFRACTIONS = new double[] { 0.33, 0.50, 0.60, 0.70, 0.80, 0.90 };
+	/** the lowest heart rate of each zone above the first, as a fraction of the lactate threshold */
+	private static final double[] K_LTHRFRACTIONS = new double[] { 0.40, 0.68, 0.85, 0.90, 0.95, 1.00 };
+	/** the zones used now by every store not given its own */
+	private static volatile HeartRateZones current = createDefault();
+	/** the lowest heart rate of each zone above the first */
+	private final int[] thresholds;
+	/** the names of each zone */
+	private final String[] names;
+	/** the colours of each zone */
+	private final int[] colours;
+	/** the index of the zone for each heart rate */
+	private final byte[] zoneTable = new byte[K_TABLESIZE];
+
+	/**
+	 * constructor
+	 * @param thresholds are the lowest heart rates of each zone above the first, K_NOZONES - 1 in ascending order
+	 * @param names are the names of the zones, K_NOZONES of them
+	 * @param colours are the colours of the zones, K_NOZONES of them
+	 */
+	public HeartRateZones(int[] thresholds, String[] names, int[] colours) {
+		if (null == thresholds || thresholds.length != K_NOZONES - 1) {
+			throw new IllegalArgumentException("There must be " + (K_NOZONES - 1) + " zone thresholds");
+		}
+		if (null == names || names.length != K_NOZONES || null == colours || colours.length != K_NOZONES) {
+			throw new IllegalArgumentException("There must be " + K_NOZONES + " zone names and colours");
+		}
+		for (int i = 1; i < thresholds.length; ++i) {
+			if (thresholds[i] < thresholds[i - 1]) {
+				throw new IllegalArgumentException("Zone thresholds must be in ascending order");
+			}
+		}
+		this.thresholds = thresholds.clone();
+		this.names = names.clone();
+		this.colours = colours.clone();
+		// build the table of the zone for each heart rate
+		int zone = 0;
+		for (int heartRate = 0; heartRate < K_TABLESIZE; ++heartRate) {
+			while (zone < this.thresholds.length && heartRate >= this.thresholds[zone]) {
+				++zone;
+			}
+			this.zoneTable[heartRate] = (byte) zone;
+		}
+	}
+
+	/**
+	 * @return the zones the data was always binned into
+	 */
+	public static HeartRateZones createDefault() {
+		return new HeartRateZones(new int[] { 60, 91, 110, 128, 147, 165 }, K_DEFAULTNAMES, K_DEFAULTCOLOURS);
+	}
+
+	/**
+	 * @param maxHeartRate is the maximum heart rate of the user
+	 * @return the zones for the user, as fractions of their max heart rate
+	 */
+	public static HeartRateZones createFromMaxHeartRate(int maxHeartRate) {
+		return new HeartRateZones(createThresholds(maxHeartRate, K_MAXHRFRACTIONS), K_DEFAULTNAMES, K_DEFAULTCOLOURS);
+	}
+
+	/**
+	 * @param lactateThreshold is the heart rate at the lactate threshold of the user
+	 * @return the zones for the user, as fractions of their lactate threshold heart rate
+	 */
+	public static HeartRateZones createFromLactateThreshold(int lactateThreshold) {
+		return new HeartRateZones(createThresholds(lactateThreshold, K_LTHRFRACTIONS), K_DEFAULTNAMES, K_DEFAULTCOLOURS);
+	}
+
+	/**
+	 * helper to create the thresholds from fractions of a heart rate
+	 * @param heartRate is the heart rate the fractions are of
+	 * @param fractions are the fractions of each threshold
+	 * @return the thresholds
+	 */
+	private static int[] createThresholds(int heartRate, double[] fractions) {
+		int[] thresholds = new int[fractions.length];
+		for (int i = 0; i < thresholds.length; ++i) {
+			thresholds[i] = (int) Math.round(heartRate * fractions[i]);
+		}
+		return thresholds;
+	}
+
+	/**
+	 * @return the zones data is binned into now, by every store not given its own
+	 */
+	public static HeartRateZones getCurrent() {
+		return current;
+	}
+
+	/**
+	 * set the zones to bin data into from now on, all stores not given their own zones with
+	 * HeartRateDataStore.setZones start using these at once
+	 * @param zones are the zones to use
+	 */
+	public static void setCurrent(HeartRateZones zones) {
+		if (null == zones) {
+			throw new IllegalArgumentException("The zones cannot be null");
+		}
+		current = zones;
+	}
+
+	/**
+	 * @param heartRate is the heart rate
+	 * @return the index of the zone the heart rate is in
+	 */
+	public int getZone(int heartRate) {
+		// clamp to the table, anything higher is in the top zone
+		return this.zoneTable[Math.min(Math.max(heartRate, 0), K_TABLESIZE - 1)];
+	}
+
+	/**
+	 * @param zone is the index of the zone
+	 * @return the lowest heart rate in the zone, 0 for the first
+	 */
+	public int getThreshold(int zone) {
+		return zone <= 0 ? 0 : this.thresholds[zone - 1];
+	}
+
+	/**
+	 * @param zone is the index of the zone
+	 * @return the name of the zone, "unknown" if not a zone
+	 */
+	public String getName(int zone) {
+		return zone >= 0 && zone < K_NOZONES ? this.names[zone] : "unknown";
+	}
+
+	/**
+	 * @param zone is the index of the zone
+	 * @return the colour of the zone, transparent if not a zone
+	 */
+	public int getColour(int zone) {
+		return zone >= 0 && zone < K_NOZONES ? this.colours[zone] : Color.TRANSPARENT;
+	}
+}
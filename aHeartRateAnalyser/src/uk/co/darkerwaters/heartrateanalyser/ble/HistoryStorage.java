@@ -0,0 +1,94 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import android.content.Context;
+
+/**
+ * where the histories of a store are kept, each as the bytes of the history under its key (the
+ * day, or the week or month it was rolled up into). The store decides what to keep, the storage
+ * just keeps it. Writes are batched so the storage can get a whole save on the disk together, and
+ * reads can be over a range of keys so a run of days can be read in one go. Only the persist
+ * thread of the store writes, but the histories can be read from any thread.
+ */
+public interface HistoryStorage {
+	/**
+	 * the interface to a kind of storage, given to each store as it is created. The app keeps
+	 * the histories in files, FileHistoryStorage.K_BACKEND
+	 */
+	public interface Backend {
+		/**
+		 * @return the name of the storage, to tell them apart in the logs
+		 */
+		public String getName();
+		/**
+		 * create the storage for a store
+		 * @param context is the context for access to the files and databases
+		 * @param filePrefix is the prefix of the store, to keep its histories apart from other stores
+		 * @return the storage
+		 */
+		public HistoryStorage create(Context context, String filePrefix);
+	}
+
+	/**
+	 * the interface to a class that handles the histories read over a range of keys
+	 */
+	public interface RecordHandler {
+		/**
+		 * handle a history read
+		 * @param key is the key of the history
+		 * @param contents are the bytes of the history
+		 */
+		public void handleRecord(String key, ByteBuffer contents);
+	}
+
+	/**
+	 * get the storage ready to use, tidying up any writes that did not complete. Called once,
+	 * before the keys are listed
+	 * @return true if the storage is there to use
+	 */
+	public boolean open();
+
+	/**
+	 * @return the keys of all the histories kept, sorted
+	 */
+	public List<String> listKeys();
+
+	/**
+	 * read the history
+	 * @param key is the key of the history
+	 * @return the bytes of the history, null if there is not one
+	 */
+	public ByteBuffer read(String key);
+
+	/**
+	 * read all the histories with keys in the range, in the order of their keys
+	 * @param fromKey is the first key to read
+	 * @param toKey is the last key to read
+	 * @param handler is the handler to pass each history to
+	 * @return the number of histories read
+	 */
+	public int readRange(String fromKey, String toKey, RecordHandler handler);
+
+	/**
+	 * write the histories, replacing those already there. Each history is either all written or
+	 * left as it was, and the batch is on the disk when this returns
+	 * @param keys are the keys of the histories
+	 * @param contents are the bytes of each history, in the same order as the keys
+	 * @return true if all were written, false if any failed and need writing again
+	 */
+	public boolean writeBatch(List<String> keys, List<ByteBuffer> contents);
+
+	/**
+	 * delete the history
+	 * @param key is the key of the history
+	 * @return true if it is gone, or was never there
+	 */
+	public boolean delete(String key);
+
+	/**
+	 * release anything held open, the storage is not used after this
+	 */
+	public void close();
+}
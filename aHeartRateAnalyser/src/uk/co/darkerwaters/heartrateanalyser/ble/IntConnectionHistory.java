@@ -0,0 +1,38 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Date;
+
+import uk.co.darkerwaters.heartrateanalyser.ble.IntConnectionHistoryStore.IntStorePackager;
+import android.content.Context;
+
+/**
+ * a history of int data, adding and binning the data as an int so the value is never boxed.
+ * This is still a history of Integer so it can be shown by anything that shows a history.
+ */
+public class IntConnectionHistory extends BleConnectionHistory<Integer> {
+	/** the packager to bin the int data with */
+	private final IntStorePackager intPackager;
+
+	public IntConnectionHistory(Date dataTime, Context context, IntConnectionHistoryStore store) {
+		super(dataTime, context, store);
+		this.intPackager = store.getIntPackager();
+	}
+
+	/**
+	 * add the data to this history
+	 * @param data is the value of the data
+	 * @param frequency is the number of times to count the data
+	 * @return the new frequency of the bin the data is in, -1 if not binned
+	 */
+	public int addData(int data, int frequency) {
+		return addBinnedData(data, this.intPackager.getBinIndex(data), frequency);
+	}
+
+	/**
+	 * @param data is the value of the data
+	 * @return the index of the bin the data would be in
+	 */
+	public int getBinIndex(int data) {
+		return this.intPackager.getBinIndex(data);
+	}
+}
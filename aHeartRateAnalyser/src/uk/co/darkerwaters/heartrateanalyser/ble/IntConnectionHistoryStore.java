@@ -0,0 +1,96 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Date;
+
+import android.content.Context;
+
+/**
+ * a store of int data, storing and binning the data as an int end to end so storing a value
+ * creates no garbage. This is still a store of Integer so it can be used, and shown, by anything
+ * that uses a store, the generic methods just unbox the value and store that.
+ */
+public abstract class IntConnectionHistoryStore extends BleConnectionHistoryStore<Integer> {
+	/**
+	 * an interface to a class that will package int data in this store into a series of data bins
+	 */
+	public interface IntStorePackager extends StorePackager<Integer> {
+		public int getBinIndex(int data);
+	}
+	/** the last seen item of data, only valid if isLastData is true */
+	private volatile int lastData = 0;
+	/** true once there is data in lastData */
+	private volatile boolean isLastData = false;
+
+	/**
+	 * constructor
+	 * @param context
+	 * @param packager
+	 * @param storeKey is the key to keep this data separate from other stores, typically the device address, can be null
+	 */
+	public IntConnectionHistoryStore(Context context, IntStorePackager packager, String storeKey) {
+		super(context, packager, storeKey);
+	}
+
+	/**
+	 * constructor
+	 * @param context
+	 * @param packager
+	 * @param storeKey is the key to keep this data separate from other stores, typically the device address, can be null
+	 * @param storageBackend is the kind of storage to keep the histories in
+	 */
+	public IntConnectionHistoryStore(Context context, IntStorePackager packager, String storeKey, HistoryStorage.Backend storageBackend) {
+		super(context, packager, storeKey, storageBackend);
+	}
+
+	/**
+	 * @return the packager to bin the int data with
+	 */
+	public IntStorePackager getIntPackager() {
+		// not kept as a member here as this is called while the base class is constructed
+		return (IntStorePackager) getPackager();
+	}
+
+	@Override
+	protected BleConnectionHistory<Integer> createHistory(Date date, Context context) {
+		return new IntConnectionHistory(date, context, this);
+	}
+
+	@Override
+	public Integer getLastData() {
+		return this.isLastData ? Integer.valueOf(this.lastData) : null;
+	}
+
+	/**
+	 * @param defaultValue is the value to return if there has been no data
+	 * @return the last seen value, without boxing it
+	 */
+	public int getLastData(int defaultValue) {
+		return this.isLastData ? this.lastData : defaultValue;
+	}
+
+	@Override
+	public void storeData(Integer value, int frequency, long time) {
+		storeData(value.intValue(), frequency, time);
+	}
+
+	public void storeData(int value, int frequency) {
+		storeData(value, frequency, getClock().currentTimeMillis());
+	}
+
+	/**
+	 * store the data in the history for the time given
+	 * @param value is the value to store
+	 * @param frequency is the number of times to count this value
+	 * @param time is the time the value was received, in ms since the epoch
+	 */
+	public void storeData(int value, int frequency, long time) {
+		// store the latest data
+		this.lastData = value;
+		this.isLastData = true;
+		IntConnectionHistory history = (IntConnectionHistory) getHistoryForTime(time);
+		if (null != history) {
+			history.addData(value, frequency);
+			saveIfDue(time);
+		}
+	}
+}
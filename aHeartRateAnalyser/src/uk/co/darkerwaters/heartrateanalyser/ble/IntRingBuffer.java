@@ -0,0 +1,119 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * a fixed ring of the most recent int values added. There is one thread adding values and any
+ * number of threads reading them, readers copy the values into their own array so that reading
+ * neither creates garbage nor holds up the thread adding the values. The count of values added
+ * doubles as a version, so a reader can tell if there is anything new to read.
+ */
+public class IntRingBuffer {
+	/** the number of times a reader tries to copy the values before giving up on the oldest */
+	private static final int K_MAXREADATTEMPTS = 4;
+	/**
+	 * the values, written in a circle, one more than the capacity so the oldest can be read while the
+	 * next is added. Atomic so a reader's copy cannot be moved after its check of noWritten
+	 */
+	private final AtomicIntegerArray values;
+	/** the number of recent values kept */
+	private final int capacity;
+	/** the number of values ever added, written after the value so readers see the value first */
+	private volatile long noWritten = 0;
+
+	/**
+	 * constructor
+	 * @param capacity is the number of recent values to keep
+	 */
+	public IntRingBuffer(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.values = new AtomicIntegerArray(this.capacity + 1);
+	}
+
+	/**
+	 * add the value, replacing the oldest if full. Only to be called from the one thread adding values
+	 * @param value is the value to add
+	 */
+	public void add(int value) {
+		long sequence = this.noWritten;
+		this.values.lazySet((int) (sequence % this.values.length()), value);
+		this.noWritten = sequence + 1;
+	}
+
+	/**
+	 * @return the number of values that can be kept
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of values currently kept
+	 */
+	public int size() {
+		return (int) Math.min(this.noWritten, this.capacity);
+	}
+
+	/**
+	 * @return the number of values ever added, changes every time a value is added
+	 */
+	public long getVersion() {
+		return this.noWritten;
+	}
+
+	/**
+	 * @param defaultValue is the value to return if there are none
+	 * @return the most recent value added
+	 */
+	public int getLast(int defaultValue) {
+		long sequence = this.noWritten;
+		return sequence == 0 ? defaultValue : this.values.get((int) ((sequence - 1) % this.values.length()));
+	}
+
+	/**
+	 * copy the most recent values into the array, oldest first
+	 * @param destination is the array to copy into, from index zero
+	 * @return the number of values copied
+	 */
+	public int copyRecent(int[] destination) {
+		int noCopied = 0;
+		for (int attempt = 0; attempt < K_MAXREADATTEMPTS; ++attempt) {
+			long end = this.noWritten;
+			noCopied = (int) Math.min(Math.min(end, this.capacity), destination.length);
+			long start = end - noCopied;
+			copyRange(start, noCopied, destination, 0);
+			// values added while we copied may have overwritten the oldest we copied, check they did not
+			long oldestSafe = this.noWritten - this.capacity;
+			if (start >= oldestSafe) {
+				return noCopied;
+			}
+			if (attempt == K_MAXREADATTEMPTS - 1) {
+				// values are added too fast to keep up with, just drop the ones overwritten
+				int noStale = (int) Math.min(noCopied, oldestSafe - start);
+				noCopied -= noStale;
+				System.arraycopy(destination, noStale, destination, 0, noCopied);
+			}
+		}
+		return noCopied;
+	}
+
+	/**
+	 * helper to copy a range of sequences out of the circle of values
+	 * @param start is the sequence of the first value to copy
+	 * @param count is the number of values to copy
+	 * @param destination is the array to copy into
+	 * @param offset is the index in the destination to copy to
+	 */
+	private void copyRange(long start, int count, int[] destination, int offset) {
+		int length = this.values.length();
+		int index = (int) (start % length);
+		for (int i = 0; i < count; ++i) {
+			// each read is ordered before the check of noWritten that follows the copy
+			destination[offset + i] = this.values.get(index);
+			if (++index == length) {
+				// wrapped around the end, copy the rest from the start
+				index = 0;
+			}
+		}
+	}
+}
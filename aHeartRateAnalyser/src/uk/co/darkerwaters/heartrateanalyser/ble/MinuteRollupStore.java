@@ -0,0 +1,573 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.util.Log;
+
+/**
+ * the heart rate over time, a minute at a time, kept alongside the day bins so the heart rate
+ * over any range of time can be found. Each day is a file of fixed size records, one for each
+ * minute of the day then one for each hour, each holding the count, sum, min, max and zone counts
+ * of the samples in it. The file of the day being added to is mapped into memory, so adding a
+ * sample is a few stores into the record of its minute and of its hour. A query reads the hour
+ * records for the whole hours in the range and the minute records only for the part hours at
+ * either end. The header of each file has the journal sequence of the last sample added, so the
+ * samples replayed from the journal after a crash are not added twice.
+ */
+public class MinuteRollupStore {
+	/** the number of minute and hour records in each day */
+	public static final int K_MINUTESPERDAY = 1440;
+	public static final int K_HOURSPERDAY = 24;
+	/** the number of minutes in an hour record */
+	private static final int K_MINUTESPERHOUR = 60;
+	/** the number of ms in a minute */
+	private static final long K_MILLISPERMINUTE = 60000L;
+	/** the marker at the start of a file, "HRAM" */
+	private static final int K_FILEMAGIC = 0x4852414D;
+	/** the current file version */
+	private static final int K_VERSION = 1;
+	/** the offsets of the fields in the header: marker, version, epoch day and the next journal sequence */
+	private static final int K_OFFSETMAGIC = 0;
+	private static final int K_OFFSETVERSION = 4;
+	private static final int K_OFFSETEPOCHDAY = 8;
+	private static final int K_OFFSETNEXTSEQUENCE = 16;
+	/** the size of the header */
+	private static final int K_HEADERSIZE = 24;
+	/** the offsets of the fields in a record */
+	private static final int K_OFFSETCOUNT = 0;
+	private static final int K_OFFSETSUM = 4;
+	private static final int K_OFFSETMIN = 8;
+	private static final int K_OFFSETMAX = 10;
+	private static final int K_OFFSETZONES = 12;
+	/** the size of each record in bytes */
+	public static final int K_RECORDSIZE = K_OFFSETZONES + HeartRateZones.K_NOZONES * 4;
+	/** the size of a day file */
+	private static final int K_FILESIZE = K_HEADERSIZE + (K_MINUTESPERDAY + K_HOURSPERDAY) * K_RECORDSIZE;
+	/** the separator between the name and the epoch day in a filename */
+	private static final String K_DAYSEP = "-";
+
+	/**
+	 * the heart rate over a range of time, from the records in the range
+	 */
+	public static class Summary {
+		private int count = 0;
+		private long sum = 0;
+		private int min = 0;
+		private int max = 0;
+		private final int[] zoneCounts = new int[HeartRateZones.K_NOZONES];
+
+		/**
+		 * clear the summary to have no samples in it
+		 */
+		public void clear() {
+			this.count = 0;
+			this.sum = 0;
+			this.min = 0;
+			this.max = 0;
+			for (int i = 0; i < this.zoneCounts.length; ++i) {
+				this.zoneCounts[i] = 0;
+			}
+		}
+
+		/**
+		 * @return the number of samples
+		 */
+		public int getCount() {
+			return this.count;
+		}
+
+		/**
+		 * @return the lowest heart rate, 0 if no samples
+		 */
+		public int getMin() {
+			return this.min;
+		}
+
+		/**
+		 * @return the highest heart rate, 0 if no samples
+		 */
+		public int getMax() {
+			return this.max;
+		}
+
+		/**
+		 * @return the mean heart rate, 0 if no samples
+		 */
+		public double getMean() {
+			return this.count == 0 ? 0.0 : this.sum / (double) this.count;
+		}
+
+		/**
+		 * @param zone is the index of the zone
+		 * @return the number of samples in the zone
+		 */
+		public int getZoneCount(int zone) {
+			return this.zoneCounts[zone];
+		}
+
+		/**
+		 * helper to add the records in the buffer into this summary
+		 * @param buffer is the buffer of records
+		 * @param offset is the offset of the first record in the buffer
+		 * @param noRecords is the number of records to add
+		 */
+		void addRecords(ByteBuffer buffer, int offset, int noRecords) {
+			for (int i = 0; i < noRecords; ++i) {
+				int base = offset + i * K_RECORDSIZE;
+				int recordCount = buffer.getInt(base + K_OFFSETCOUNT);
+				if (recordCount <= 0) {
+					// nothing in this one
+					continue;
+				}
+				int recordMin = buffer.getShort(base + K_OFFSETMIN) & 0xFFFF;
+				int recordMax = buffer.getShort(base + K_OFFSETMAX) & 0xFFFF;
+				this.min = this.count == 0 ? recordMin : Math.min(this.min, recordMin);
+				this.max = this.count == 0 ? recordMax : Math.max(this.max, recordMax);
+				this.count += recordCount;
+				this.sum += buffer.getInt(base + K_OFFSETSUM) & 0xFFFFFFFFL;
+				for (int zone = 0; zone < this.zoneCounts.length; ++zone) {
+					this.zoneCounts[zone] += buffer.getInt(base + K_OFFSETZONES + zone * 4);
+				}
+			}
+		}
+	}
+
+	/**
+	 * the interface to handle each minute read from a day
+	 */
+	public interface MinuteHandler {
+		/**
+		 * handle a minute there are samples in
+		 * @param time is the start of the minute, in ms since the epoch
+		 * @param count is the number of samples in the minute
+		 * @param mean is the mean heart rate over the minute
+		 * @param min is the lowest heart rate in the minute
+		 * @param max is the highest heart rate in the minute
+		 */
+		public void handleMinute(long time, int count, int mean, int min, int max);
+	}
+
+	/** the directory the files are in */
+	private final File directory;
+	/** the name all the files start with */
+	private final String name;
+	/** the number of days to keep the files for */
+	private volatile int noDaysKept;
+	/** the mapping of the day being added to, null if none is open */
+	private MappedByteBuffer day = null;
+	/** the epoch day of the day being added to */
+	private int dayEpoch = Integer.MIN_VALUE;
+	/** the times the day being added to covers, to find it without a calendar for every sample */
+	private long dayStart = 0;
+	private long dayEnd = 0;
+	/** the number of records read by queries, to see that they only read what they need */
+	private volatile long noRecordsRead = 0;
+
+	/**
+	 * constructor
+	 * @param directory is the directory to put the files in
+	 * @param name is the name all the files start with, unique to the store
+	 * @param noDaysKept is the number of days to keep the files for
+	 */
+	public MinuteRollupStore(File directory, String name, int noDaysKept) {
+		this.directory = directory;
+		this.name = name;
+		this.noDaysKept = noDaysKept;
+	}
+
+	/**
+	 * @param noDaysKept is the number of days to keep the files for, older ones are deleted as the day changes
+	 */
+	public void setNoDaysKept(int noDaysKept) {
+		this.noDaysKept = noDaysKept;
+	}
+
+	/**
+	 * add the sample to the record of its minute and hour
+	 * @param heartRate is the heart rate of the sample
+	 * @param zone is the zone of the heart rate
+	 * @param time is the wall-clock time, in ms, of the sample
+	 * @param sequence is the sequence of the sample in the journal, -1 if not journaled
+	 * @return true if added, false if it could not be or was already
+	 */
+	public synchronized boolean add(int heartRate, int zone, long time, long sequence) {
+		if (null == this.day || time < this.dayStart || time >= this.dayEnd) {
+			// this is a different day to the one open, open the one for this sample
+			if (false == openDay(time)) {
+				return false;
+			}
+		}
+		MappedByteBuffer buffer = this.day;
+		if (sequence >= 0 && sequence < buffer.getLong(K_OFFSETNEXTSEQUENCE)) {
+			// this is a sample replayed from the journal that was added before
+			return false;
+		}
+		int minute = (int) Math.min((time - this.dayStart) / K_MILLISPERMINUTE, K_MINUTESPERDAY - 1);
+		addToRecord(buffer, getMinuteOffset(minute), heartRate, zone);
+		addToRecord(buffer, getHourOffset(minute / K_MINUTESPERHOUR), heartRate, zone);
+		if (sequence >= 0) {
+			buffer.putLong(K_OFFSETNEXTSEQUENCE, sequence + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * find the heart rate over the range of time, from all the minutes the range touches
+	 * @param fromTime is the start of the range, in ms since the epoch
+	 * @param toTime is the end of the range, in ms since the epoch, not included
+	 * @param summary is the summary to put the heart rate in, cleared first
+	 * @return true if there were any samples in the range
+	 */
+	public synchronized boolean query(long fromTime, long toTime, Summary summary) {
+		summary.clear();
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(fromTime);
+		setToStartOfDay(calendar);
+		while (calendar.getTimeInMillis() < toTime) {
+			long start = calendar.getTimeInMillis();
+			int epochDay = EpochDays.getEpochDay(calendar.getTimeInMillis());
+			calendar.add(Calendar.DATE, 1);
+			long end = calendar.getTimeInMillis();
+			// the minutes of this day in the range, including the part minutes at either end
+			int fromMinute = (int) (Math.max(fromTime - start, 0) / K_MILLISPERMINUTE);
+			int toMinute = (int) Math.min((Math.min(toTime, end) - start + K_MILLISPERMINUTE - 1) / K_MILLISPERMINUTE, K_MINUTESPERDAY);
+			if (fromMinute < toMinute) {
+				queryDay(epochDay, fromMinute, toMinute, summary);
+			}
+		}
+		return summary.getCount() > 0;
+	}
+
+	/**
+	 * pass each minute of the day that has samples in to the handler, oldest first. This reads an
+	 * hour of minutes at a time so the memory used is small, only locking the store while copying them
+	 * @param dayTime is a time in the day, in ms since the epoch
+	 * @param handler is the handler to pass each minute to
+	 * @return the number of minutes with samples in
+	 */
+	public int readMinutes(long dayTime, MinuteHandler handler) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(dayTime);
+		setToStartOfDay(calendar);
+		long start = calendar.getTimeInMillis();
+		int epochDay = EpochDays.getEpochDay(calendar.getTimeInMillis());
+		ByteBuffer buffer = ByteBuffer.allocate(K_MINUTESPERHOUR * K_RECORDSIZE);
+		int noMinutes = 0;
+		for (int hour = 0; hour < K_HOURSPERDAY; ++hour) {
+			int firstMinute = hour * K_MINUTESPERHOUR;
+			buffer.clear();
+			if (false == copyRecords(epochDay, getMinuteOffset(firstMinute), buffer)) {
+				// there is no file for this day
+				break;
+			}
+			for (int i = 0; i < K_MINUTESPERHOUR; ++i) {
+				int base = i * K_RECORDSIZE;
+				int count = buffer.getInt(base + K_OFFSETCOUNT);
+				if (count > 0) {
+					long sum = buffer.getInt(base + K_OFFSETSUM) & 0xFFFFFFFFL;
+					handler.handleMinute(start + (firstMinute + i) * K_MILLISPERMINUTE, count, (int) Math.round(sum / (double) count),
+							buffer.getShort(base + K_OFFSETMIN) & 0xFFFF, buffer.getShort(base + K_OFFSETMAX) & 0xFFFF);
+					++noMinutes;
+				}
+			}
+		}
+		return noMinutes;
+	}
+
+	/**
+	 * @return the number of records read by queries
+	 */
+	public long getNoRecordsRead() {
+		return this.noRecordsRead;
+	}
+
+	/**
+	 * write everything added to the files and close the store
+	 */
+	public synchronized void close() {
+		if (null != this.day) {
+			this.day.force();
+		}
+		this.day = null;
+		this.dayEpoch = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * close the store and delete all its day files, every minute added is lost
+	 * @return true if all the files were deleted
+	 */
+	public synchronized boolean delete() {
+		close();
+		boolean isDeleted = true;
+		File[] files = this.directory.listFiles();
+		if (null != files) {
+			String prefix = this.name + K_DAYSEP;
+			for (File file : files) {
+				String filename = file.getName();
+				if (filename.startsWith(prefix)) {
+					try {
+						Integer.parseInt(filename.substring(prefix.length()));
+						if (false == file.delete()) {
+							Log.e(MainActivity.TAG, "Failed to delete the minute file " + filename);
+							isDeleted = false;
+						}
+					}
+					catch (NumberFormatException e) {
+						// fine, just not a day file is all...
+					}
+				}
+			}
+		}
+		return isDeleted;
+	}
+
+	/**
+	 * helper to add the minutes of a day to the summary, using the hour records for whole hours
+	 * @param epochDay is the day
+	 * @param fromMinute is the first minute of the day to add
+	 * @param toMinute is the minute after the last to add
+	 * @param summary is the summary to add to
+	 */
+	private void queryDay(int epochDay, int fromMinute, int toMinute, Summary summary) {
+		int firstHour = (fromMinute + K_MINUTESPERHOUR - 1) / K_MINUTESPERHOUR;
+		int endHour = toMinute / K_MINUTESPERHOUR;
+		if (firstHour >= endHour) {
+			// no whole hours, just the minutes
+			readRecords(epochDay, getMinuteOffset(fromMinute), toMinute - fromMinute, summary);
+		}
+		else {
+			// the minutes before the first whole hour, the whole hours, then the minutes after
+			readRecords(epochDay, getMinuteOffset(fromMinute), firstHour * K_MINUTESPERHOUR - fromMinute, summary);
+			readRecords(epochDay, getHourOffset(firstHour), endHour - firstHour, summary);
+			readRecords(epochDay, getMinuteOffset(endHour * K_MINUTESPERHOUR), toMinute - endHour * K_MINUTESPERHOUR, summary);
+		}
+	}
+
+	/**
+	 * helper to add a run of records in a day file to the summary, reading just those records
+	 * @param epochDay is the day
+	 * @param offset is the offset in the file of the first record
+	 * @param noRecords is the number of records
+	 * @param summary is the summary to add to
+	 */
+	private void readRecords(int epochDay, int offset, int noRecords, Summary summary) {
+		if (noRecords <= 0) {
+			return;
+		}
+		this.noRecordsRead += noRecords;
+		if (epochDay == this.dayEpoch && null != this.day) {
+			// this is the day open, read from the mapping
+			summary.addRecords(this.day, offset, noRecords);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(noRecords * K_RECORDSIZE);
+		if (readDayFile(epochDay, offset, buffer)) {
+			summary.addRecords(buffer, 0, noRecords);
+		}
+	}
+
+	/**
+	 * helper to copy the records of a day into the buffer, from the mapping if the day is open
+	 * @param epochDay is the day
+	 * @param offset is the offset in the file of the first record
+	 * @param buffer is the buffer to fill
+	 * @return true if the buffer was filled, false if there is no file for the day
+	 */
+	private boolean copyRecords(int epochDay, int offset, ByteBuffer buffer) {
+		synchronized (this) {
+			if (epochDay == this.dayEpoch && null != this.day) {
+				// this is the day open, copy from the mapping
+				ByteBuffer records = this.day.duplicate();
+				records.limit(offset + buffer.remaining());
+				records.position(offset);
+				buffer.put(records);
+				return true;
+			}
+		}
+		return readDayFile(epochDay, offset, buffer);
+	}
+
+	/**
+	 * helper to read a run of records in a day file into the buffer, reading just those records
+	 * @param epochDay is the day
+	 * @param offset is the offset in the file of the first record
+	 * @param buffer is the buffer to fill
+	 * @return true if the buffer was filled, false if there is no file for the day
+	 */
+	private boolean readDayFile(int epochDay, int offset, ByteBuffer buffer) {
+		File file = getDayFile(epochDay);
+		if (false == file.exists()) {
+			// no data for this day
+			return false;
+		}
+		RandomAccessFile randomAccessFile = null;
+		int start = buffer.position();
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			FileChannel channel = randomAccessFile.getChannel();
+			while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position() - start) >= 0) {
+				// keep reading until it is all in
+			}
+			return false == buffer.hasRemaining();
+		}
+		catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to read the minute records " + file.getName(), e);
+			return false;
+		}
+		finally {
+			if (null != randomAccessFile) {
+				try {
+					randomAccessFile.close();
+				} catch (IOException e) {
+					Log.w(MainActivity.TAG, "Failed to close the file " + file.getName(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * helper to open the day file the time is in to add to, creating it if there is not one
+	 * @param time is the time in the day
+	 * @return true if opened
+	 */
+	private boolean openDay(long time) {
+		if (null != this.day) {
+			// write the last day to the file before we move on
+			this.day.force();
+			this.day = null;
+			this.dayEpoch = Integer.MIN_VALUE;
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		setToStartOfDay(calendar);
+		long start = calendar.getTimeInMillis();
+		int epochDay = EpochDays.getEpochDay(calendar.getTimeInMillis());
+		calendar.add(Calendar.DATE, 1);
+		if (false == this.directory.isDirectory() && false == this.directory.mkdirs()) {
+			Log.e(MainActivity.TAG, "Failed to create the minute directory " + this.directory);
+			return false;
+		}
+		File file = getDayFile(epochDay);
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			// a new file is grown full of zeros as it is mapped, only an old one needs clearing
+			boolean isNewFile = 0 == randomAccessFile.length();
+			// the mapping stays valid once the file is closed
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, K_FILESIZE);
+			if (buffer.getInt(K_OFFSETMAGIC) != K_FILEMAGIC || buffer.getInt(K_OFFSETVERSION) != K_VERSION
+					|| buffer.getInt(K_OFFSETEPOCHDAY) != epochDay) {
+				// this is a new file, or not one we can use, start it again
+				if (buffer.getInt(K_OFFSETMAGIC) != 0) {
+					Log.w(MainActivity.TAG, "Starting the invalid minute file again " + file.getName());
+				}
+				for (int i = 0; false == isNewFile && i < K_FILESIZE; ++i) {
+					buffer.put(i, (byte) 0);
+				}
+				buffer.putInt(K_OFFSETVERSION, K_VERSION);
+				buffer.putInt(K_OFFSETEPOCHDAY, epochDay);
+				buffer.putInt(K_OFFSETMAGIC, K_FILEMAGIC);
+				// and this is a new day, get rid of the old ones
+				deleteOldDays(epochDay - this.noDaysKept);
+			}
+			this.day = buffer;
+			this.dayEpoch = epochDay;
+			this.dayStart = start;
+			this.dayEnd = calendar.getTimeInMillis();
+			return true;
+		}
+		catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to open the minute file " + file.getName(), e);
+			return false;
+		}
+		finally {
+			if (null != randomAccessFile) {
+				try {
+					randomAccessFile.close();
+				} catch (IOException e) {
+					Log.w(MainActivity.TAG, "Failed to close the file " + file.getName(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * helper to delete the day files before the day given
+	 * @param oldestEpochDay is the oldest day to keep
+	 */
+	private void deleteOldDays(int oldestEpochDay) {
+		File[] files = this.directory.listFiles();
+		if (null == files) {
+			return;
+		}
+		String prefix = this.name + K_DAYSEP;
+		for (File file : files) {
+			String filename = file.getName();
+			if (filename.startsWith(prefix)) {
+				try {
+					if (Integer.parseInt(filename.substring(prefix.length())) < oldestEpochDay && false == file.delete()) {
+						Log.e(MainActivity.TAG, "Failed to delete the old minute file " + filename);
+					}
+				}
+				catch (NumberFormatException e) {
+					// fine, just not a day file is all...
+				}
+			}
+		}
+	}
+
+	/**
+	 * helper to add a sample to a record
+	 */
+	private static void addToRecord(MappedByteBuffer buffer, int base, int heartRate, int zone) {
+		int count = buffer.getInt(base + K_OFFSETCOUNT);
+		if (count == 0 || heartRate < (buffer.getShort(base + K_OFFSETMIN) & 0xFFFF)) {
+			buffer.putShort(base + K_OFFSETMIN, (short) heartRate);
+		}
+		if (count == 0 || heartRate > (buffer.getShort(base + K_OFFSETMAX) & 0xFFFF)) {
+			buffer.putShort(base + K_OFFSETMAX, (short) heartRate);
+		}
+		buffer.putInt(base + K_OFFSETSUM, buffer.getInt(base + K_OFFSETSUM) + heartRate);
+		int zoneBase = base + K_OFFSETZONES + zone * 4;
+		buffer.putInt(zoneBase, buffer.getInt(zoneBase) + 1);
+		buffer.putInt(base + K_OFFSETCOUNT, count + 1);
+	}
+
+	/**
+	 * helper to move the calendar back to midnight
+	 */
+	private static void setToStartOfDay(Calendar calendar) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+	}
+
+	/**
+	 * @return the offset in a day file of the record of the minute of the day
+	 */
+	private static int getMinuteOffset(int minute) {
+		return K_HEADERSIZE + minute * K_RECORDSIZE;
+	}
+
+	/**
+	 * @return the offset in a day file of the record of the hour of the day
+	 */
+	private static int getHourOffset(int hour) {
+		return K_HEADERSIZE + (K_MINUTESPERDAY + hour) * K_RECORDSIZE;
+	}
+
+	/**
+	 * helper to get the file of a day
+	 */
+	private File getDayFile(int epochDay) {
+		return new File(this.directory, this.name + K_DAYSEP + epochDay);
+	}
+}
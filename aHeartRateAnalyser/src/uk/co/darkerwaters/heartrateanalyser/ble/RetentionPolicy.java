@@ -0,0 +1,95 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+/**
+ * how long the history of a store is kept for. Days are kept as they are for a number of days,
+ * then rolled up into weeks that are kept for a number of weeks after that, then into months
+ * that are kept for a number of months after that. A tier kept for none is skipped, and data
+ * older than the last tier is deleted. The policy is fixed once created, to change it a new one
+ * is set on the store.
+ */
+public class RetentionPolicy {
+	/** the number of months to keep the monthly history to keep it forever */
+	public static final int K_FOREVER = -1;
+	/** the number of weeks the weekly history is kept for by default, a year */
+	private static final int K_DEFAULTNOWEEKS = 52;
+	/** the number of days the daily history is kept for */
+	private final int noDays;
+	/** the number of weeks the weekly history is kept for after the days */
+	private final int noWeeks;
+	/** the number of months the monthly history is kept for after the weeks, K_FOREVER to keep it */
+	private final int noMonths;
+
+	/**
+	 * constructor
+	 * @param noDays is the number of days to keep the daily history for, at least one
+	 * @param noWeeks is the number of weeks to keep the weekly history for after the days, 0 for none
+	 * @param noMonths is the number of months to keep the monthly history for after the weeks, 0 for none or K_FOREVER
+	 */
+	public RetentionPolicy(int noDays, int noWeeks, int noMonths) {
+		if (noDays < 1) {
+			throw new IllegalArgumentException("The daily history must be kept for at least a day");
+		}
+		if (noWeeks < 0 || (noMonths < 0 && noMonths != K_FOREVER)) {
+			throw new IllegalArgumentException("The weekly and monthly history cannot be kept for a negative time");
+		}
+		this.noDays = noDays;
+		this.noWeeks = noWeeks;
+		this.noMonths = noMonths;
+	}
+
+	/**
+	 * @return the policy to keep the days we always did, then the weeks for a year and the months forever
+	 */
+	public static RetentionPolicy createDefault() {
+		return new RetentionPolicy(BleConnectionHistoryStore.K_MAXHISTORICFILES, K_DEFAULTNOWEEKS, K_FOREVER);
+	}
+
+	/**
+	 * @return the policy to keep just the days and delete them once expired, as we used to
+	 */
+	public static RetentionPolicy createDaysOnly() {
+		return new RetentionPolicy(BleConnectionHistoryStore.K_MAXHISTORICFILES, 0, 0);
+	}
+
+	/**
+	 * @return the number of days the daily history is kept for
+	 */
+	public int getNoDays() {
+		return this.noDays;
+	}
+
+	/**
+	 * @return the number of weeks the weekly history is kept for after the days
+	 */
+	public int getNoWeeks() {
+		return this.noWeeks;
+	}
+
+	/**
+	 * @return the number of months the monthly history is kept for after the weeks, K_FOREVER if kept
+	 */
+	public int getNoMonths() {
+		return this.noMonths;
+	}
+
+	/**
+	 * @return true if days are rolled up into weeks
+	 */
+	public boolean isKeepingWeeks() {
+		return this.noWeeks > 0;
+	}
+
+	/**
+	 * @return true if days or weeks are rolled up into months
+	 */
+	public boolean isKeepingMonths() {
+		return this.noMonths != 0;
+	}
+
+	/**
+	 * @return true if the monthly history is never deleted
+	 */
+	public boolean isKeepingMonthsForever() {
+		return this.noMonths == K_FOREVER;
+	}
+}
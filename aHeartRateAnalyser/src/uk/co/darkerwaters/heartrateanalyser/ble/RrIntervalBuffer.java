@@ -0,0 +1,178 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+/**
+ * a fixed capacity ring buffer of beat-to-beat (RR) intervals, each with the monotonic time at
+ * which the beat ended. The data is held in primitive arrays so that no object is created per
+ * beat, when full the oldest beats are overwritten. Each beat is given an ever increasing index
+ * so a reader can remember where it got to and copy out just the new beats next time.
+ */
+public class RrIntervalBuffer {
+	/** enough capacity for a full day of beats, even at an average of 90 bpm (~130k) */
+	public static final int K_DAYCAPACITY = 1 << 17;
+	/** the number of RR-interval units in one second */
+	public static final int K_UNITSPERSECOND = 1024;
+	/** the intervals, as unsigned 16 bit values in units of 1/1024 second */
+	private final short[] intervals;
+	/** the time at which each beat ended, in milliseconds */
+	private final long[] timestamps;
+	/** the mask to wrap an index into the arrays, capacity is always a power of two */
+	private final int mask;
+	/** the total number of beats ever written, the index of the next beat */
+	private long noWritten = 0;
+	/** the timestamp of the last beat written, to keep the times monotonic */
+	private long lastTimestamp = Long.MIN_VALUE;
+
+	/**
+	 * constructor
+	 * @param capacity is the minimum number of beats to hold, rounded up to a power of two
+	 */
+	public RrIntervalBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.intervals = new short[size];
+		this.timestamps = new long[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return the number of beats this buffer can hold before the oldest is lost
+	 */
+	public int getCapacity() {
+		return this.intervals.length;
+	}
+
+	/**
+	 * add all the RR-intervals in the measurement to this buffer
+	 * @param measurement is the measurement containing the intervals, oldest first
+	 * @param time is the monotonic time, in ms, the measurement was received
+	 * @return the number of intervals added
+	 */
+	public int add(HeartRateMeasurement measurement, long time) {
+		int noIntervals = measurement.getNoRrIntervals();
+		if (noIntervals > 0) {
+			// the last beat ended about when the data was received, work back from that
+			long totalUnits = 0;
+			for (int i = 0; i < noIntervals; ++i) {
+				totalUnits += measurement.getRrInterval(i);
+			}
+			synchronized (this.intervals) {
+				for (int i = 0; i < noIntervals; ++i) {
+					int interval = measurement.getRrInterval(i);
+					totalUnits -= interval;
+					addInterval(interval, time - (totalUnits * 1000 / K_UNITSPERSECOND));
+				}
+			}
+		}
+		return noIntervals;
+	}
+
+	/**
+	 * add a single RR-interval to this buffer
+	 * @param interval is the interval in units of 1/1024 second
+	 * @param timestamp is the monotonic time, in ms, the beat ended
+	 */
+	public void add(int interval, long timestamp) {
+		synchronized (this.intervals) {
+			addInterval(interval, timestamp);
+		}
+	}
+
+	/**
+	 * helper to add the interval, the lock on the intervals must be held
+	 * @param interval is the interval in units of 1/1024 second
+	 * @param timestamp is the time the beat ended
+	 */
+	private void addInterval(int interval, long timestamp) {
+		// never let time go backwards, the times are monotonic
+		if (timestamp < this.lastTimestamp) {
+			timestamp = this.lastTimestamp;
+		}
+		int index = (int) (this.noWritten & this.mask);
+		this.intervals[index] = (short) interval;
+		this.timestamps[index] = timestamp;
+		this.lastTimestamp = timestamp;
+		++this.noWritten;
+	}
+
+	/**
+	 * @return the index that the next beat written will be given
+	 */
+	public long getNoWritten() {
+		synchronized (this.intervals) {
+			return this.noWritten;
+		}
+	}
+
+	/**
+	 * @return the index of the oldest beat still held in this buffer
+	 */
+	public long getOldestIndex() {
+		synchronized (this.intervals) {
+			return Math.max(0, this.noWritten - this.intervals.length);
+		}
+	}
+
+	/**
+	 * @return the number of beats currently held in this buffer
+	 */
+	public int size() {
+		synchronized (this.intervals) {
+			return (int) Math.min(this.noWritten, this.intervals.length);
+		}
+	}
+
+	/**
+	 * copy beats from this buffer into the caller's arrays, pass the index after the last beat
+	 * read to the next call to read only the beats added since
+	 * @param fromIndex is the index of the first beat wanted, moved on if that is already lost
+	 * @param intervals is the array to copy the intervals (1/1024 second) into, can be null
+	 * @param timestamps is the array to copy the times (ms) into, can be null
+	 * @param offset is the index in the arrays to copy the first beat to
+	 * @param maxCount is the maximum number of beats to copy
+	 * @return the index of the first beat copied, differs from fromIndex if those beats were lost,
+	 * the number copied is the lesser of maxCount and the beats written since this index
+	 */
+	public long read(long fromIndex, int[] intervals, long[] timestamps, int offset, int maxCount) {
+		synchronized (this.intervals) {
+			long firstIndex = Math.max(fromIndex, Math.max(0, this.noWritten - this.intervals.length));
+			int noToCopy = (int) Math.max(0, Math.min(maxCount, this.noWritten - firstIndex));
+			// copy in at most two chunks, up to the end of the array and then from the start
+			int start = (int) (firstIndex & this.mask);
+			int firstChunk = Math.min(noToCopy, this.intervals.length - start);
+			copyOut(start, intervals, timestamps, offset, firstChunk);
+			copyOut(0, intervals, timestamps, offset + firstChunk, noToCopy - firstChunk);
+			return firstIndex;
+		}
+	}
+
+	/**
+	 * copy the most recent beats from this buffer to fill the caller's arrays
+	 * @param intervals is the array to copy the intervals (1/1024 second) into, can be null
+	 * @param timestamps is the array to copy the times (ms) into, can be null
+	 * @param maxCount is the maximum number of beats to copy, oldest first
+	 * @return the number of beats copied
+	 */
+	public int readRecent(int[] intervals, long[] timestamps, int maxCount) {
+		synchronized (this.intervals) {
+			int noToCopy = (int) Math.min(maxCount, Math.min(this.noWritten, this.intervals.length));
+			read(this.noWritten - noToCopy, intervals, timestamps, 0, noToCopy);
+			return noToCopy;
+		}
+	}
+
+	/**
+	 * helper to copy a contiguous chunk of the arrays to the caller, the lock must be held
+	 */
+	private void copyOut(int start, int[] intervals, long[] timestamps, int offset, int count) {
+		if (count <= 0) {
+			return;
+		}
+		if (null != intervals) {
+			for (int i = 0; i < count; ++i) {
+				intervals[offset + i] = this.intervals[start + i] & 0xFFFF;
+			}
+		}
+		if (null != timestamps) {
+			System.arraycopy(this.timestamps, start, timestamps, offset, count);
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * a compact bit-packed encoding of a stream of samples, for keeping every sample received. Each
+ * value is written as the change from the last, in as few bits as the change needs, as heart
+ * rate changes slowly and the samples arrive at a near-regular rate. The time is written as the
+ * change in the interval from the last (delta-of-delta), so a sample on time takes a single bit.
+ * The heart rate, energy and RR-intervals are written as zig-zag deltas in a few fixed widths.
+ * <p>
+ * Each sample starts with a 1 bit, the stream ends with a 0 bit and is padded to the byte. Then:
+ * <ul>
+ * <li>time: zig-zag delta-of-delta, '0' none, '10' 7 bits, '110' 9 bits, '1110' 12 bits, '1111' 64 bits</li>
+ * <li>flags: '0' same as the last, '1' 8 bits</li>
+ * <li>heart rate: zig-zag delta, '0' none, '10' 4 bits, '110' 8 bits, '111' 17 bits</li>
+ * <li>energy, if in the flags: as the heart rate, from the last energy sent</li>
+ * <li>RR-intervals, if in the flags: the count in 4 bits then each as a zig-zag delta from the
+ * last, '0' 6 bits, '10' 10 bits, '11' 17 bits</li>
+ * </ul>
+ * The encoder and decoder only keep the last values, so they stream and create no garbage.
+ */
+public class SampleCodec {
+	/** the most RR-intervals encoded in a sample, any more are dropped */
+	public static final int K_MAXRRINTERVALS = 15;
+	/** the number of bits of the count of RR-intervals */
+	private static final int K_RRCOUNTBITS = 4;
+	/** the widths of the time delta-of-delta, after the prefix of each */
+	private static final int[] K_TIMEWIDTHS = new int[] { 7, 9, 12, 64 };
+	/** the widths of the heart rate and energy deltas */
+	private static final int[] K_VALUEWIDTHS = new int[] { 4, 8, 17 };
+	/** the widths of the RR-interval deltas, there is no zero case for these */
+	private static final int[] K_RRWIDTHS = new int[] { 6, 10, 17 };
+
+	/**
+	 * helper to zig-zag encode a value, so small negative values are small too
+	 */
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * helper to decode a zig-zag encoded value
+	 */
+	static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * the values last sent, shared by the encoder and the decoder so they agree
+	 */
+	private static class State {
+		long lastTime = 0;
+		long lastInterval = 0;
+		int lastFlags = 0;
+		int lastHeartRate = 0;
+		int lastEnergy = 0;
+		int lastRrInterval = 0;
+		long noSamples = 0;
+	}
+
+	/**
+	 * writes samples to a stream in the encoding, only to be used from one thread at a time
+	 */
+	public static class Encoder {
+		/** the stream to write to */
+		private final OutputStream outputStream;
+		/** the values last written */
+		private final State state = new State();
+		/** the bits not yet written to the stream, the oldest in the highest bits */
+		private long bits = 0;
+		/** the number of bits not yet written to the stream */
+		private int noBits = 0;
+		/** the number of bytes written to the stream */
+		private long noBytes = 0;
+
+		/**
+		 * constructor
+		 * @param outputStream is the stream to write the encoded samples to
+		 */
+		public Encoder(OutputStream outputStream) {
+			this.outputStream = outputStream;
+		}
+
+		/**
+		 * write the sample to the stream
+		 * @param measurement is the sample
+		 * @param time is the wall-clock time, in ms, the sample was received
+		 */
+		public void encode(HeartRateMeasurement measurement, long time) throws IOException {
+			State state = this.state;
+			writeBits(1, 1);
+			// the time as the change in interval, zero when on time
+			long interval = time - state.lastTime;
+			long timeChange = zigZag(interval - state.lastInterval);
+			if (timeChange == 0) {
+				writeBits(0, 1);
+			}
+			else {
+				writeWidthAndValue(timeChange, K_TIMEWIDTHS, true);
+			}
+			state.lastTime = time;
+			state.lastInterval = interval;
+			// the flags, that rarely change
+			int flags = measurement.getFlags();
+			if (flags == state.lastFlags) {
+				writeBits(0, 1);
+			}
+			else {
+				writeBits(1, 1);
+				writeBits(flags, 8);
+				state.lastFlags = flags;
+			}
+			// the heart rate and energy, as the change from the last
+			writeValue(zigZag(measurement.getHeartRate() - state.lastHeartRate), K_VALUEWIDTHS);
+			state.lastHeartRate = measurement.getHeartRate();
+			if ((flags & HeartRateMeasurement.K_FLAG_ENERGY_PRESENT) != 0) {
+				int energy = Math.max(0, measurement.getEnergyExpended());
+				writeValue(zigZag(energy - state.lastEnergy), K_VALUEWIDTHS);
+				state.lastEnergy = energy;
+			}
+			// and the RR-intervals, that change beat to beat, as the change from the last
+			if ((flags & HeartRateMeasurement.K_FLAG_RR_PRESENT) != 0) {
+				int noIntervals = Math.min(measurement.getNoRrIntervals(), K_MAXRRINTERVALS);
+				writeBits(noIntervals, K_RRCOUNTBITS);
+				for (int i = 0; i < noIntervals; ++i) {
+					int rrInterval = measurement.getRrInterval(i);
+					writeWidthAndValue(zigZag(rrInterval - state.lastRrInterval), K_RRWIDTHS, false);
+					state.lastRrInterval = rrInterval;
+				}
+			}
+			++state.noSamples;
+		}
+
+		/**
+		 * end the stream, writing all that is left to it. Nothing can be encoded after this
+		 */
+		public void finish() throws IOException {
+			writeBits(0, 1);
+			if (this.noBits > 0) {
+				// pad the last byte with zeros
+				writeBits(0, 8 - this.noBits);
+			}
+			this.outputStream.flush();
+		}
+
+		/**
+		 * @return the number of samples encoded
+		 */
+		public long getNoSamples() {
+			return this.state.noSamples;
+		}
+
+		/**
+		 * @return the number of bytes written to the stream
+		 */
+		public long getNoBytes() {
+			return this.noBytes;
+		}
+
+		/**
+		 * helper to write a value that can be zero in the smallest width it fits
+		 */
+		private void writeValue(long value, int[] widths) throws IOException {
+			if (value == 0) {
+				writeBits(0, 1);
+			}
+			else {
+				writeWidthAndValue(value, widths, true);
+			}
+		}
+
+		/**
+		 * helper to write the prefix of the smallest width the value fits in, then the value
+		 * @param value is the value, never negative as zig-zag encoded
+		 * @param widths are the widths to choose from, the last always fits
+		 * @param isAfterZero is true if a zero has the prefix '0', so the widths start at '10'
+		 */
+		private void writeWidthAndValue(long value, int[] widths, boolean isAfterZero) throws IOException {
+			for (int i = 0; i < widths.length; ++i) {
+				if (i == widths.length - 1) {
+					// the last width always fits, its prefix is all ones
+					int noOnes = (isAfterZero ? 1 : 0) + i;
+					writeBits((1L << noOnes) - 1, noOnes);
+					writeBits(value, widths[i]);
+				}
+				else if ((value >>> widths[i]) == 0) {
+					// this fits, write a 1 for each width passed over then the 0 that ends the prefix
+					int noOnes = (isAfterZero ? 1 : 0) + i;
+					writeBits(((1L << noOnes) - 1) << 1, noOnes + 1);
+					writeBits(value, widths[i]);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * helper to write the lowest bits of the value
+		 * @param value is the value to write
+		 * @param count is the number of bits to write, up to 64
+		 */
+		private void writeBits(long value, int count) throws IOException {
+			if (count > 32) {
+				// write the high bits first, so we never hold more than the long can
+				writeBits(value >>> 32, count - 32);
+				count = 32;
+			}
+			this.bits = (this.bits << count) | (value & ((1L << count) - 1));
+			this.noBits += count;
+			while (this.noBits >= 8) {
+				this.noBits -= 8;
+				this.outputStream.write((int) (this.bits >>> this.noBits) & 0xFF);
+				++this.noBytes;
+			}
+		}
+	}
+
+	/**
+	 * reads samples from a stream in the encoding, only to be used from one thread at a time
+	 */
+	public static class Decoder {
+		/** the stream to read from */
+		private final InputStream inputStream;
+		/** the values last read */
+		private final State state = new State();
+		/** the bits read from the stream not yet used, the oldest in the highest bits */
+		private long bits = 0;
+		/** the number of bits read from the stream not yet used */
+		private int noBits = 0;
+		/** true once the end of the samples is read */
+		private boolean isFinished = false;
+		/** the RR-intervals of the sample read, re-used */
+		private final int[] rrIntervals = new int[K_MAXRRINTERVALS];
+
+		/**
+		 * constructor
+		 * @param inputStream is the stream to read the encoded samples from
+		 */
+		public Decoder(InputStream inputStream) {
+			this.inputStream = inputStream;
+		}
+
+		/**
+		 * read the next sample from the stream
+		 * @param measurement is the measurement to read the sample into
+		 * @return true if there was a sample, false at the end of the samples
+		 */
+		public boolean decode(HeartRateMeasurement measurement) throws IOException {
+			if (this.isFinished || readBits(1) == 0) {
+				this.isFinished = true;
+				return false;
+			}
+			State state = this.state;
+			long timeChange = readBits(1) == 0 ? 0 : readWidthAndValue(K_TIMEWIDTHS);
+			state.lastInterval += unZigZag(timeChange);
+			state.lastTime += state.lastInterval;
+			if (readBits(1) != 0) {
+				state.lastFlags = (int) readBits(8);
+			}
+			int flags = state.lastFlags;
+			state.lastHeartRate += (int) unZigZag(readValue(K_VALUEWIDTHS));
+			int energy = HeartRateMeasurement.K_NO_ENERGY;
+			if ((flags & HeartRateMeasurement.K_FLAG_ENERGY_PRESENT) != 0) {
+				state.lastEnergy += (int) unZigZag(readValue(K_VALUEWIDTHS));
+				energy = state.lastEnergy;
+			}
+			int noIntervals = 0;
+			if ((flags & HeartRateMeasurement.K_FLAG_RR_PRESENT) != 0) {
+				noIntervals = (int) readBits(K_RRCOUNTBITS);
+				for (int i = 0; i < noIntervals; ++i) {
+					state.lastRrInterval += (int) unZigZag(readWidthAndValue(K_RRWIDTHS));
+					this.rrIntervals[i] = state.lastRrInterval;
+				}
+			}
+			measurement.set(flags, state.lastHeartRate, energy, this.rrIntervals, 0, noIntervals);
+			++state.noSamples;
+			return true;
+		}
+
+		/**
+		 * @return the time, in ms, of the last sample read
+		 */
+		public long getTime() {
+			return this.state.lastTime;
+		}
+
+		/**
+		 * @return the number of samples read
+		 */
+		public long getNoSamples() {
+			return this.state.noSamples;
+		}
+
+		/**
+		 * helper to read a value that can be zero
+		 */
+		private long readValue(int[] widths) throws IOException {
+			return readBits(1) == 0 ? 0 : readWidthAndValue(widths);
+		}
+
+		/**
+		 * helper to read the prefix of the width of the value, then the value. Any 1 read to
+		 * say the value is not zero is the first bit of the prefix, so is not read again here
+		 * @param widths are the widths to choose from
+		 */
+		private long readWidthAndValue(int[] widths) throws IOException {
+			int width = 0;
+			while (width < widths.length - 1 && readBits(1) != 0) {
+				++width;
+			}
+			return readBits(widths[width]);
+		}
+
+		/**
+		 * helper to read bits from the stream
+		 * @param count is the number of bits to read, up to 64
+		 * @return the bits read
+		 */
+		private long readBits(int count) throws IOException {
+			if (count > 32) {
+				long high = readBits(count - 32);
+				return (high << 32) | readBits(32);
+			}
+			while (this.noBits < count) {
+				int next = this.inputStream.read();
+				if (next < 0) {
+					throw new IOException("The encoded samples ended without the end marker");
+				}
+				this.bits = (this.bits << 8) | next;
+				this.noBits += 8;
+			}
+			this.noBits -= count;
+			return (this.bits >>> this.noBits) & ((1L << count) - 1);
+		}
+	}
+}
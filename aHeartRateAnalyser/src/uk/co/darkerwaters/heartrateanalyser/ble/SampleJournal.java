@@ -0,0 +1,427 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.util.Log;
+
+/**
+ * an append-only journal of every sample received, written through memory-mapped segment files
+ * so that writing a sample is a few stores into memory that the system writes to the file, even
+ * if the app crashes. Each sample is a fixed size record, its sequence is written last so a
+ * record only counts once it is complete. A checkpoint records the sequence the day files were
+ * last saved to, so the samples after it can be replayed into the bins after a crash.
+ * This is only to be used from one thread at a time, apart from setting the checkpoint and
+ * reading a range of time.
+ */
+public class SampleJournal {
+	/** the size of each record in bytes */
+	public static final int K_RECORDSIZE = 32;
+	/** the number of RR-intervals that fit in a record, any more in a sample are not journaled */
+	public static final int K_MAXRRPERRECORD = 7;
+	/** the number of records in each segment file, over an hour at 4 Hz */
+	public static final int K_SEGMENTRECORDS = 16384;
+	/** the number of segment files to keep, older ones are deleted once saved in the day files */
+	public static final int K_MAXSEGMENTS = 24;
+	/** the offsets of the fields in a record */
+	private static final int K_OFFSETTIME = 0;
+	private static final int K_OFFSETSEQUENCE = 8;
+	private static final int K_OFFSETHEARTRATE = 12;
+	private static final int K_OFFSETFLAGS = 14;
+	private static final int K_OFFSETNORR = 15;
+	private static final int K_OFFSETENERGY = 16;
+	private static final int K_OFFSETRR = 18;
+	/** the separator between the name and the segment number in a segment filename */
+	private static final String K_SEGMENTSEP = "-";
+	/** the suffix of the checkpoint filename */
+	private static final String K_CHECKPOINTSUFFIX = ".checkpoint";
+	/**
+	 * the interface to handle each record replayed from the journal
+	 */
+	public interface RecordHandler {
+		/**
+		 * handle the record, the measurement is re-used so must not be kept
+		 * @param sequence is the sequence of the record in the journal
+		 * @param measurement is the sample in the record
+		 * @param time is the wall-clock time, in ms, the sample was received
+		 */
+		public void handleRecord(long sequence, HeartRateMeasurement measurement, long time);
+	}
+	/** the directory the files are in */
+	private final File directory;
+	/** the name all the files start with */
+	private final String name;
+	/** the segment being written, null if none is open */
+	private MappedByteBuffer segment = null;
+	/** the number of the segment being written */
+	private long segmentNumber = -1;
+	/** the mapping of the checkpoint file, null if not open */
+	private volatile MappedByteBuffer checkpoint = null;
+	/** the sequence of the next record to write */
+	private long nextSequence = 0;
+	/** the sequence in the checkpoint, kept here too to be read from any thread */
+	private volatile long checkpointSequence = 0;
+	/** the RR-intervals read from a record, re-used */
+	private final int[] rrIntervals = new int[K_MAXRRPERRECORD];
+	/** the measurement records are read into, re-used */
+	private final HeartRateMeasurement measurement = new HeartRateMeasurement();
+
+	/**
+	 * constructor
+	 * @param directory is the directory to put the files in
+	 * @param name is the name all the files start with, unique to the store journaled
+	 */
+	public SampleJournal(File directory, String name) {
+		this.directory = directory;
+		this.name = name;
+	}
+
+	/**
+	 * open the journal, finding the end of the records already written
+	 * @return true if opened, false if the journal cannot be used
+	 */
+	public boolean open() {
+		if (false == this.directory.isDirectory() && false == this.directory.mkdirs()) {
+			Log.e(MainActivity.TAG, "Failed to create the journal directory " + this.directory);
+			return false;
+		}
+		try {
+			this.checkpoint = map(new File(this.directory, this.name + K_CHECKPOINTSUFFIX), 8, false);
+			this.checkpointSequence = this.checkpoint.getLong(0);
+			List<Long> segments = getSegmentNumbers();
+			if (segments.isEmpty()) {
+				// nothing written yet, start from the checkpoint (zero if there isn't one)
+				this.nextSequence = getCheckpoint();
+			}
+			else {
+				// find the end of the records in the last segment
+				long lastSegment = segments.get(segments.size() - 1);
+				openSegment(lastSegment);
+				int index = 0;
+				while (index < K_SEGMENTRECORDS && isRecordValid(this.segment, index, lastSegment * K_SEGMENTRECORDS + index)) {
+					++index;
+				}
+				this.nextSequence = lastSegment * K_SEGMENTRECORDS + index;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to open the journal " + this.name, e);
+			close();
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the journal is open to append to
+	 */
+	public boolean isOpen() {
+		return null != this.checkpoint;
+	}
+
+	/**
+	 * append the sample to the journal
+	 * @param measurement is the measurement to journal
+	 * @param time is the wall-clock time, in ms, the sample was received
+	 * @return the sequence of the record written, -1 if not written
+	 */
+	public long append(HeartRateMeasurement measurement, long time) {
+		if (null == this.checkpoint) {
+			// not open
+			return -1;
+		}
+		long sequence = this.nextSequence;
+		long segmentRequired = sequence / K_SEGMENTRECORDS;
+		if (segmentRequired != this.segmentNumber) {
+			// this segment is full, move on to the next
+			try {
+				if (null != this.segment) {
+					this.segment.force();
+				}
+				openSegment(segmentRequired);
+				deleteOldSegments();
+			} catch (IOException e) {
+				Log.e(MainActivity.TAG, "Failed to open the next journal segment " + segmentRequired, e);
+				this.segment = null;
+				this.segmentNumber = -1;
+				return -1;
+			}
+		}
+		MappedByteBuffer buffer = this.segment;
+		int base = (int) (sequence % K_SEGMENTRECORDS) * K_RECORDSIZE;
+		buffer.putLong(base + K_OFFSETTIME, time);
+		buffer.putShort(base + K_OFFSETHEARTRATE, (short) measurement.getHeartRate());
+		buffer.put(base + K_OFFSETFLAGS, (byte) measurement.getFlags());
+		int noIntervals = Math.min(measurement.getNoRrIntervals(), K_MAXRRPERRECORD);
+		buffer.put(base + K_OFFSETNORR, (byte) noIntervals);
+		buffer.putShort(base + K_OFFSETENERGY, (short) measurement.getEnergyExpended());
+		for (int i = 0; i < noIntervals; ++i) {
+			buffer.putShort(base + K_OFFSETRR + i * 2, (short) measurement.getRrInterval(i));
+		}
+		// the sequence goes last, this is what makes the record valid
+		buffer.putInt(base + K_OFFSETSEQUENCE, getRecordMarker(sequence));
+		this.nextSequence = sequence + 1;
+		return sequence;
+	}
+
+	/**
+	 * @return the sequence of the next record to be written, the number of records ever written
+	 */
+	public long getNextSequence() {
+		return this.nextSequence;
+	}
+
+	/**
+	 * @return the sequence of the first record not yet saved in the day files
+	 */
+	public long getCheckpoint() {
+		return this.checkpointSequence;
+	}
+
+	/**
+	 * set the checkpoint, when all the records before it are saved in the day files. The
+	 * checkpoint only moves forward, and is on the disk when this returns, this can be called from
+	 * a thread other than the one appending. The day files have the sequence they are saved to as
+	 * well, so the records replayed from an older checkpoint are not stored twice
+	 * @param sequence is the sequence of the first record not yet saved in the day files
+	 */
+	public synchronized void setCheckpoint(long sequence) {
+		MappedByteBuffer buffer = this.checkpoint;
+		if (null != buffer && sequence > this.checkpointSequence) {
+			buffer.putLong(0, sequence);
+			buffer.force();
+			this.checkpointSequence = sequence;
+		}
+	}
+
+	/**
+	 * pass all the records from the sequence on to the handler
+	 * @param fromSequence is the sequence of the first record to replay
+	 * @param handler is the handler to pass each record to
+	 * @return the number of records replayed
+	 */
+	public long replay(long fromSequence, RecordHandler handler) {
+		long noReplayed = 0;
+		try {
+			for (long segmentNo : getSegmentNumbers()) {
+				long segmentStart = segmentNo * K_SEGMENTRECORDS;
+				if (segmentStart + K_SEGMENTRECORDS <= fromSequence || segmentStart >= this.nextSequence) {
+					// nothing in here to replay
+					continue;
+				}
+				if (segmentStart > fromSequence + noReplayed) {
+					Log.w(MainActivity.TAG, "Journal records missing from " + (fromSequence + noReplayed) + " to " + segmentStart);
+				}
+				MappedByteBuffer buffer = segmentNo == this.segmentNumber ? this.segment :
+					map(getSegmentFile(segmentNo), K_SEGMENTRECORDS * K_RECORDSIZE, true);
+				for (int index = (int) Math.max(0, fromSequence - segmentStart); index < K_SEGMENTRECORDS; ++index) {
+					long sequence = segmentStart + index;
+					if (sequence >= this.nextSequence || false == isRecordValid(buffer, index, sequence)) {
+						// this is the end of the records
+						break;
+					}
+					long time = readRecord(buffer, index, this.measurement, this.rrIntervals);
+					handler.handleRecord(sequence, this.measurement, time);
+					++noReplayed;
+				}
+			}
+		} catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to replay the journal " + this.name, e);
+		}
+		return noReplayed;
+	}
+
+	/**
+	 * pass all the records received in the range of time to the handler. The segment files are
+	 * read through their own mappings, and nothing of the journal is changed, so this can be
+	 * called from any thread while the journal is appended to
+	 * @param fromTime is the start of the range, in ms since the epoch
+	 * @param toTime is the end of the range, in ms since the epoch, not included
+	 * @param handler is the handler to pass each record to
+	 * @return the number of records read
+	 */
+	public long readRange(long fromTime, long toTime, RecordHandler handler) {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		int[] rrIntervals = new int[K_MAXRRPERRECORD];
+		long noRead = 0;
+		for (long segmentNo : getSegmentNumbers()) {
+			MappedByteBuffer buffer;
+			try {
+				buffer = map(getSegmentFile(segmentNo), K_SEGMENTRECORDS * K_RECORDSIZE, true);
+			} catch (IOException e) {
+				// this can be deleted as we go, just the old records are gone
+				Log.w(MainActivity.TAG, "Failed to read the journal segment " + segmentNo, e);
+				continue;
+			}
+			long segmentStart = segmentNo * K_SEGMENTRECORDS;
+			for (int index = 0; index < K_SEGMENTRECORDS && isRecordValid(buffer, index, segmentStart + index); ++index) {
+				long time = buffer.getLong(index * K_RECORDSIZE + K_OFFSETTIME);
+				if (time >= toTime) {
+					// the records are in the order received, this is the end of the range
+					return noRead;
+				}
+				else if (time >= fromTime) {
+					readRecord(buffer, index, measurement, rrIntervals);
+					handler.handleRecord(segmentStart + index, measurement, time);
+					++noRead;
+				}
+			}
+		}
+		return noRead;
+	}
+
+	/**
+	 * write everything appended to the files and close the journal
+	 */
+	public void close() {
+		if (null != this.segment) {
+			this.segment.force();
+		}
+		if (null != this.checkpoint) {
+			this.checkpoint.force();
+		}
+		this.segment = null;
+		this.segmentNumber = -1;
+		this.checkpoint = null;
+	}
+
+	/**
+	 * close the journal and delete all its files, every sample journaled is lost
+	 * @return true if all the files were deleted
+	 */
+	public boolean delete() {
+		close();
+		boolean isDeleted = true;
+		for (long segmentNo : getSegmentNumbers()) {
+			File file = getSegmentFile(segmentNo);
+			if (false == file.delete()) {
+				Log.e(MainActivity.TAG, "Failed to delete the journal segment " + file.getName());
+				isDeleted = false;
+			}
+		}
+		File checkpointFile = new File(this.directory, this.name + K_CHECKPOINTSUFFIX);
+		if (checkpointFile.exists() && false == checkpointFile.delete()) {
+			Log.e(MainActivity.TAG, "Failed to delete the journal checkpoint " + checkpointFile.getName());
+			isDeleted = false;
+		}
+		return isDeleted;
+	}
+
+	/**
+	 * helper to read the record into a measurement
+	 * @param buffer is the segment to read from
+	 * @param index is the index of the record in the segment
+	 * @param measurement is the measurement to read the record into
+	 * @param rrIntervals is the array to read the RR-intervals into, K_MAXRRPERRECORD long
+	 * @return the time of the record
+	 */
+	private static long readRecord(MappedByteBuffer buffer, int index, HeartRateMeasurement measurement, int[] rrIntervals) {
+		int base = index * K_RECORDSIZE;
+		int flags = buffer.get(base + K_OFFSETFLAGS) & 0xFF;
+		int noIntervals = Math.min(buffer.get(base + K_OFFSETNORR) & 0xFF, K_MAXRRPERRECORD);
+		for (int i = 0; i < noIntervals; ++i) {
+			rrIntervals[i] = buffer.getShort(base + K_OFFSETRR + i * 2) & 0xFFFF;
+		}
+		int energy = HeartRateMeasurement.K_NO_ENERGY;
+		if ((flags & HeartRateMeasurement.K_FLAG_ENERGY_PRESENT) != 0) {
+			energy = buffer.getShort(base + K_OFFSETENERGY) & 0xFFFF;
+		}
+		measurement.set(flags, buffer.getShort(base + K_OFFSETHEARTRATE) & 0xFFFF, energy, rrIntervals, 0, noIntervals);
+		return buffer.getLong(base + K_OFFSETTIME);
+	}
+
+	/**
+	 * helper to see if the record was completely written
+	 */
+	private static boolean isRecordValid(MappedByteBuffer buffer, int index, long sequence) {
+		return buffer.getInt(index * K_RECORDSIZE + K_OFFSETSEQUENCE) == getRecordMarker(sequence);
+	}
+
+	/**
+	 * helper to get the marker written in a record for the sequence, never zero as new files are
+	 */
+	private static int getRecordMarker(long sequence) {
+		int marker = (int) (sequence + 1);
+		return 0 == marker ? 1 : marker;
+	}
+
+	/**
+	 * helper to open a segment to write to
+	 * @param segmentNo is the number of the segment
+	 */
+	private void openSegment(long segmentNo) throws IOException {
+		this.segment = map(getSegmentFile(segmentNo), K_SEGMENTRECORDS * K_RECORDSIZE, false);
+		this.segmentNumber = segmentNo;
+	}
+
+	/**
+	 * helper to delete the segments that are too old to keep, never deleting anything not yet saved
+	 */
+	private void deleteOldSegments() {
+		long checkpointSequence = getCheckpoint();
+		for (long segmentNo : getSegmentNumbers()) {
+			if (segmentNo <= this.segmentNumber - K_MAXSEGMENTS
+					&& (segmentNo + 1) * K_SEGMENTRECORDS <= checkpointSequence) {
+				File file = getSegmentFile(segmentNo);
+				if (false == file.delete()) {
+					Log.e(MainActivity.TAG, "Failed to delete the old journal segment " + file.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * helper to get the file of a segment
+	 */
+	private File getSegmentFile(long segmentNo) {
+		return new File(this.directory, this.name + K_SEGMENTSEP + String.format("%010d", segmentNo));
+	}
+
+	/**
+	 * @return the numbers of all the segments in the directory, in order
+	 */
+	private List<Long> getSegmentNumbers() {
+		List<Long> segments = new ArrayList<Long>();
+		File[] files = this.directory.listFiles();
+		if (null != files) {
+			String prefix = this.name + K_SEGMENTSEP;
+			for (File file : files) {
+				String filename = file.getName();
+				if (filename.startsWith(prefix)) {
+					try {
+						segments.add(Long.parseLong(filename.substring(prefix.length())));
+					}
+					catch (NumberFormatException e) {
+						// fine, just not a segment is all...
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * helper to map a file
+	 * @param file is the file to map
+	 * @param size is the size to map, the file is extended with zeros if shorter
+	 * @param isReadOnly is true to only read the file
+	 * @return the mapping
+	 */
+	private static MappedByteBuffer map(File file, int size, boolean isReadOnly) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, isReadOnly ? "r" : "rw");
+		try {
+			// the mapping stays valid once the file is closed
+			return randomAccessFile.getChannel().map(isReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * encodes the samples as a Garmin Training Center (TCX) activity of a single lap, a track point
+ * per sample with the time and heart rate. The lap has the totals of the samples, which come
+ * before the track points so are taken from the summary of the samples.
+ */
+public class TcxExportEncoder extends ExportEncoder {
+	/** the start of the file, up to the id of the activity */
+	private static final String K_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<TrainingCenterDatabase xmlns=\"http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2\">\n"
+			+ " <Activities>\n"
+			+ "  <Activity Sport=\"Other\">\n"
+			+ "   <Id>";
+	/** the end of the file, after the last track point */
+	private static final String K_FOOTER = "    </Track>\n"
+			+ "   </Lap>\n"
+			+ "  </Activity>\n"
+			+ " </Activities>\n"
+			+ "</TrainingCenterDatabase>\n";
+	/** the most space a track point takes */
+	private static final int K_MAXPOINT = 160;
+
+	/**
+	 * constructor
+	 * @param channel is the channel to write the encoding to
+	 */
+	public TcxExportEncoder(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	@Override
+	public void start(Summary summary) throws IOException {
+		putAscii(K_HEADER);
+		putIsoTime(summary.getStartTime());
+		putAscii("</Id>\n   <Lap StartTime=\"");
+		putIsoTime(summary.getStartTime());
+		putAscii("\">\n    <TotalTimeSeconds>");
+		putDecimal((summary.getEndTime() - summary.getStartTime()) / 1000L);
+		putAscii("</TotalTimeSeconds>\n    <DistanceMeters>0</DistanceMeters>\n    <Calories>0</Calories>\n");
+		if (summary.getNoSamples() > 0) {
+			putAscii("    <AverageHeartRateBpm><Value>");
+			putDecimal(summary.getMeanHeartRate());
+			putAscii("</Value></AverageHeartRateBpm>\n    <MaximumHeartRateBpm><Value>");
+			putDecimal(summary.getMaxHeartRate());
+			putAscii("</Value></MaximumHeartRateBpm>\n");
+		}
+		putAscii("    <Intensity>Active</Intensity>\n    <TriggerMethod>Manual</TriggerMethod>\n    <Track>\n");
+	}
+
+	@Override
+	public void encode(HeartRateMeasurement measurement, long time) throws IOException {
+		reserve(K_MAXPOINT);
+		putAscii("     <Trackpoint><Time>");
+		putIsoTime(time);
+		putAscii("</Time><HeartRateBpm><Value>");
+		putDecimal(measurement.getHeartRate());
+		putAscii("</Value></HeartRateBpm></Trackpoint>\n");
+	}
+
+	@Override
+	public void finish() throws IOException {
+		putAscii(K_FOOTER);
+		super.finish();
+	}
+}
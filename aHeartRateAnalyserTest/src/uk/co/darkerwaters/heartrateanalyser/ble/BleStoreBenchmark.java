@@ -0,0 +1,563 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * measures the cost of the hot paths of the storage and binning of the data, so changes to the
+ * storage can be measured. Each path is warmed up then run a fixed number of times, timing every
+ * operation for the latency percentiles and counting the memory allocated on the thread. The store
+ * used is keyed so it never touches the real data, and its files are deleted when done. Run on a
+ * device by BleStoreBenchmarkTest.
+ */
+public class BleStoreBenchmark {
+	/** the key of the store used, kept apart from the stores of real devices */
+	public static final String K_STOREKEY = "benchmark";
+	/** the default number of operations to warm up with */
+	public static final int K_DEFAULTWARMUP = 20000;
+	/** the default number of operations to measure */
+	public static final int K_DEFAULTMEASURED = 100000;
+	/** the time between samples given to the store, 4 Hz as a real strap sends */
+	private static final long K_SAMPLEINTERVALMS = 250;
+	/** the number of heart rates to cycle through, a power of two to mask the index */
+	private static final int K_NOVALUES = 4096;
+	/** the number of samples to encode, a power of two to mask the index */
+	private static final int K_NOSAMPLES = 16384;
+	/** the most a sample is off the regular interval, as notifications are */
+	private static final int K_SAMPLEJITTERMS = 3;
+	/** the prefix of the histories written to compare the storage, kept apart from any store */
+	private static final String K_STORAGEPREFIX = "benchmarkstorage";
+	/** the number of days written in each batch to the storage, as a month of history */
+	private static final int K_STORAGEBATCH = BleConnectionHistoryStore.K_MAXHISTORICFILES;
+	/** the number of storage operations to warm up with and to measure, as each waits on the disk */
+	private static final int K_STORAGEWARMUP = 10;
+	private static final int K_STORAGEMEASURED = 200;
+	/** the kinds of storage compared */
+	private static final HistoryStorage.Backend[] K_STORAGEBACKENDS = new HistoryStorage.Backend[] {
+			FileHistoryStorage.K_BACKEND, DatabaseHistoryStorage.K_BACKEND };
+	/** the time to wait for the store of the benchmark to close before deleting its files */
+	private static final long K_CLOSETIMEOUT = 10000;
+	/** the most threads adding data to the one history at once, doubled from one up to this */
+	public static final int K_MAXWRITERS = 16;
+	/**
+	 * the interface to a single operation to measure
+	 */
+	public interface Operation {
+		/**
+		 * perform the operation once
+		 * @param iteration is the count of the times this has been called, to vary the data
+		 */
+		public void run(int iteration);
+	}
+	/**
+	 * the results of measuring one operation
+	 */
+	public static class Result {
+		public final String name;
+		public final int noOperations;
+		public final long totalNanos;
+		public final long p50Nanos;
+		public final long p90Nanos;
+		public final long p99Nanos;
+		public final long maxNanos;
+		/** the bytes allocated per operation, -1 if not counted */
+		public final double bytesPerOperation;
+		/** the objects allocated per operation, -1 if not counted */
+		public final double objectsPerOperation;
+		Result(String name, int noOperations, long totalNanos, long[] sortedLatencies, double bytesPerOperation, double objectsPerOperation) {
+			this.name = name;
+			this.noOperations = noOperations;
+			this.totalNanos = totalNanos;
+			this.p50Nanos = sortedLatencies[(int) (noOperations * 0.50)];
+			this.p90Nanos = sortedLatencies[(int) (noOperations * 0.90)];
+			this.p99Nanos = sortedLatencies[(int) (noOperations * 0.99)];
+			this.maxNanos = sortedLatencies[noOperations - 1];
+			this.bytesPerOperation = bytesPerOperation;
+			this.objectsPerOperation = objectsPerOperation;
+		}
+		/**
+		 * @return the number of operations per second
+		 */
+		public double getThroughput() {
+			return this.noOperations / (this.totalNanos / 1e9);
+		}
+		@Override
+		public String toString() {
+			return String.format("%s: %.0f ops/s, ns p50 %d p90 %d p99 %d max %d, %.1f bytes/op %.2f objects/op",
+					this.name, getThroughput(),
+					this.p50Nanos, this.p90Nanos, this.p99Nanos, this.maxNanos,
+					this.bytesPerOperation, this.objectsPerOperation);
+		}
+	}
+	/** the context to create the store with, for access to the files */
+	private final Context context;
+	/** the number of operations to warm up with */
+	private final int noWarmup;
+	/** the number of operations to measure */
+	private final int noMeasured;
+	/** true to count the allocations, only available on a device */
+	private final boolean isCountAllocations;
+	/** the heart rates to store, random but the same every run */
+	private final int[] values = new int[K_NOVALUES];
+
+	/**
+	 * constructor
+	 * @param context is the context of the app to create the store with, for its files dir
+	 * @param noWarmup is the number of times to run each operation before measuring
+	 * @param noMeasured is the number of times to run each operation measured
+	 * @param isCountAllocations is true to count allocations with android.os.Debug
+	 */
+	public BleStoreBenchmark(Context context, int noWarmup, int noMeasured, boolean isCountAllocations) {
+		this.context = context;
+		this.noWarmup = noWarmup;
+		this.noMeasured = Math.max(1, noMeasured);
+		this.isCountAllocations = isCountAllocations;
+		Random random = new Random(K_NOVALUES);
+		for (int i = 0; i < this.values.length; ++i) {
+			// spread the values over all the bins, including the odd out of range one
+			this.values[i] = 40 + random.nextInt(160);
+		}
+	}
+
+	/**
+	 * run all the operations, logging the results as they complete
+	 * @return the results of each operation
+	 */
+	public List<Result> runAll() {
+		List<Result> results = new ArrayList<Result>();
+		final SimulatedClock clock = new SimulatedClock(System.currentTimeMillis());
+		final HeartRateDataStore store = new HeartRateDataStore(this.context, K_STOREKEY);
+		store.setClock(clock);
+		try {
+			final HeartRateDataStore.HeartRateDataStorePackager packager = new HeartRateDataStore.HeartRateDataStorePackager();
+			results.add(measure("packager.getBinIndex", new Operation() {
+				@Override
+				public void run(int iteration) {
+					packager.getBinIndex(values[iteration & (K_NOVALUES - 1)]);
+				}
+			}));
+			final IntConnectionHistory history = new IntConnectionHistory(new Date(clock.currentTimeMillis()), this.context, store);
+			results.add(measure("history.addData", new Operation() {
+				@Override
+				public void run(int iteration) {
+					history.addData(values[iteration & (K_NOVALUES - 1)], 1);
+				}
+			}));
+			results.add(measure("store.storeData", new Operation() {
+				@Override
+				public void run(int iteration) {
+					// this includes the periodic saves, as the clock moves on as a real strap would
+					store.storeData(values[iteration & (K_NOVALUES - 1)], 1, clock.currentTimeMillis());
+					clock.advance(K_SAMPLEINTERVALMS);
+				}
+			}));
+			final String[] dateKeys = store.getHistoricFileDates();
+			results.add(measure("store.getHistoryData", new Operation() {
+				@Override
+				public void run(int iteration) {
+					store.getHistoryData(dateKeys[iteration % dateKeys.length]);
+				}
+			}));
+			results.add(measure("history.fileRoundTrip", new Operation() {
+				@Override
+				public void run(int iteration) {
+					history.setDataFromFile(history.toFileBytes());
+				}
+			}));
+			// compare all the storage there is with the same histories
+			for (HistoryStorage.Backend backend : K_STORAGEBACKENDS) {
+				results.addAll(runStorage(backend, history.toFileBytes()));
+			}
+			results.addAll(runContention(store));
+		}
+		finally {
+			store.closeStore();
+			if (store.awaitClosed(K_CLOSETIMEOUT)) {
+				deleteStoreFiles(store);
+			}
+		}
+		results.addAll(runCodecs());
+		return results;
+	}
+
+	/**
+	 * measure the writing and reading of the histories in the storage, a batch of a month of days
+	 * at a time as the store writes them, so each storage is compared doing the same work
+	 * @param backend is the storage to measure
+	 * @param contents are the contents of a history, written for every day
+	 * @return the results of each operation
+	 */
+	public List<Result> runStorage(HistoryStorage.Backend backend, ByteBuffer contents) {
+		List<Result> results = new ArrayList<Result>();
+		final HistoryStorage storage = backend.create(this.context, K_STORAGEPREFIX);
+		if (false == storage.open()) {
+			Log.w(MainActivity.TAG, "No storage to benchmark for " + backend.getName());
+			storage.close();
+			return results;
+		}
+		final List<String> keys = new ArrayList<String>(K_STORAGEBATCH);
+		final List<ByteBuffer> batch = new ArrayList<ByteBuffer>(K_STORAGEBATCH);
+		for (int i = 0; i < K_STORAGEBATCH; ++i) {
+			// the keys of the days of a month, as the store has them
+			keys.add(String.format("2000-01-%02d", i + 1));
+			batch.add(contents);
+		}
+		String name = backend.getName();
+		try {
+			results.add(measure(name + ".writeBatch", new Operation() {
+				@Override
+				public void run(int iteration) {
+					storage.writeBatch(keys, batch);
+				}
+			}, K_STORAGEWARMUP, K_STORAGEMEASURED));
+			results.add(measure(name + ".read", new Operation() {
+				@Override
+				public void run(int iteration) {
+					storage.read(keys.get(iteration % K_STORAGEBATCH));
+				}
+			}, K_STORAGEWARMUP, K_STORAGEMEASURED));
+			final HistoryStorage.RecordHandler handler = new HistoryStorage.RecordHandler() {
+				@Override
+				public void handleRecord(String key, ByteBuffer record) {
+					// just reading them is all
+				}
+			};
+			results.add(measure(name + ".readRange", new Operation() {
+				@Override
+				public void run(int iteration) {
+					storage.readRange(keys.get(0), keys.get(K_STORAGEBATCH - 1), handler);
+				}
+			}, K_STORAGEWARMUP, K_STORAGEMEASURED));
+		}
+		finally {
+			for (String key : storage.listKeys()) {
+				storage.delete(key);
+			}
+			storage.close();
+		}
+		return results;
+	}
+
+	/**
+	 * measure counting data in the bins of the one history from more and more threads at once, 1, 2, 4 up to
+	 * K_MAXWRITERS, with a thread copying the bins all the while as the charts do
+	 * @param store is the store to create the histories in
+	 * @return the results of each number of threads
+	 */
+	public List<Result> runContention(IntConnectionHistoryStore store) {
+		List<Result> results = new ArrayList<Result>();
+		for (int noWriters = 1; noWriters <= K_MAXWRITERS; noWriters *= 2) {
+			Result result = measureContention(store, noWriters);
+			if (null == result) {
+				// interrupted
+				break;
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * helper to measure counting data in the bins of a history from the threads at once, checking
+	 * none is lost. Only the bins can have several threads adding at once, the recent memory has
+	 * the one thread storing data, so the writers here add to the bins alone
+	 * @param store is the store to create the history in
+	 * @param noWriters is the number of threads adding data
+	 * @return the results, the operations of all the threads together, null if interrupted
+	 */
+	private Result measureContention(IntConnectionHistoryStore store, final int noWriters) {
+		// a history of a day the store has none for, so it is never saved
+		final BleConnectionHistory<Integer> history = new IntConnectionHistory(new Date(0), this.context, store);
+		final IntConnectionHistoryStore.IntStorePackager packager = store.getIntPackager();
+		final int[] startFrequencies = new int[history.getNoBins()];
+		history.copyBinFrequencies(startFrequencies);
+		final int noWarmup = Math.max(1, this.noWarmup / noWriters);
+		final int noMeasured = Math.max(1, this.noMeasured / noWriters);
+		final long[] latencies = new long[noWriters * noMeasured];
+		final long[] noBinned = new long[noWriters];
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final AtomicBoolean isDone = new AtomicBoolean(false);
+		final long[] noSnapshots = new long[1];
+		Thread[] writers = new Thread[noWriters];
+		for (int w = 0; w < noWriters; ++w) {
+			final int writer = w;
+			writers[w] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int offset = writer * noMeasured;
+					for (int i = 0; i < noWarmup + noMeasured; ++i) {
+						if (i == noWarmup) {
+							// warmed up, wait for the others to be too
+							try {
+								startLatch.await();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						long opStart = System.nanoTime();
+						boolean isBinned = history.addToBins(packager.getBinIndex(values[(offset + i) & (K_NOVALUES - 1)]), 1) >= 0;
+						if (i >= noWarmup) {
+							latencies[offset + i - noWarmup] = System.nanoTime() - opStart;
+						}
+						noBinned[writer] += isBinned ? 1 : 0;
+					}
+				}
+			}, "BenchmarkWriter " + w);
+			writers[w].start();
+		}
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int[] frequencies = new int[history.getNoBins()];
+				while (false == isDone.get()) {
+					history.copyBinFrequencies(frequencies);
+					++noSnapshots[0];
+				}
+			}
+		}, "BenchmarkReader");
+		reader.start();
+		long start = System.nanoTime();
+		startLatch.countDown();
+		long totalNanos;
+		try {
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			totalNanos = System.nanoTime() - start;
+			isDone.set(true);
+			reader.join();
+		} catch (InterruptedException e) {
+			Log.e(MainActivity.TAG, "Interrupted measuring the contention", e);
+			isDone.set(true);
+			for (Thread writer : writers) {
+				writer.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		// every value added must be counted, no matter how many added at once
+		int[] frequencies = new int[history.getNoBins()];
+		history.copyBinFrequencies(frequencies);
+		long noCounted = 0;
+		long noAdded = 0;
+		for (int i = 0; i < frequencies.length; ++i) {
+			noCounted += frequencies[i] - startFrequencies[i];
+		}
+		for (long binned : noBinned) {
+			noAdded += binned;
+		}
+		if (noCounted != noAdded) {
+			Log.e(MainActivity.TAG, "Benchmark lost data with " + noWriters + " writers, counted " + noCounted + " of " + noAdded);
+		}
+		Arrays.sort(latencies);
+		Result result = new Result("history.addToBins x" + noWriters, latencies.length, totalNanos, latencies, -1.0, -1.0);
+		Log.i(MainActivity.TAG, "Benchmark " + result + ", " + noSnapshots[0] + " snapshots read");
+		return result;
+	}
+
+	/**
+	 * measure the encoding and decoding of the samples, in the compact encoding and in a comma
+	 * separated line of text per sample, logging the bytes each sample takes in each and in the journal
+	 * @return the results of each operation
+	 */
+	public List<Result> runCodecs() {
+		List<Result> results = new ArrayList<Result>();
+		// create the samples from the simulated sensor, at 4 Hz with a little jitter
+		final HeartRateMeasurement[] samples = new HeartRateMeasurement[K_NOSAMPLES];
+		final long[] times = new long[K_NOSAMPLES];
+		final String[] lines = new String[K_NOSAMPLES];
+		SimulatedHeartRateSensor sensor = new SimulatedHeartRateSensor(K_NOSAMPLES, false);
+		Random random = new Random(K_NOSAMPLES);
+		byte[] payload = new byte[SimulatedHeartRateSensor.K_MAXPAYLOAD];
+		final long startTime = System.currentTimeMillis();
+		final StringBuilder line = new StringBuilder();
+		long csvBytes = 0;
+		for (int i = 0; i < K_NOSAMPLES; ++i) {
+			times[i] = startTime + i * K_SAMPLEINTERVALMS + random.nextInt(2 * K_SAMPLEJITTERMS + 1) - K_SAMPLEJITTERMS;
+			samples[i] = new HeartRateMeasurement();
+			samples[i].parse(payload, 0, sensor.nextPayload(times[i], payload));
+			lines[i] = toCsvLine(samples[i], times[i], line);
+			csvBytes += lines[i].length();
+		}
+		// encode them all, to decode and to see the size
+		ByteArrayOutputStream encodedStream = new ByteArrayOutputStream();
+		try {
+			SampleCodec.Encoder encoder = new SampleCodec.Encoder(encodedStream);
+			for (int i = 0; i < K_NOSAMPLES; ++i) {
+				encoder.encode(samples[i], times[i]);
+			}
+			encoder.finish();
+		} catch (IOException e) {
+			Log.e(MainActivity.TAG, "Failed to encode the samples", e);
+			return results;
+		}
+		final byte[] encoded = encodedStream.toByteArray();
+		Log.i(MainActivity.TAG, String.format("Benchmark bytes/sample: encoded %.2f, csv %.2f, journal %d",
+				encoded.length / (double) K_NOSAMPLES, csvBytes / (double) K_NOSAMPLES, SampleJournal.K_RECORDSIZE));
+		// the encoding writes to a stream that just drops the bytes, so only the encoding is measured
+		final OutputStream discardStream = new OutputStream() {
+			@Override
+			public void write(int oneByte) {
+				// drop it
+			}
+		};
+		final SampleCodec.Encoder encoder = new SampleCodec.Encoder(discardStream);
+		results.add(measure("codec.encode", new Operation() {
+			@Override
+			public void run(int iteration) {
+				int index = iteration & (K_NOSAMPLES - 1);
+				try {
+					encoder.encode(samples[index], times[index] + (iteration / K_NOSAMPLES) * K_NOSAMPLES * K_SAMPLEINTERVALMS);
+				} catch (IOException e) {
+					Log.e(MainActivity.TAG, "Failed to encode the sample", e);
+				}
+			}
+		}));
+		final HeartRateMeasurement measurement = new HeartRateMeasurement();
+		final SampleCodec.Decoder[] decoder = new SampleCodec.Decoder[] { new SampleCodec.Decoder(new ByteArrayInputStream(encoded)) };
+		results.add(measure("codec.decode", new Operation() {
+			@Override
+			public void run(int iteration) {
+				try {
+					if (false == decoder[0].decode(measurement)) {
+						// at the end, start again from the start
+						decoder[0] = new SampleCodec.Decoder(new ByteArrayInputStream(encoded));
+						decoder[0].decode(measurement);
+					}
+				} catch (IOException e) {
+					Log.e(MainActivity.TAG, "Failed to decode the sample", e);
+				}
+			}
+		}));
+		results.add(measure("csv.encode", new Operation() {
+			@Override
+			public void run(int iteration) {
+				int index = iteration & (K_NOSAMPLES - 1);
+				try {
+					discardStream.write(toCsvLine(samples[index], times[index], line).getBytes());
+				} catch (IOException e) {
+					Log.e(MainActivity.TAG, "Failed to write the sample", e);
+				}
+			}
+		}));
+		final int[] rrIntervals = new int[SampleCodec.K_MAXRRINTERVALS];
+		results.add(measure("csv.decode", new Operation() {
+			@Override
+			public void run(int iteration) {
+				String[] fields = lines[iteration & (K_NOSAMPLES - 1)].trim().split(",");
+				int noIntervals = Math.min(fields.length - 4, rrIntervals.length);
+				for (int i = 0; i < noIntervals; ++i) {
+					rrIntervals[i] = Integer.parseInt(fields[4 + i]);
+				}
+				Long.parseLong(fields[0]);
+				measurement.set(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), rrIntervals, 0, noIntervals);
+			}
+		}));
+		return results;
+	}
+
+	/**
+	 * helper to write a sample as a line of comma separated text, as the text files were
+	 * @param measurement is the sample
+	 * @param time is the time of the sample
+	 * @param line is the builder to use
+	 * @return the line
+	 */
+	private static String toCsvLine(HeartRateMeasurement measurement, long time, StringBuilder line) {
+		line.setLength(0);
+		line.append(time).append(',').append(measurement.getFlags()).append(',')
+			.append(measurement.getHeartRate()).append(',').append(measurement.getEnergyExpended());
+		for (int i = 0; i < measurement.getNoRrIntervals(); ++i) {
+			line.append(',').append(measurement.getRrInterval(i));
+		}
+		return line.append('\n').toString();
+	}
+
+	/**
+	 * measure the operation, warming it up first
+	 * @param name is the name of the operation to report
+	 * @param operation is the operation to run
+	 * @return the results
+	 */
+	public Result measure(String name, Operation operation) {
+		return measure(name, operation, this.noWarmup, this.noMeasured);
+	}
+
+	/**
+	 * measure the operation, warming it up first
+	 * @param name is the name of the operation to report
+	 * @param operation is the operation to run
+	 * @param noWarmup is the number of times to run the operation before measuring
+	 * @param noMeasured is the number of times to run the operation measured
+	 * @return the results
+	 */
+	public Result measure(String name, Operation operation, int noWarmup, int noMeasured) {
+		// warm up, so the JIT has done what it will
+		for (int i = 0; i < noWarmup; ++i) {
+			operation.run(i);
+		}
+		long[] latencies = new long[noMeasured];
+		if (this.isCountAllocations) {
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+			Debug.startAllocCounting();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < noMeasured; ++i) {
+			long opStart = System.nanoTime();
+			operation.run(noWarmup + i);
+			latencies[i] = System.nanoTime() - opStart;
+		}
+		long totalNanos = System.nanoTime() - start;
+		double bytesPerOperation = -1.0;
+		double objectsPerOperation = -1.0;
+		if (this.isCountAllocations) {
+			Debug.stopAllocCounting();
+			bytesPerOperation = Debug.getThreadAllocSize() / (double) noMeasured;
+			objectsPerOperation = Debug.getThreadAllocCount() / (double) noMeasured;
+		}
+		Arrays.sort(latencies);
+		Result result = new Result(name, noMeasured, totalNanos, latencies, bytesPerOperation, objectsPerOperation);
+		Log.i(MainActivity.TAG, "Benchmark " + result);
+		return result;
+	}
+
+	/**
+	 * helper to delete all the histories, journal and minute files the benchmark store created
+	 * @param store is the store to delete the files of, closed
+	 */
+	private void deleteStoreFiles(HeartRateDataStore store) {
+		SampleJournal journal = store.getJournal();
+		if (null != journal && false == journal.delete()) {
+			Log.w(MainActivity.TAG, "Failed to delete the benchmark journal");
+		}
+		MinuteRollupStore minuteRollups = store.getMinuteRollups();
+		if (null != minuteRollups && false == minuteRollups.delete()) {
+			Log.w(MainActivity.TAG, "Failed to delete the benchmark minute rollups");
+		}
+		HistoryStorage storage = store.getStorageBackend().create(this.context, store.getFilePrefix());
+		if (storage.open()) {
+			for (String key : storage.listKeys()) {
+				if (false == storage.delete(key)) {
+					Log.w(MainActivity.TAG, "Failed to delete the benchmark history: " + key);
+				}
+			}
+		}
+		storage.close();
+	}
+}
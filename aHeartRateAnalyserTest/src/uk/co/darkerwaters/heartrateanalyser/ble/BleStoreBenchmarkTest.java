@@ -0,0 +1,38 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * runs the benchmark of the storage on a device, the results are logged as each completes. The
+ * store of the benchmark is kept in the files of the tests
+ */
+public class BleStoreBenchmarkTest extends AndroidTestCase {
+	/** the context the store is created in, to keep it apart from the app's */
+	private TestFilesContext filesContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.filesContext = new TestFilesContext(getContext());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		this.filesContext.deleteFiles();
+		super.tearDown();
+	}
+
+	@LargeTest
+	public void testRunAll() {
+		BleStoreBenchmark benchmark = new BleStoreBenchmark(this.filesContext,
+				BleStoreBenchmark.K_DEFAULTWARMUP, BleStoreBenchmark.K_DEFAULTMEASURED, true);
+		List<BleStoreBenchmark.Result> results = benchmark.runAll();
+		assertFalse(results.isEmpty());
+		for (BleStoreBenchmark.Result result : results) {
+			assertTrue(result.name, result.noOperations > 0);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * the storage of the histories as a row per history in an embedded SQLite database, shared by all
+ * the stores. The rows are keyed by the prefix of the store and the key of the history, which is
+ * the primary key so the histories of a store, and any range of their keys, are found from the
+ * index without a scan. A batch is written in a single transaction, so the disk is synced once
+ * for the whole save and the batch is all written or none of it is.
+ * <p>
+ * Any files of the store left from the file storage are moved into the database when it is opened.
+ * This is kept with the tests, measured by the benchmark and checked by HistoryStorageTest, until
+ * it has been run on devices enough for the app to keep its histories in it.
+ */
+public class DatabaseHistoryStorage implements HistoryStorage {
+	/** the backend that keeps each history in a row of the database */
+	public static final HistoryStorage.Backend K_BACKEND = new HistoryStorage.Backend() {
+		@Override
+		public String getName() {
+			return "database";
+		}
+		@Override
+		public HistoryStorage create(Context context, String filePrefix) {
+			return new DatabaseHistoryStorage(context, filePrefix);
+		}
+	};
+	/** the name of the database file */
+	private static final String K_DATABASENAME = "histories.db";
+	/** the version of the tables in the database */
+	private static final int K_DATABASEVERSION = 1;
+	/** the table of the histories, and its columns */
+	private static final String K_TABLE = "histories";
+	private static final String K_COLPREFIX = "prefix";
+	private static final String K_COLKEY = "key";
+	private static final String K_COLDATA = "data";
+	/** the statement to write a history, replacing any that is there */
+	private static final String K_INSERTSQL = "INSERT OR REPLACE INTO " + K_TABLE
+			+ " (" + K_COLPREFIX + ", " + K_COLKEY + ", " + K_COLDATA + ") VALUES (?, ?, ?)";
+	/** the helper that opens the database, shared by all the stores, guarded by the class */
+	private static DatabaseHelper sharedHelper = null;
+	/** the number of storages using the shared helper, guarded by the class */
+	private static int noHelperUsers = 0;
+	/** the context to open the database, and to find the files to move in */
+	private final Context context;
+	/** the prefix of the store the histories are of */
+	private final String filePrefix;
+	/** the helper that opens the database, null once closed */
+	private DatabaseHelper helper;
+
+	/**
+	 * the helper that creates the table of the histories, when the database is first opened
+	 */
+	private static class DatabaseHelper extends SQLiteOpenHelper {
+		DatabaseHelper(Context context) {
+			super(context, K_DATABASENAME, null, K_DATABASEVERSION);
+		}
+
+		@Override
+		public void onCreate(SQLiteDatabase database) {
+			database.execSQL("CREATE TABLE " + K_TABLE + " ("
+					+ K_COLPREFIX + " TEXT NOT NULL, "
+					+ K_COLKEY + " TEXT NOT NULL, "
+					+ K_COLDATA + " BLOB NOT NULL, "
+					+ "PRIMARY KEY (" + K_COLPREFIX + ", " + K_COLKEY + "))");
+		}
+
+		@Override
+		public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+			// there is only the one version so far
+		}
+	}
+
+	/**
+	 * constructor
+	 * @param context is the context to open the database with
+	 * @param filePrefix is the prefix of the store the histories are of
+	 */
+	public DatabaseHistoryStorage(Context context, String filePrefix) {
+		this.context = context;
+		this.filePrefix = filePrefix;
+		synchronized (DatabaseHistoryStorage.class) {
+			if (null == sharedHelper) {
+				sharedHelper = new DatabaseHelper(context.getApplicationContext());
+			}
+			++noHelperUsers;
+			this.helper = sharedHelper;
+		}
+	}
+
+	@Override
+	public boolean open() {
+		SQLiteDatabase database = getDatabase();
+		if (null == database) {
+			return false;
+		}
+		// move in any histories of this store kept in files before we used the database
+		FileHistoryStorage files = new FileHistoryStorage(this.context.getFilesDir(), this.filePrefix);
+		if (files.open()) {
+			List<String> keys = new ArrayList<String>();
+			List<ByteBuffer> contents = new ArrayList<ByteBuffer>();
+			for (String key : files.listKeys()) {
+				ByteBuffer fileContents = files.read(key);
+				if (null != fileContents) {
+					keys.add(key);
+					contents.add(fileContents);
+				}
+			}
+			if (false == keys.isEmpty() && writeBatch(keys, contents)) {
+				// they are safely in the database, delete the files
+				for (String key : keys) {
+					files.delete(key);
+				}
+				Log.i(MainActivity.TAG, "Moved " + keys.size() + " history files into the database for " + this.filePrefix);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public List<String> listKeys() {
+		List<String> keys = new ArrayList<String>();
+		SQLiteDatabase database = getDatabase();
+		if (null == database) {
+			return keys;
+		}
+		Cursor cursor = null;
+		try {
+			cursor = database.query(K_TABLE, new String[] { K_COLKEY }, K_COLPREFIX + " = ?",
+					new String[] { this.filePrefix }, null, null, K_COLKEY);
+			while (cursor.moveToNext()) {
+				keys.add(cursor.getString(0));
+			}
+		}
+		catch (SQLException e) {
+			Log.e(MainActivity.TAG, "Failed to list the histories of " + this.filePrefix, e);
+		}
+		finally {
+			if (null != cursor) {
+				cursor.close();
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public ByteBuffer read(String key) {
+		final ByteBuffer[] contents = new ByteBuffer[1];
+		readRange(key, key, new RecordHandler() {
+			@Override
+			public void handleRecord(String key, ByteBuffer record) {
+				contents[0] = record;
+			}
+		});
+		return contents[0];
+	}
+
+	@Override
+	public int readRange(String fromKey, String toKey, RecordHandler handler) {
+		SQLiteDatabase database = getDatabase();
+		if (null == database) {
+			return 0;
+		}
+		int noRead = 0;
+		Cursor cursor = null;
+		try {
+			// this is a range of the primary key, so is read from the index in the order of the keys
+			cursor = database.query(K_TABLE, new String[] { K_COLKEY, K_COLDATA },
+					K_COLPREFIX + " = ? AND " + K_COLKEY + " >= ? AND " + K_COLKEY + " <= ?",
+					new String[] { this.filePrefix, fromKey, toKey }, null, null, K_COLKEY);
+			while (cursor.moveToNext()) {
+				handler.handleRecord(cursor.getString(0), ByteBuffer.wrap(cursor.getBlob(1)));
+				++noRead;
+			}
+		}
+		catch (SQLException e) {
+			Log.e(MainActivity.TAG, "Failed to read the histories of " + this.filePrefix + " from " + fromKey + " to " + toKey, e);
+		}
+		finally {
+			if (null != cursor) {
+				cursor.close();
+			}
+		}
+		return noRead;
+	}
+
+	@Override
+	public boolean writeBatch(List<String> keys, List<ByteBuffer> contents) {
+		SQLiteDatabase database = getDatabase();
+		if (null == database) {
+			return false;
+		}
+		boolean isAllSaved = false;
+		database.beginTransaction();
+		try {
+			// the one statement for every history, so it is compiled just the once
+			SQLiteStatement insert = database.compileStatement(K_INSERTSQL);
+			try {
+				for (int i = 0; i < keys.size(); ++i) {
+					insert.clearBindings();
+					insert.bindString(1, this.filePrefix);
+					insert.bindString(2, keys.get(i));
+					insert.bindBlob(3, toBytes(contents.get(i)));
+					insert.executeInsert();
+				}
+			}
+			finally {
+				insert.close();
+			}
+			database.setTransactionSuccessful();
+			isAllSaved = true;
+		}
+		catch (SQLException e) {
+			Log.e(MainActivity.TAG, "Failed to write " + keys.size() + " histories of " + this.filePrefix, e);
+		}
+		finally {
+			// this commits, and syncs, the whole batch, or rolls it all back if it failed
+			database.endTransaction();
+		}
+		return isAllSaved;
+	}
+
+	@Override
+	public boolean delete(String key) {
+		SQLiteDatabase database = getDatabase();
+		if (null == database) {
+			return false;
+		}
+		try {
+			database.delete(K_TABLE, K_COLPREFIX + " = ? AND " + K_COLKEY + " = ?", new String[] { this.filePrefix, key });
+			return true;
+		}
+		catch (SQLException e) {
+			Log.e(MainActivity.TAG, "Failed to delete the history " + key + " of " + this.filePrefix, e);
+			return false;
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (DatabaseHistoryStorage.class) {
+			if (null == this.helper) {
+				// already closed
+				return;
+			}
+			this.helper = null;
+			if (--noHelperUsers == 0) {
+				// the last store using the database, close it
+				sharedHelper.close();
+				sharedHelper = null;
+			}
+		}
+	}
+
+	/**
+	 * helper to get the database, opening it if not open
+	 * @return the database, null if it could not be opened or the storage is closed
+	 */
+	private SQLiteDatabase getDatabase() {
+		DatabaseHelper helper;
+		synchronized (DatabaseHistoryStorage.class) {
+			helper = this.helper;
+		}
+		if (null == helper) {
+			Log.e(MainActivity.TAG, "The history database is closed for " + this.filePrefix);
+			return null;
+		}
+		try {
+			return helper.getWritableDatabase();
+		}
+		catch (SQLException e) {
+			Log.e(MainActivity.TAG, "Failed to open the history database", e);
+			return null;
+		}
+	}
+
+	/**
+	 * helper to get the bytes of the contents to bind, copying only if the buffer is not all the array
+	 */
+	private static byte[] toBytes(ByteBuffer contents) {
+		if (contents.arrayOffset() == 0 && contents.position() == 0 && contents.limit() == contents.array().length) {
+			return contents.array();
+		}
+		byte[] bytes = new byte[contents.remaining()];
+		contents.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,169 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import junit.framework.TestCase;
+
+/**
+ * checks the decoding of the Heart Rate Measurement (0x2A37) from the bytes a sensor sends, every
+ * field the flags can say is there, and the re-use of the one measurement for every notification
+ */
+public class HeartRateMeasurementTest extends TestCase {
+
+	public void testUint8HeartRate() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		assertTrue(measurement.parse(bytes(0x00, 72)));
+		assertTrue(measurement.isValid());
+		assertEquals(0x00, measurement.getFlags());
+		assertEquals(72, measurement.getHeartRate());
+		assertEquals(HeartRateMeasurement.SensorContact.notSupported, measurement.getSensorContact());
+		assertFalse(measurement.isEnergyExpendedPresent());
+		assertEquals(HeartRateMeasurement.K_NO_ENERGY, measurement.getEnergyExpended());
+		assertEquals(0, measurement.getNoRrIntervals());
+		// the top of the range, unsigned
+		assertTrue(measurement.parse(bytes(0x00, 0xFF)));
+		assertEquals(255, measurement.getHeartRate());
+	}
+
+	public void testUint16HeartRate() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		// little-endian, 0x012C is 300
+		assertTrue(measurement.parse(bytes(0x01, 0x2C, 0x01)));
+		assertEquals(300, measurement.getHeartRate());
+		// the top of the range, unsigned
+		assertTrue(measurement.parse(bytes(0x01, 0xFF, 0xFF)));
+		assertEquals(65535, measurement.getHeartRate());
+		// the flags say UINT16 but there is only the one byte
+		assertFalse(measurement.parse(bytes(0x01, 0x2C)));
+		assertFalse(measurement.isValid());
+		assertEquals(-1, measurement.getHeartRate());
+	}
+
+	public void testSensorContact() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_CONTACT_SUPPORTED, 60)));
+		assertEquals(HeartRateMeasurement.SensorContact.notDetected, measurement.getSensorContact());
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_CONTACT_SUPPORTED | HeartRateMeasurement.K_FLAG_CONTACT_DETECTED, 60)));
+		assertEquals(HeartRateMeasurement.SensorContact.detected, measurement.getSensorContact());
+		// detected means nothing unless the sensor says it supports it
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_CONTACT_DETECTED, 60)));
+		assertEquals(HeartRateMeasurement.SensorContact.notSupported, measurement.getSensorContact());
+	}
+
+	public void testEnergyExpended() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_ENERGY_PRESENT, 80, 0x34, 0x12)));
+		assertEquals(80, measurement.getHeartRate());
+		assertTrue(measurement.isEnergyExpendedPresent());
+		assertEquals(0x1234, measurement.getEnergyExpended());
+		// after a UINT16 heart rate
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_ENERGY_PRESENT | HeartRateMeasurement.K_FLAG_HR_UINT16, 80, 0x00, 0xFF, 0xFF)));
+		assertEquals(80, measurement.getHeartRate());
+		assertEquals(65535, measurement.getEnergyExpended());
+		// the flags say there is energy but there is only one byte of it
+		assertFalse(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_ENERGY_PRESENT, 80, 0x34)));
+		assertFalse(measurement.isEnergyExpendedPresent());
+	}
+
+	public void testRrIntervals() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_RR_PRESENT, 70, 0x00, 0x04, 0x10, 0x04)));
+		assertEquals(70, measurement.getHeartRate());
+		assertEquals(2, measurement.getNoRrIntervals());
+		assertEquals(1024, measurement.getRrInterval(0));
+		assertEquals(1040, measurement.getRrInterval(1));
+		int[] intervals = new int[4];
+		assertEquals(2, measurement.copyRrIntervals(intervals, 1));
+		assertEquals(1024, intervals[1]);
+		assertEquals(1040, intervals[2]);
+		try {
+			measurement.getRrInterval(2);
+			fail("read an RR-interval that is not there");
+		}
+		catch (IndexOutOfBoundsException e) {
+			// as it should be
+		}
+	}
+
+	public void testRrIntervalsAfterEverything() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		int flags = HeartRateMeasurement.K_FLAG_HR_UINT16 | HeartRateMeasurement.K_FLAG_ENERGY_PRESENT | HeartRateMeasurement.K_FLAG_RR_PRESENT;
+		// a byte over the last interval is ignored
+		assertTrue(measurement.parse(bytes(flags, 0x2C, 0x01, 0x0A, 0x00, 0xFF, 0xFF, 0x00, 0x02, 0x7F)));
+		assertEquals(300, measurement.getHeartRate());
+		assertEquals(10, measurement.getEnergyExpended());
+		assertEquals(2, measurement.getNoRrIntervals());
+		assertEquals(65535, measurement.getRrInterval(0));
+		assertEquals(512, measurement.getRrInterval(1));
+		// the flags say there are intervals but there are none
+		assertTrue(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_RR_PRESENT, 70)));
+		assertEquals(0, measurement.getNoRrIntervals());
+	}
+
+	public void testMoreRrIntervalsThanEverSeen() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		byte[] data = new byte[2 + 2 * 20];
+		data[0] = HeartRateMeasurement.K_FLAG_RR_PRESENT;
+		data[1] = 60;
+		for (int i = 0; i < 20; ++i) {
+			data[2 + i * 2] = (byte) i;
+			data[3 + i * 2] = 0x03;
+		}
+		assertTrue(measurement.parse(data));
+		assertEquals(20, measurement.getNoRrIntervals());
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(0x0300 | i, measurement.getRrInterval(i));
+		}
+	}
+
+	public void testOffsetAndLength() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		// the measurement is in the middle, the bytes around it are not part of it
+		byte[] data = bytes(0xFF, 0xFF, HeartRateMeasurement.K_FLAG_RR_PRESENT, 90, 0x00, 0x04, 0x55, 0x55);
+		assertTrue(measurement.parse(data, 2, 4));
+		assertEquals(90, measurement.getHeartRate());
+		assertEquals(1, measurement.getNoRrIntervals());
+		assertEquals(1024, measurement.getRrInterval(0));
+		// past the end of the data
+		assertFalse(measurement.parse(data, 6, 4));
+		assertFalse(measurement.parse(data, -1, 4));
+	}
+
+	public void testInvalidData() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		assertFalse(measurement.parse(null));
+		assertFalse(measurement.parse(new byte[0]));
+		// just the flags
+		assertFalse(measurement.parse(bytes(0x00)));
+		assertFalse(measurement.isValid());
+	}
+
+	public void testReusedMeasurement() {
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		int flags = HeartRateMeasurement.K_FLAG_CONTACT_SUPPORTED | HeartRateMeasurement.K_FLAG_CONTACT_DETECTED
+				| HeartRateMeasurement.K_FLAG_ENERGY_PRESENT | HeartRateMeasurement.K_FLAG_RR_PRESENT;
+		assertTrue(measurement.parse(bytes(flags, 100, 0x05, 0x00, 0x00, 0x04)));
+		// nothing of the last is left in the next
+		assertTrue(measurement.parse(bytes(0x00, 65)));
+		assertEquals(65, measurement.getHeartRate());
+		assertEquals(HeartRateMeasurement.SensorContact.notSupported, measurement.getSensorContact());
+		assertFalse(measurement.isEnergyExpendedPresent());
+		assertEquals(0, measurement.getNoRrIntervals());
+		// nor in one that fails
+		assertTrue(measurement.parse(bytes(flags, 100, 0x05, 0x00, 0x00, 0x04)));
+		assertFalse(measurement.parse(bytes(HeartRateMeasurement.K_FLAG_HR_UINT16, 100)));
+		assertEquals(-1, measurement.getHeartRate());
+		assertEquals(0, measurement.getFlags());
+		assertFalse(measurement.isEnergyExpendedPresent());
+		assertEquals(0, measurement.getNoRrIntervals());
+	}
+
+	/**
+	 * helper to create the bytes of a payload
+	 */
+	private static byte[] bytes(int... values) {
+		byte[] data = new byte[values.length];
+		for (int i = 0; i < values.length; ++i) {
+			data[i] = (byte) values[i];
+		}
+		return data;
+	}
+}
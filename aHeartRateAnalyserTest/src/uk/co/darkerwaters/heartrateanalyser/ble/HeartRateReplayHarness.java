@@ -0,0 +1,317 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+/**
+ * drives the payloads of a simulated sensor into the store, or the connection chain, at a
+ * configurable rate from real time up to K_MAXSPEED times faster. The time of each payload comes
+ * from a simulated clock so hours of data, across midnight, can be stored in seconds. The time
+ * each payload takes to be accepted is measured and reported with the throughput of the run.
+ * Several sensors can be run at once, each into its own device, to measure each device's latency.
+ * Run on a device by HeartRateReplayHarnessTest.
+ */
+public class HeartRateReplayHarness {
+	/** the fastest the data can be replayed, as a multiple of real time */
+	public static final double K_MAXSPEED = 1000.0;
+	/** the maximum number of latencies kept, beyond this every other one is kept */
+	private static final int K_MAXLATENCIES = 1 << 20;
+	/** the time to wait for the store to catch up at the end of a run */
+	private static final long K_MAXDRAINMS = 30000;
+	/** the time to wait for the store to open at the start of a run */
+	private static final long K_MAXOPENMS = 30000;
+	/** the number of simulated sensors connected at once by runSimulatedDevices */
+	public static final int K_NODEVICES = 8;
+	/** the rate each of those sensors sends a payload at, in (simulated) Hz */
+	public static final double K_DEVICERATEHZ = 4.0;
+	/** the start of the address of each simulated sensor, followed by its number */
+	private static final String K_DEVICEADDRESS = "SIMULATED";
+	/**
+	 * the interface to something that accepts the payloads
+	 */
+	public interface PayloadTarget {
+		/**
+		 * accept the payload
+		 * @param payload is the array containing the payload, re-used so do not keep it
+		 * @param length is the length of the payload
+		 * @param time is the wall-clock time, in ms, of the payload
+		 * @param elapsedTime is the monotonic time, in ms, of the payload
+		 * @return true if accepted
+		 */
+		public boolean payloadAvailable(byte[] payload, int length, long time, long elapsedTime);
+		/**
+		 * @return the number of payloads accepted but not yet stored
+		 */
+		public int getBacklog();
+		/**
+		 * wait for the target to be ready for the first payload, as a real device sends nothing
+		 * until it is connected, so the time taken to open isn't measured as part of the run
+		 * @param timeout is the time to wait, in ms
+		 * @return true if ready, false if not ready in the time
+		 */
+		public boolean awaitReady(long timeout);
+	}
+	/**
+	 * the results of a run
+	 */
+	public static class Report {
+		public long noPayloads;
+		public long noRejected;
+		public long simulatedMillis;
+		public long runNanos;
+		public long drainNanos;
+		public long latencyP50Nanos;
+		public long latencyP90Nanos;
+		public long latencyP99Nanos;
+		public long latencyMaxNanos;
+		/**
+		 * @return the number of payloads stored per second of real time, including catching up
+		 */
+		public double getThroughput() {
+			return this.noPayloads / ((this.runNanos + this.drainNanos) / 1e9);
+		}
+		/**
+		 * @return how many times faster than real time the data was stored
+		 */
+		public double getSpeedUp() {
+			return this.simulatedMillis / ((this.runNanos + this.drainNanos) / 1e6);
+		}
+		@Override
+		public String toString() {
+			return String.format("%d payloads (%d rejected) over %.1f simulated minutes in %.2f s (+%.2f s to store), "
+					+ "%.0f payloads/s, %.0fx real time, latency us p50 %.1f p90 %.1f p99 %.1f max %.1f",
+					this.noPayloads, this.noRejected, this.simulatedMillis / 60000.0,
+					this.runNanos / 1e9, this.drainNanos / 1e9,
+					getThroughput(), getSpeedUp(),
+					this.latencyP50Nanos / 1e3, this.latencyP90Nanos / 1e3,
+					this.latencyP99Nanos / 1e3, this.latencyMaxNanos / 1e3);
+		}
+	}
+	/** the sensor creating the payloads */
+	private final SimulatedHeartRateSensor sensor;
+	/** the clock moved on with each payload */
+	private final SimulatedClock clock;
+	/** the time between payloads, in simulated ms */
+	private final long payloadIntervalMs;
+	/** the multiple of real time to run at */
+	private final double speed;
+
+	/**
+	 * constructor
+	 * @param sensor is the sensor to create the payloads
+	 * @param clock is the clock to move on, the store should be set to use this clock too
+	 * @param payloadRateHz is the number of payloads the sensor sends per (simulated) second
+	 * @param speed is the multiple of real time to run at, from 1 to K_MAXSPEED
+	 */
+	public HeartRateReplayHarness(SimulatedHeartRateSensor sensor, SimulatedClock clock, double payloadRateHz, double speed) {
+		this.sensor = sensor;
+		this.clock = clock;
+		this.payloadIntervalMs = Math.max(1, Math.round(1000.0 / payloadRateHz));
+		this.speed = Math.max(1.0, Math.min(K_MAXSPEED, speed));
+	}
+
+	/**
+	 * run the sensor into the target for the duration
+	 * @param target is the target to send the payloads to
+	 * @param durationMs is the simulated time to run for, in ms
+	 * @return the report of the run
+	 */
+	public Report run(PayloadTarget target, long durationMs) {
+		Report report = new Report();
+		long noPayloads = durationMs / this.payloadIntervalMs;
+		int stride = 1;
+		while (noPayloads / stride > K_MAXLATENCIES) {
+			stride *= 2;
+		}
+		long[] latencies = new long[(int) (noPayloads / stride) + 1];
+		int noLatencies = 0;
+		byte[] payload = new byte[SimulatedHeartRateSensor.K_MAXPAYLOAD];
+		if (false == target.awaitReady(K_MAXOPENMS)) {
+			Log.w(MainActivity.TAG, "Timed out waiting for the target to open, replaying anyway");
+		}
+		long start = System.nanoTime();
+		for (long i = 0; i < noPayloads; ++i) {
+			// pace the payloads to the speed we want to run at
+			long due = start + (long) (i * this.payloadIntervalMs * 1e6 / this.speed);
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			int length = this.sensor.nextPayload(this.clock.elapsedRealtime(), payload);
+			long sent = System.nanoTime();
+			if (false == target.payloadAvailable(payload, length, this.clock.currentTimeMillis(), this.clock.elapsedRealtime())) {
+				++report.noRejected;
+			}
+			long latency = System.nanoTime() - sent;
+			if (i % stride == 0 && noLatencies < latencies.length) {
+				latencies[noLatencies++] = latency;
+			}
+			this.clock.advance(this.payloadIntervalMs);
+		}
+		report.runNanos = System.nanoTime() - start;
+		// wait for the target to store everything it accepted
+		long drainStart = System.nanoTime();
+		long drainEnd = drainStart + K_MAXDRAINMS * 1000000L;
+		while (target.getBacklog() > 0 && System.nanoTime() < drainEnd) {
+			LockSupport.parkNanos(100000L);
+		}
+		report.drainNanos = System.nanoTime() - drainStart;
+		report.noPayloads = noPayloads;
+		report.simulatedMillis = noPayloads * this.payloadIntervalMs;
+		// and work out the percentiles of the latencies
+		if (noLatencies > 0) {
+			Arrays.sort(latencies, 0, noLatencies);
+			report.latencyP50Nanos = latencies[(int) (noLatencies * 0.50)];
+			report.latencyP90Nanos = latencies[(int) (noLatencies * 0.90)];
+			report.latencyP99Nanos = latencies[(int) (noLatencies * 0.99)];
+			report.latencyMaxNanos = latencies[noLatencies - 1];
+		}
+		return report;
+	}
+
+	/**
+	 * run each harness into its target at the same time, each on its own thread as each real
+	 * device has its own GATT callback thread, to see how the devices hold each other up
+	 * @param harnesses are the harnesses to run, one for each device
+	 * @param targets are the targets of the harnesses, in the same order
+	 * @param durationMs is the simulated time to run each for, in ms
+	 * @return the report of each run, in the same order, null for any not finished if interrupted
+	 */
+	public static Report[] runConcurrent(final HeartRateReplayHarness[] harnesses, final PayloadTarget[] targets, final long durationMs) {
+		final Report[] reports = new Report[harnesses.length];
+		for (PayloadTarget target : targets) {
+			// all open before any start, or the first run while the rest are opening
+			if (false == target.awaitReady(K_MAXOPENMS)) {
+				Log.w(MainActivity.TAG, "Timed out waiting for a target to open, replaying anyway");
+			}
+		}
+		Thread[] threads = new Thread[harnesses.length];
+		for (int i = 0; i < harnesses.length; ++i) {
+			final int index = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					reports[index] = harnesses[index].run(targets[index], durationMs);
+				}
+			}, "HeartRateReplay " + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.e(MainActivity.TAG, "Interrupted waiting for the replay of the simulated devices", e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return reports;
+	}
+
+	/**
+	 * connect K_NODEVICES simulated sensors to the service and run them all at once, each sending
+	 * at K_DEVICERATEHZ through the connection chain into its own store, as that many real devices
+	 * would. The latency in the report of each device is the time the GATT callback is held up
+	 * ingesting each payload. The devices are disconnected again when done
+	 * @param service is the service to connect the simulated sensors to
+	 * @param speed is the multiple of real time to run at, from 1 to K_MAXSPEED
+	 * @param durationMs is the simulated time to run for, in ms
+	 * @return the report of each device, by address, in the order connected
+	 */
+	public static Map<String, Report> runSimulatedDevices(BleConnectionService service, double speed, long durationMs) {
+		Map<String, Report> reports = new LinkedHashMap<String, Report>();
+		String[] addresses = new String[K_NODEVICES];
+		HeartRateReplayHarness[] harnesses = new HeartRateReplayHarness[K_NODEVICES];
+		PayloadTarget[] targets = new PayloadTarget[K_NODEVICES];
+		long startTime = System.currentTimeMillis();
+		int noDevices = 0;
+		for (int i = 0; i < K_NODEVICES; ++i) {
+			String address = K_DEVICEADDRESS + i;
+			BleConnectionCallback callback = service.connectSimulated("Simulated sensor " + i, address);
+			BleConnectionHistoryStore<?> store = service.getStore(address);
+			if (false == store instanceof HeartRateDataStore) {
+				Log.e(MainActivity.TAG, "The store of simulated device " + address + " is not for heart rate data");
+				service.disconnect(address);
+				continue;
+			}
+			// every device has its own clock, moved on by its own harness, half send 16 bit rates
+			SimulatedClock clock = new SimulatedClock(startTime);
+			store.setClock(clock);
+			addresses[noDevices] = address;
+			harnesses[noDevices] = new HeartRateReplayHarness(new SimulatedHeartRateSensor(i, 1 == i % 2), clock, K_DEVICERATEHZ, speed);
+			targets[noDevices] = createCallbackTarget(callback, (HeartRateDataStore) store);
+			++noDevices;
+		}
+		Report[] deviceReports = runConcurrent(Arrays.copyOf(harnesses, noDevices), Arrays.copyOf(targets, noDevices), durationMs);
+		for (int i = 0; i < noDevices; ++i) {
+			if (null != deviceReports[i]) {
+				Log.i(MainActivity.TAG, "Simulated device " + addresses[i] + ": " + deviceReports[i]);
+				reports.put(addresses[i], deviceReports[i]);
+			}
+			service.disconnect(addresses[i]);
+		}
+		return reports;
+	}
+
+	/**
+	 * create a target that sends the payloads straight to the store, skipping the GATT callback
+	 * and the connection. Set the store to use the same clock as the harness.
+	 * @param store is the store to put the data in
+	 * @return the target to pass to run
+	 */
+	public static PayloadTarget createStoreTarget(final HeartRateDataStore store) {
+		return new PayloadTarget() {
+			@Override
+			public boolean payloadAvailable(byte[] payload, int length, long time, long elapsedTime) {
+				return store.handleMeasurementData(payload, 0, length, time, elapsedTime);
+			}
+			@Override
+			public int getBacklog() {
+				return store.getIngestQueue().getDepth();
+			}
+			@Override
+			public boolean awaitReady(long timeout) {
+				return store.awaitOpened(timeout);
+			}
+		};
+	}
+
+	/**
+	 * create a target that sends the payloads through the connection chain, as a real device would,
+	 * use with the callback from BleConnectionService.connectSimulated. Set the store of the
+	 * simulated device to use the same clock as the harness.
+	 * @param callback is the callback of the simulated device
+	 * @param store is the store of the simulated device, to wait for it to store the data
+	 * @return the target to pass to run
+	 */
+	public static PayloadTarget createCallbackTarget(final BleConnectionCallback callback, final HeartRateDataStore store) {
+		final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+				HeartRateConnection.UUID_HEART_RATE_MEASUREMENT,
+				BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+				BluetoothGattCharacteristic.PERMISSION_READ);
+		return new PayloadTarget() {
+			@Override
+			public boolean payloadAvailable(byte[] payload, int length, long time, long elapsedTime) {
+				// the characteristic value is always the exact length of the payload
+				characteristic.setValue(Arrays.copyOf(payload, length));
+				callback.gattDataAvailable(characteristic);
+				return true;
+			}
+			@Override
+			public int getBacklog() {
+				return store.getIngestQueue().getDepth();
+			}
+			@Override
+			public boolean awaitReady(long timeout) {
+				return store.awaitOpened(timeout);
+			}
+		};
+	}
+}
@@ -0,0 +1,94 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Map;
+
+import uk.co.darkerwaters.heartrateanalyser.MainActivity;
+import android.content.Intent;
+import android.os.IBinder;
+import android.test.ServiceTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * runs the replay harness on a device, into a store and through the service as that many real
+ * devices would, logging the report of each run. The stores are kept in the files of the tests
+ */
+public class HeartRateReplayHarnessTest extends ServiceTestCase<BleConnectionService> {
+	/** the simulated time to replay into the one store, an hour */
+	private static final long K_STOREDURATIONMS = 3600000L;
+	/** the simulated time to replay into each of the simulated devices */
+	private static final long K_DEVICEDURATIONMS = 600000L;
+	/** the time to wait for a store to close */
+	private static final long K_CLOSETIMEOUT = 10000;
+	/** the context the stores are created in, to keep them apart from the app's */
+	private TestFilesContext filesContext;
+
+	public HeartRateReplayHarnessTest() {
+		super(BleConnectionService.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.filesContext = new TestFilesContext(getContext());
+		// anything left by a run that failed
+		this.filesContext.deleteFiles();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		// this stops the service, closing the stores of the simulated devices
+		super.tearDown();
+		this.filesContext.deleteFiles();
+	}
+
+	@LargeTest
+	public void testReplayIntoStore() {
+		HeartRateDataStore store = new HeartRateDataStore(this.filesContext, "SIMULATEDSTORE");
+		try {
+			SimulatedClock clock = new SimulatedClock(System.currentTimeMillis());
+			store.setClock(clock);
+			HeartRateReplayHarness harness = new HeartRateReplayHarness(new SimulatedHeartRateSensor(0, false),
+					clock, HeartRateReplayHarness.K_DEVICERATEHZ, HeartRateReplayHarness.K_MAXSPEED);
+			HeartRateReplayHarness.Report report = harness.run(HeartRateReplayHarness.createStoreTarget(store), K_STOREDURATIONMS);
+			Log.i(MainActivity.TAG, "Replayed into the store: " + report);
+			assertTrue(report.noPayloads > 0);
+			// every payload accepted is stored, none twice
+			assertEquals(report.noPayloads - report.noRejected, countStored(store));
+		}
+		finally {
+			store.closeStore();
+			assertTrue(store.awaitClosed(K_CLOSETIMEOUT));
+		}
+	}
+
+	@LargeTest
+	public void testSimulatedDevices() {
+		IBinder binder = bindService(new Intent(getContext(), BleConnectionService.class));
+		BleConnectionService service = ((BleConnectionService.LocalBinder) binder).getService();
+		// there might not be bluetooth, the simulated devices don't need it
+		service.initialiseService(this.filesContext, new HeartRateDataStore.HeartRateStoreProvider());
+		Map<String, HeartRateReplayHarness.Report> reports = HeartRateReplayHarness.runSimulatedDevices(service,
+				HeartRateReplayHarness.K_MAXSPEED, K_DEVICEDURATIONMS);
+		assertEquals(HeartRateReplayHarness.K_NODEVICES, reports.size());
+		for (Map.Entry<String, HeartRateReplayHarness.Report> entry : reports.entrySet()) {
+			assertTrue(entry.getKey(), entry.getValue().noPayloads > 0);
+		}
+	}
+
+	/**
+	 * helper to count all the data in all the days of a store
+	 * @param store is the store to count
+	 * @return the number of values stored
+	 */
+	private static long countStored(HeartRateDataStore store) {
+		long noStored = 0;
+		for (String fileDateKey : store.getHistoricFileDates()) {
+			BleConnectionHistory<Integer> history = store.getHistoryData(fileDateKey);
+			for (int i = 0; null != history && i < history.getNoBins(); ++i) {
+				noStored += history.getBinFrequency(i);
+			}
+		}
+		return noStored;
+	}
+}
@@ -0,0 +1,229 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * checks each kind of storage keeps, reads and deletes the histories as the store needs, on a
+ * device so the database is a real one. The storage is kept in the files of the tests
+ */
+public class HistoryStorageTest extends AndroidTestCase {
+	/** the kinds of storage checked */
+	private static final HistoryStorage.Backend[] K_BACKENDS = new HistoryStorage.Backend[] {
+			FileHistoryStorage.K_BACKEND, DatabaseHistoryStorage.K_BACKEND };
+	/** the prefix of the histories written, as a store would have */
+	private static final String K_PREFIX = "hraf-test";
+	/** the time to wait for a store to close */
+	private static final long K_CLOSETIMEOUT = 10000;
+	/** the context the storage is created in, to keep it apart from the app's */
+	private TestFilesContext filesContext;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.filesContext = new TestFilesContext(getContext());
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			// anything left by a run that failed
+			HistoryStorage storage = openStorage(backend);
+			deleteAll(storage);
+			storage.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			HistoryStorage storage = openStorage(backend);
+			deleteAll(storage);
+			storage.close();
+		}
+		this.filesContext.deleteFiles();
+		super.tearDown();
+	}
+
+	public void testWriteAndRead() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			HistoryStorage storage = openStorage(backend);
+			try {
+				List<String> keys = Arrays.asList("2000-01-02", "2000-01-01", "week-2000-01-03");
+				assertTrue(backend.getName(), storage.writeBatch(keys, createContents(keys)));
+				for (String key : keys) {
+					assertEquals(backend.getName() + " " + key, createContents(key), storage.read(key));
+				}
+				List<String> sorted = new ArrayList<String>(keys);
+				Collections.sort(sorted);
+				assertEquals(backend.getName(), sorted, storage.listKeys());
+				assertNull(backend.getName(), storage.read("2000-01-03"));
+			}
+			finally {
+				storage.close();
+			}
+		}
+	}
+
+	public void testWriteReplaces() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			HistoryStorage storage = openStorage(backend);
+			try {
+				String key = "2000-01-01";
+				assertTrue(backend.getName(), storage.writeBatch(Collections.singletonList(key),
+						Collections.singletonList(createContents("old contents"))));
+				assertTrue(backend.getName(), storage.writeBatch(Collections.singletonList(key),
+						Collections.singletonList(createContents(key))));
+				assertEquals(backend.getName(), createContents(key), storage.read(key));
+				assertEquals(backend.getName(), Collections.singletonList(key), storage.listKeys());
+			}
+			finally {
+				storage.close();
+			}
+		}
+	}
+
+	public void testReadRange() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			HistoryStorage storage = openStorage(backend);
+			try {
+				List<String> keys = Arrays.asList("2000-01-01", "2000-01-02", "2000-01-03", "2000-01-04", "2000-01-05");
+				assertTrue(backend.getName(), storage.writeBatch(keys, createContents(keys)));
+				final List<String> read = new ArrayList<String>();
+				final List<ByteBuffer> contents = new ArrayList<ByteBuffer>();
+				int noRead = storage.readRange("2000-01-02", "2000-01-04", new HistoryStorage.RecordHandler() {
+					@Override
+					public void handleRecord(String key, ByteBuffer record) {
+						read.add(key);
+						contents.add(record);
+					}
+				});
+				// the first and last keys are in the range, in order
+				assertEquals(backend.getName(), 3, noRead);
+				assertEquals(backend.getName(), keys.subList(1, 4), read);
+				assertEquals(backend.getName(), createContents(keys.subList(1, 4)), contents);
+			}
+			finally {
+				storage.close();
+			}
+		}
+	}
+
+	public void testDelete() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			HistoryStorage storage = openStorage(backend);
+			try {
+				List<String> keys = Arrays.asList("2000-01-01", "2000-01-02");
+				assertTrue(backend.getName(), storage.writeBatch(keys, createContents(keys)));
+				assertTrue(backend.getName(), storage.delete("2000-01-01"));
+				assertNull(backend.getName(), storage.read("2000-01-01"));
+				assertEquals(backend.getName(), Collections.singletonList("2000-01-02"), storage.listKeys());
+				// deleting one not there is fine
+				assertTrue(backend.getName(), storage.delete("2000-01-01"));
+			}
+			finally {
+				storage.close();
+			}
+		}
+	}
+
+	public void testKeptWhenReopened() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			List<String> keys = Arrays.asList("2000-01-01", "month-2000-01");
+			HistoryStorage storage = openStorage(backend);
+			try {
+				assertTrue(backend.getName(), storage.writeBatch(keys, createContents(keys)));
+			}
+			finally {
+				storage.close();
+			}
+			storage = openStorage(backend);
+			try {
+				assertEquals(backend.getName(), keys, storage.listKeys());
+				for (String key : keys) {
+					assertEquals(backend.getName() + " " + key, createContents(key), storage.read(key));
+				}
+			}
+			finally {
+				storage.close();
+			}
+		}
+	}
+
+	public void testStoreKeepsData() {
+		for (HistoryStorage.Backend backend : K_BACKENDS) {
+			long time = System.currentTimeMillis();
+			HeartRateDataStore store = new HeartRateDataStore(this.filesContext, "STORAGETEST", backend);
+			for (int i = 0; i < 100; ++i) {
+				store.storeData(60 + i, 1, time);
+			}
+			store.closeStore();
+			assertTrue(backend.getName(), store.awaitClosed(K_CLOSETIMEOUT));
+			// the data is read back from the storage by a new store
+			store = new HeartRateDataStore(this.filesContext, "STORAGETEST", backend);
+			try {
+				assertTrue(backend.getName(), store.awaitOpened(K_CLOSETIMEOUT));
+				BleConnectionHistory<Integer> history = store.getHistoryData(BleConnectionHistoryStore.formatDayKey(EpochDays.getEpochDay(time)));
+				assertNotNull(backend.getName(), history);
+				int noStored = 0;
+				for (int i = 0; i < history.getNoBins(); ++i) {
+					noStored += history.getBinFrequency(i);
+				}
+				assertEquals(backend.getName(), 100, noStored);
+			}
+			finally {
+				store.closeStore();
+				assertTrue(backend.getName(), store.awaitClosed(K_CLOSETIMEOUT));
+				store.getJournal().delete();
+				store.getMinuteRollups().delete();
+				HistoryStorage storage = openStorage(backend, store.getFilePrefix());
+				deleteAll(storage);
+				storage.close();
+			}
+		}
+	}
+
+	/**
+	 * helper to create and open the storage of the histories of the test
+	 */
+	private HistoryStorage openStorage(HistoryStorage.Backend backend) {
+		return openStorage(backend, K_PREFIX);
+	}
+
+	/**
+	 * helper to create and open the storage of the histories of a store
+	 */
+	private HistoryStorage openStorage(HistoryStorage.Backend backend, String prefix) {
+		HistoryStorage storage = backend.create(this.filesContext, prefix);
+		assertTrue(backend.getName(), storage.open());
+		return storage;
+	}
+
+	/**
+	 * helper to delete all the histories in the storage
+	 */
+	private static void deleteAll(HistoryStorage storage) {
+		for (String key : storage.listKeys()) {
+			storage.delete(key);
+		}
+	}
+
+	/**
+	 * helper to create the contents of a history, different for each key
+	 */
+	private static ByteBuffer createContents(String key) {
+		return ByteBuffer.wrap(("the history of " + key).getBytes());
+	}
+
+	/**
+	 * helper to create the contents of the histories of the keys
+	 */
+	private static List<ByteBuffer> createContents(List<String> keys) {
+		List<ByteBuffer> contents = new ArrayList<ByteBuffer>(keys.size());
+		for (String key : keys) {
+			contents.add(createContents(key));
+		}
+		return contents;
+	}
+}
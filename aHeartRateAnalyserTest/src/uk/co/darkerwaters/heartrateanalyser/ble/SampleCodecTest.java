@@ -0,0 +1,255 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * checks the samples encoded by SampleCodec decode to exactly what was encoded, for every width
+ * each field can be written in, from the time on time in a bit to the 64 bits of a jump in time
+ */
+public class SampleCodecTest extends TestCase {
+	/** the time between samples, 4 Hz as a real strap sends */
+	private static final long K_INTERVALMS = 250;
+	/** the time of the first sample, a real time that needs the 64 bits */
+	private static final long K_STARTTIME = 1400000000000L;
+
+	/**
+	 * a sample to encode, the payload and the time it was received
+	 */
+	private static class Sample {
+		final byte[] payload;
+		final long time;
+
+		Sample(long time, int flags, int heartRate, int energy, int... rrIntervals) {
+			this.time = time;
+			// build the payload as a sensor would, so the codec is given a parsed measurement
+			boolean isUint16 = (flags & HeartRateMeasurement.K_FLAG_HR_UINT16) != 0;
+			boolean isEnergy = (flags & HeartRateMeasurement.K_FLAG_ENERGY_PRESENT) != 0;
+			byte[] payload = new byte[1 + (isUint16 ? 2 : 1) + (isEnergy ? 2 : 0) + rrIntervals.length * 2];
+			int index = 0;
+			payload[index++] = (byte) flags;
+			index = isUint16 ? putUint16(payload, index, heartRate) : putUint8(payload, index, heartRate);
+			if (isEnergy) {
+				index = putUint16(payload, index, energy);
+			}
+			for (int rrInterval : rrIntervals) {
+				index = putUint16(payload, index, rrInterval);
+			}
+			this.payload = payload;
+		}
+
+		private static int putUint8(byte[] payload, int index, int value) {
+			payload[index] = (byte) value;
+			return index + 1;
+		}
+
+		private static int putUint16(byte[] payload, int index, int value) {
+			payload[index] = (byte) value;
+			payload[index + 1] = (byte) (value >> 8);
+			return index + 2;
+		}
+	}
+
+	public void testZigZag() {
+		long[] values = new long[] { 0, 1, -1, 2, -2, 63, -64, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long value : values) {
+			assertEquals(value, SampleCodec.unZigZag(SampleCodec.zigZag(value)));
+		}
+		// small changes either way are small
+		assertEquals(0, SampleCodec.zigZag(0));
+		assertEquals(1, SampleCodec.zigZag(-1));
+		assertEquals(2, SampleCodec.zigZag(1));
+	}
+
+	public void testRegularSamples() throws IOException {
+		Random random = new Random(42);
+		List<Sample> samples = new ArrayList<Sample>();
+		long time = K_STARTTIME;
+		int heartRate = 70;
+		for (int i = 0; i < 2000; ++i) {
+			// near-regular times, a slowly changing heart rate, a beat or two each sample
+			time += K_INTERVALMS + random.nextInt(7) - 3;
+			heartRate = Math.max(40, Math.min(200, heartRate + random.nextInt(5) - 2));
+			int rrInterval = 61440 / heartRate;
+			if (i % 3 == 0) {
+				samples.add(new Sample(time, 0x00, heartRate, 0));
+			}
+			else {
+				int flags = HeartRateMeasurement.K_FLAG_CONTACT_SUPPORTED | HeartRateMeasurement.K_FLAG_CONTACT_DETECTED | HeartRateMeasurement.K_FLAG_RR_PRESENT;
+				samples.add(new Sample(time, flags, heartRate, 0, rrInterval, rrInterval + random.nextInt(21) - 10));
+			}
+		}
+		assertRoundTrip(samples);
+	}
+
+	public void testSamplesOnTimeTakeFourBits() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		for (int i = 0; i < 1001; ++i) {
+			samples.add(new Sample(K_STARTTIME + i * K_INTERVALMS, 0x00, 72, 0));
+		}
+		byte[] encoded = assertRoundTrip(samples);
+		// after the first two, each is the marker, the time, flags and heart rate unchanged
+		assertTrue("encoded in " + encoded.length + " bytes", encoded.length <= 999 * 4 / 8 + 24);
+	}
+
+	public void testEveryTimeWidth() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		long time = K_STARTTIME;
+		long interval = K_INTERVALMS;
+		// the change in interval that fits in each width, and just over it, either way
+		long[] changes = new long[] { 0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048, -2049,
+				1000000L, -1000000L, 0, 0 };
+		for (long change : changes) {
+			interval += change;
+			time += interval;
+			samples.add(new Sample(time, 0x00, 72, 0));
+		}
+		assertRoundTrip(samples);
+	}
+
+	public void testTimeJumps() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		// the clock set back a day, forward years, back to the epoch and to before it
+		long[] times = new long[] { K_STARTTIME, K_STARTTIME + K_INTERVALMS, K_STARTTIME - 86400000L,
+				K_STARTTIME + 100L * 365 * 86400000L, 0, -86400000L, Long.MAX_VALUE, Long.MIN_VALUE, K_STARTTIME };
+		for (long time : times) {
+			samples.add(new Sample(time, 0x00, 72, 0));
+		}
+		assertRoundTrip(samples);
+	}
+
+	public void testSeventeenBitDeltas() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		int flags = HeartRateMeasurement.K_FLAG_HR_UINT16 | HeartRateMeasurement.K_FLAG_ENERGY_PRESENT | HeartRateMeasurement.K_FLAG_RR_PRESENT;
+		// from one end of the UINT16 range to the other, the biggest change either way
+		int[] values = new int[] { 0, 65535, 0, 65535, 65535, 32768, 0, 15, -16 & 0xFFFF, 16, 255, 256 };
+		long time = K_STARTTIME;
+		for (int value : values) {
+			time += K_INTERVALMS;
+			samples.add(new Sample(time, flags, value, 65535 - value, value, 65535 - value, value));
+		}
+		assertRoundTrip(samples);
+	}
+
+	public void testEveryRrWidth() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		// the changes that fit in 6, 10 and 17 bits, and just over the first two
+		int[] rrIntervals = new int[] { 1000, 1031, 968, 1000, 1032, 967, 1000, 1511, 488, 1000, 1512, 487, 60000, 1 };
+		samples.add(new Sample(K_STARTTIME, HeartRateMeasurement.K_FLAG_RR_PRESENT, 60, 0, rrIntervals));
+		assertRoundTrip(samples);
+	}
+
+	public void testFlagsChange() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		long time = K_STARTTIME;
+		for (int flags = 0; flags < 0x20; ++flags) {
+			time += K_INTERVALMS;
+			samples.add(new Sample(time, flags, 100 + flags, 1000 + flags, 800, 900));
+			samples.add(new Sample(time + 1, flags, 100 - flags, 1000 - flags, 700));
+		}
+		assertRoundTrip(samples);
+	}
+
+	public void testMostRrIntervals() throws IOException {
+		int[] rrIntervals = new int[SampleCodec.K_MAXRRINTERVALS + 3];
+		for (int i = 0; i < rrIntervals.length; ++i) {
+			rrIntervals[i] = 700 + i * 10;
+		}
+		Sample sample = new Sample(K_STARTTIME, HeartRateMeasurement.K_FLAG_RR_PRESENT, 85, 0, rrIntervals);
+		HeartRateMeasurement decoded = new HeartRateMeasurement();
+		SampleCodec.Decoder decoder = new SampleCodec.Decoder(new ByteArrayInputStream(encode(sample)));
+		assertTrue(decoder.decode(decoded));
+		// those over the most there can be are dropped, the rest are kept
+		assertEquals(SampleCodec.K_MAXRRINTERVALS, decoded.getNoRrIntervals());
+		for (int i = 0; i < SampleCodec.K_MAXRRINTERVALS; ++i) {
+			assertEquals(rrIntervals[i], decoded.getRrInterval(i));
+		}
+		assertFalse(decoder.decode(decoded));
+	}
+
+	public void testNoSamples() throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		SampleCodec.Encoder encoder = new SampleCodec.Encoder(outputStream);
+		encoder.finish();
+		// just the end marker, padded
+		assertEquals(1, outputStream.size());
+		SampleCodec.Decoder decoder = new SampleCodec.Decoder(new ByteArrayInputStream(outputStream.toByteArray()));
+		assertFalse(decoder.decode(new HeartRateMeasurement()));
+		assertEquals(0, decoder.getNoSamples());
+	}
+
+	public void testCutShort() throws IOException {
+		List<Sample> samples = new ArrayList<Sample>();
+		for (int i = 0; i < 10; ++i) {
+			samples.add(new Sample(K_STARTTIME + i * K_INTERVALMS, HeartRateMeasurement.K_FLAG_RR_PRESENT, 70 + i, 0, 800 + i));
+		}
+		byte[] encoded = encode(samples.toArray(new Sample[samples.size()]));
+		byte[] cut = new byte[encoded.length / 2];
+		System.arraycopy(encoded, 0, cut, 0, cut.length);
+		SampleCodec.Decoder decoder = new SampleCodec.Decoder(new ByteArrayInputStream(cut));
+		HeartRateMeasurement decoded = new HeartRateMeasurement();
+		try {
+			while (decoder.decode(decoded)) {
+				// read all there is
+			}
+			fail("read to the end of samples that were cut short");
+		}
+		catch (IOException e) {
+			// as it should be, there is no end marker
+		}
+	}
+
+	/**
+	 * helper to encode the samples, decode them again and check each is what was encoded
+	 * @param samples are the samples to encode
+	 * @return the encoded samples
+	 */
+	private static byte[] assertRoundTrip(List<Sample> samples) throws IOException {
+		byte[] encoded = encode(samples.toArray(new Sample[samples.size()]));
+		SampleCodec.Decoder decoder = new SampleCodec.Decoder(new ByteArrayInputStream(encoded));
+		HeartRateMeasurement expected = new HeartRateMeasurement();
+		HeartRateMeasurement decoded = new HeartRateMeasurement();
+		for (int i = 0; i < samples.size(); ++i) {
+			Sample sample = samples.get(i);
+			assertTrue(expected.parse(sample.payload));
+			assertTrue("sample " + i, decoder.decode(decoded));
+			assertEquals("time of sample " + i, sample.time, decoder.getTime());
+			assertEquals("flags of sample " + i, expected.getFlags(), decoded.getFlags());
+			assertEquals("heart rate of sample " + i, expected.getHeartRate(), decoded.getHeartRate());
+			assertEquals("contact of sample " + i, expected.getSensorContact(), decoded.getSensorContact());
+			assertEquals("energy of sample " + i, expected.getEnergyExpended(), decoded.getEnergyExpended());
+			assertEquals("intervals of sample " + i, expected.getNoRrIntervals(), decoded.getNoRrIntervals());
+			for (int j = 0; j < expected.getNoRrIntervals(); ++j) {
+				assertEquals("interval " + j + " of sample " + i, expected.getRrInterval(j), decoded.getRrInterval(j));
+			}
+		}
+		assertFalse(decoder.decode(decoded));
+		assertEquals(samples.size(), decoder.getNoSamples());
+		return encoded;
+	}
+
+	/**
+	 * helper to encode the samples
+	 * @param samples are the samples to encode
+	 * @return the encoded samples, with the end marker
+	 */
+	private static byte[] encode(Sample... samples) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		SampleCodec.Encoder encoder = new SampleCodec.Encoder(outputStream);
+		HeartRateMeasurement measurement = new HeartRateMeasurement();
+		for (Sample sample : samples) {
+			assertTrue(measurement.parse(sample.payload));
+			encoder.encode(measurement, sample.time);
+		}
+		encoder.finish();
+		assertEquals(samples.length, encoder.getNoSamples());
+		assertEquals(outputStream.size(), encoder.getNoBytes());
+		return outputStream.toByteArray();
+	}
+}
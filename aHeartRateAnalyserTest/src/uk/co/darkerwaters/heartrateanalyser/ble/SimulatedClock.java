@@ -0,0 +1,39 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+/**
+ * a clock that only moves when it is told to, used to replay data faster than real time
+ */
+public class SimulatedClock implements BleClock {
+	/** the wall-clock time, in ms since the epoch */
+	private volatile long currentTime;
+	/** the monotonic time, in ms */
+	private volatile long elapsedTime;
+
+	/**
+	 * constructor
+	 * @param startTime is the wall-clock time the clock starts at, in ms since the epoch
+	 */
+	public SimulatedClock(long startTime) {
+		this.currentTime = startTime;
+		this.elapsedTime = 0;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return this.currentTime;
+	}
+
+	@Override
+	public long elapsedRealtime() {
+		return this.elapsedTime;
+	}
+
+	/**
+	 * move the clock on, only to be called from the one thread driving the clock
+	 * @param millis is the number of ms to move the clock on by
+	 */
+	public void advance(long millis) {
+		this.currentTime += millis;
+		this.elapsedTime += millis;
+	}
+}
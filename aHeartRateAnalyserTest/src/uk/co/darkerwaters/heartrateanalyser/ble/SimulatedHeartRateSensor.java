@@ -0,0 +1,129 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.util.Random;
+
+/**
+ * a stand-in for a real heart rate strap, creating the raw Heart Rate Measurement (0x2A37)
+ * payloads a strap would send. The payloads are either synthesised from a simple model of a heart
+ * rate that drifts between resting and exercise, or are recorded payloads replayed in a loop.
+ * This class has no android dependencies so it can be used on a plain JVM.
+ */
+public class SimulatedHeartRateSensor {
+	/** the largest payload created, the size of a default notification */
+	public static final int K_MAXPAYLOAD = 20;
+	/** the heart rate the synthesised data drifts around */
+	private static final double K_BASEHEARTRATE = 95.0;
+	/** the distance either side of the base the synthesised data drifts */
+	private static final double K_HEARTRATESWING = 55.0;
+	/** the time it takes the synthesised data to drift up and back down again */
+	private static final double K_SWINGPERIODMS = 20 * 60 * 1000;
+	/** the recorded payloads to replay, null if synthesising */
+	private final byte[][] recordedPayloads;
+	/** the index of the next recorded payload to replay */
+	private int replayIndex = 0;
+	/** true to send the heart rate as a UINT16 */
+	private final boolean isUint16;
+	/** the random noise to add to the synthesised data, seeded so runs can be repeated */
+	private final Random random;
+	/** the time of the last beat, any beats since are sent as RR-intervals */
+	private long lastBeatTime = -1;
+	/** the energy expended, sent now and again */
+	private int energyExpended = 0;
+	/** the number of payloads created */
+	private long noPayloads = 0;
+
+	/**
+	 * constructor to synthesise the data
+	 * @param seed is the seed of the random noise in the data
+	 * @param isUint16 is true to send the heart rate as a UINT16 rather than a UINT8
+	 */
+	public SimulatedHeartRateSensor(long seed, boolean isUint16) {
+		this.recordedPayloads = null;
+		this.isUint16 = isUint16;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * constructor to replay recorded data
+	 * @param recordedPayloads are the payloads to send, in a loop
+	 */
+	public SimulatedHeartRateSensor(byte[][] recordedPayloads) {
+		if (null == recordedPayloads || recordedPayloads.length == 0) {
+			throw new IllegalArgumentException("There must be at least one payload to replay");
+		}
+		this.recordedPayloads = recordedPayloads;
+		this.isUint16 = false;
+		this.random = null;
+	}
+
+	/**
+	 * @return the number of payloads created
+	 */
+	public long getNoPayloads() {
+		return this.noPayloads;
+	}
+
+	/**
+	 * create the next payload the sensor would send
+	 * @param time is the monotonic time, in ms, of the payload
+	 * @param payload is the array to put the payload in, at least K_MAXPAYLOAD long
+	 * @return the length of the payload
+	 */
+	public int nextPayload(long time, byte[] payload) {
+		++this.noPayloads;
+		if (null != this.recordedPayloads) {
+			// just replay the next recorded payload
+			byte[] recorded = this.recordedPayloads[this.replayIndex];
+			this.replayIndex = (this.replayIndex + 1) % this.recordedPayloads.length;
+			int length = Math.min(recorded.length, payload.length);
+			System.arraycopy(recorded, 0, payload, 0, length);
+			return length;
+		}
+		// synthesise the heart rate from our simple model
+		double swing = Math.sin(2.0 * Math.PI * (time % (long) K_SWINGPERIODMS) / K_SWINGPERIODMS);
+		int heartRate = (int) Math.round(K_BASEHEARTRATE + K_HEARTRATESWING * swing + this.random.nextGaussian() * 2.0);
+		heartRate = Math.max(30, Math.min(220, heartRate));
+		int flags = HeartRateMeasurement.K_FLAG_CONTACT_SUPPORTED | HeartRateMeasurement.K_FLAG_CONTACT_DETECTED;
+		int index = 1;
+		if (this.isUint16) {
+			flags |= HeartRateMeasurement.K_FLAG_HR_UINT16;
+			index = writeUint16(payload, index, heartRate);
+		}
+		else {
+			payload[index++] = (byte) heartRate;
+		}
+		if (this.noPayloads % 10 == 0) {
+			// send the energy expended every now and again, like a real strap
+			flags |= HeartRateMeasurement.K_FLAG_ENERGY_PRESENT;
+			this.energyExpended += heartRate / 10;
+			index = writeUint16(payload, index, this.energyExpended);
+		}
+		// and the beats since the last payload, at the current rate
+		long beatMs = 60000 / heartRate;
+		if (this.lastBeatTime < 0) {
+			this.lastBeatTime = time;
+		}
+		int rrStart = index;
+		while (this.lastBeatTime + beatMs <= time && index + 2 <= payload.length && index + 2 <= K_MAXPAYLOAD) {
+			this.lastBeatTime += beatMs;
+			index = writeUint16(payload, index, (int) (beatMs * RrIntervalBuffer.K_UNITSPERSECOND / 1000));
+		}
+		if (index > rrStart) {
+			flags |= HeartRateMeasurement.K_FLAG_RR_PRESENT;
+		}
+		// missed beats that did not fit are just lost, as they would be from a real strap
+		this.lastBeatTime = Math.max(this.lastBeatTime, time - beatMs);
+		payload[0] = (byte) flags;
+		return index;
+	}
+
+	/**
+	 * helper to write a little-endian UINT16 to the payload
+	 * @return the index after the value written
+	 */
+	private static int writeUint16(byte[] payload, int index, int value) {
+		payload[index] = (byte) (value & 0xFF);
+		payload[index + 1] = (byte) ((value >> 8) & 0xFF);
+		return index + 2;
+	}
+}
@@ -0,0 +1,61 @@
+package uk.co.darkerwaters.heartrateanalyser.ble;
+
+import java.io.File;
+
+import android.content.Context;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * a context of the app under test that keeps the files and databases of the tests apart from
+ * those of the app, so a test never reads, takes or deletes the history of a real device
+ */
+public class TestFilesContext extends RenamingDelegatingContext {
+	/** the prefix of the files and databases of the tests */
+	private static final String K_TESTPREFIX = "test-";
+	/** the directory the files of the tests are kept in, in place of the files directory */
+	private final File filesDir;
+
+	/**
+	 * constructor
+	 * @param context is the context of the app under test
+	 */
+	public TestFilesContext(Context context) {
+		super(context, K_TESTPREFIX);
+		this.filesDir = context.getDir(K_TESTPREFIX + "files", Context.MODE_PRIVATE);
+	}
+
+	@Override
+	public File getFilesDir() {
+		return this.filesDir;
+	}
+
+	@Override
+	public Context getApplicationContext() {
+		// the database storage opens its database with this, keep that renamed too
+		return this;
+	}
+
+	/**
+	 * delete all the files the tests created, the stores using them must be closed
+	 */
+	public void deleteFiles() {
+		deleteAll(this.filesDir);
+	}
+
+	/**
+	 * helper to delete the contents of a directory and all below it
+	 * @param directory is the directory to empty
+	 */
+	private static void deleteAll(File directory) {
+		File[] files = directory.listFiles();
+		if (null == files) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				deleteAll(file);
+			}
+			file.delete();
+		}
+	}
+}